@@ -9,7 +9,8 @@ enum QuorumSelection {
   RANDOM = 1,
   READ_HEAVY = 2,
   WRITE_HEAVY = 3,
-  CONSISTENT = 4
+  CONSISTENT = 4,
+  ADAPTIVE = 5
 }
 
 enum Property {
@@ -21,6 +22,41 @@ enum Property {
   nw = 5,
   nr = 6
   update_frequency
+  replication_queue_size
+  replication_retries
+  adaptive_window
+  adaptive_interval
+  rebalance_rate
+  heartbeat_interval
+  phi_threshold
+  log_level
+  compression
+  compression_min_size
+  erasure_k
+  erasure_m
+  erasure_min_size
+  lease_duration
+  inline_max_size
+  entry_selection
+  admission_max_concurrency
+  admission_queue_size
+  write_coalescing
+  read_coalescing
+  probe_batch_size
+}
+
+// How file contents are stored on disk and sent between nodes
+enum Codec {
+  NONE = 0,
+  DEFLATE_FAST = 1, // deflate level 1: cheap, for hot paths
+  DEFLATE = 2 // deflate level 9: best ratio
+}
+
+// How getRandomNode() picks the node a new client sends its requests to
+enum EntrySelection {
+  RANDOM = 0,
+  TWO_CHOICES = 1, // less loaded of two random nodes
+  LEAST_LOADED = 2
 }
 
 enum CoordinatorStatus {
@@ -34,6 +70,34 @@ struct CoordinatorConfiguration {
   2: required i32 n;
   3: required i32 nw;
   4: required i32 nr;
+  5: optional i32 replicationQueueSize = 1024; // max pending background pushes
+  6: optional i32 replicationRetries = 3; // retries before a push becomes a hint
+  7: optional i32 adaptiveWindow = 30000; // ms of traffic considered by ADAPTIVE
+  8: optional i32 adaptiveInterval = 5000; // ms between ADAPTIVE re-evaluations
+  9: optional i32 rebalanceRate = 1024; // KB/s used to copy data onto nodes joining a live DFS
+  10: optional i32 minimumN = 7; // DFS won't shrink below this many nodes
+  11: optional i32 heartbeatInterval = 1000; // ms between node --> coordinator heartbeats
+  12: optional double phiThreshold = 8.0; // suspicion level at which a node is considered down
+  13: optional Codec compression = Codec.DEFLATE_FAST; // codec the coordinator compresses new writes with
+  14: optional i32 compressionMinSize = 512; // bytes, smaller contents are stored uncompressed
+  15: optional i32 erasureK = 4; // Reed-Solomon data fragments (0 == always replicate in full)
+  16: optional i32 erasureM = 2; // Reed-Solomon parity fragments (at least, one per extra write quorum node)
+  17: optional i32 erasureMinSize = 1048576; // bytes (stored), smaller files are replicated in full
+  18: optional i32 leaseDuration = 0; // ms clients may serve a leased read from cache (0 == no leases)
+  19: optional i32 inlineMaxSize = 4096; // bytes, read quorum probes of smaller files return the contents too
+  20: optional EntrySelection entrySelection = EntrySelection.TWO_CHOICES; // how clients are spread over nodes
+  21: optional i32 admissionMaxConcurrency = 64; // max reads (and max writes) in progress at once (0 == unlimited)
+  22: optional i32 admissionQueueSize = 128; // requests over the limit that may wait for a slot (per type)
+  23: optional bool writeCoalescing = false; // combine writes queued on the same file into one write
+  24: optional bool readCoalescing = true; // concurrent reads of the same file share one quorum read
+  25: optional i32 probeBatchSize = 256; // max files per batched version probe (0 or 1 == no batching)
+}
+
+// How busy a node is, sent with every heartbeat
+struct NodeLoad {
+  1: required i32 connections; // open connections to the node
+  2: required i32 inFlightRequests; // RPCs it is serving right now
+  3: required double cpuLoad; // system load average per core (0 if unknown)
 }
 
 struct FileInfo {
@@ -45,51 +109,201 @@ struct FileInfo {
 
 enum Acknowledgement {
   SUCCESS = 0,
-  FAILURE = 1
+  FAILURE = 1,
+  TIMEOUT = 2, // request's deadline passed before it could complete
+  MISSING_CONTENTS = 3, // performWriteByHash(): node doesn't have these contents, send the blob
+  SUPERSEDED = 4, // performWrite*(): node already has a newer version (a later write won)
+  NOT_MODIFIED = 5, // *IfNewer() / knownVersion reads: caller already has the newest version (no contents sent)
+  OVERLOADED = 6 // coordinator turned the request away, retry after retryAfterMillis
 }
 
 struct Response {
   1: required Acknowledgement acknowledgement;
   2: required string message; // Empty string if no msg needed
+  3: optional i32 retryAfterMillis = 0; // OVERLOADED: how long to back off before retrying
 }
 
 struct WriteResult {
   1: required Response response;
+  2: optional i32 version = -1; // version the contents were written as (shared by coalesced writes)
 }
 
 struct ReadResult {
   1: required Response response;
   2: required string contents;
   3: required i32 version;
+  4: optional i32 leaseMillis = 0; // leasedRead(): ms the client may keep serving these contents
+}
+
+// One Reed-Solomon fragment of an erasure-coded blob (any dataFragments of them rebuild it)
+struct Fragment {
+  1: required i32 index; // 0 .. totalFragments-1 (the first dataFragments are the data itself)
+  2: required i32 dataFragments;
+  3: required i32 totalFragments;
+  4: required i32 length; // bytes of the whole (compressed) blob data
+  5: required string contentHash; // hash of the whole blob
+}
+
+// File contents as stored: compressed with codec, rawLength is the uncompressed size
+// (if fragment is set, data is only that fragment of the compressed contents)
+struct Blob {
+  1: required Codec codec;
+  2: required binary data;
+  3: required i32 rawLength;
+  4: optional string hash; // SHA-256 (hex) of the uncompressed contents (+ fragment index)
+  5: optional Fragment fragment;
+}
+
+struct BlobReadResult {
+  1: required Response response;
+  2: optional Blob blob; // unset on failure
+  3: required i32 version;
+}
+
+// probeFile(): getFileInfo() with the contents inlined (as stored) if the file is small enough
+struct FileProbe {
+  1: required FileInfo info;
+  2: optional Blob blob; // unset if the file doesn't exist or is too large
+}
+
+// Snapshot of a node's files (see openSnapshot()): every object is streamed, in this order
+struct SnapshotObject {
+  1: required string hash;
+  2: required Codec codec;
+  3: required i32 rawLength;
+  4: required i64 size; // bytes on disk (and on the stream)
+}
+
+struct SnapshotEntry {
+  1: required string filename;
+  2: required i32 version;
+  3: required string hash; // object the file's contents are in
+}
+
+struct SnapshotManifest {
+  1: required Response response;
+  2: optional i64 snapshotId; // sent by the receiver first thing on the stream
+  3: optional i32 streamPort; // one-shot raw TCP port the objects are streamed from
+  4: optional list<SnapshotObject> objects;
+  5: optional list<SnapshotEntry> entries;
+  6: optional i64 totalBytes;
+}
+
+struct FileListPage {
+  1: required Response response;
+  2: required list<FileInfo> files;
+  3: required string nextCursor; // pass back to get next page (empty if no more)
+  4: required bool hasMore;
+}
+
+struct LatencySummary {
+  1: required string name; // e.g. 'rpc.read', 'coordinator.versionProbe'
+  2: required i64 count;
+  3: required double meanMillis;
+  4: required double p50Millis;
+  5: required double p90Millis;
+  6: required double p99Millis;
+  7: required double p999Millis;
+  8: required double maxMillis;
 }
 
 service DFSNode {
-  // (NODE --> COORDINATOR) Used to add nodes to DFS as they join
+  // (NODE --> COORDINATOR) Used to add nodes to DFS as they join (also after DFS is ready)
   Response joinDFS(1: NodeInfo nodeInfo);
 
+  // (NODE --> COORDINATOR) Used to remove a node from a running DFS (e.g. on shutdown)
+  Response leaveDFS(1: NodeInfo nodeInfo);
+
+  // (NODE --> COORDINATOR) Periodically called so coordinator can detect dead nodes
+  // (and knows how busy each node is when picking entry nodes for clients)
+  Response heartbeat(1: NodeInfo nodeInfo, 2: NodeLoad load);
+
   // (CLIENT --> NODE) and then (NODE --fwd--> COORDINATOR):
-  WriteResult write(1: string filename, 2: string contents);
-  ReadResult read(1: string filename);
+  // timeoutMillis is the time left for the whole request (<= 0 uses the default)
+  WriteResult write(1: string filename, 2: string contents, 3: i32 timeoutMillis);
+  ReadResult read(1: string filename, 2: i32 timeoutMillis);
+
+  // (CLIENT --> NODE --fwd--> COORDINATOR) read() that answers NOT_MODIFIED (with the version
+  // but no contents) if the newest version is no newer than knownVersion
+  ReadResult readIfNewer(1: string filename, 2: i32 knownVersion, 3: i32 timeoutMillis);
+
+  // (CLIENT --> NODE --fwd--> COORDINATOR) readIfNewer() that may also grant a lease on the
+  // contents (knownVersion -1 to always get them). Writes to the file don't start until the
+  // lease has run out, so the client can answer reads from its cache until then
+  // (leaseMillis == 0: don't cache, always the case unless lease_duration is set)
+  ReadResult leasedRead(1: string filename, 2: i32 knownVersion, 3: i32 timeoutMillis);
 
   // (COORDINATOR --> NODE) to actually perform operation
   WriteResult performWrite(1: string filename, 2: string contents, 3: i32 version);
   ReadResult performRead(1: string filename);
 
+  // (COORDINATOR --> NODE) Same, with contents kept compressed. A node answers with the
+  // stored blob if its codec is in acceptedCodecs, otherwise recompresses (or sends NONE).
+  // performWriteBlob() fails if the node doesn't support the blob's codec.
+  WriteResult performWriteBlob(1: string filename, 2: Blob blob, 3: i32 version);
+  BlobReadResult performReadBlob(1: string filename, 2: list<Codec> acceptedCodecs);
+
+  // (COORDINATOR --> NODE) performReadBlob() that answers NOT_MODIFIED if the node's version is
+  // no newer than knownVersion
+  BlobReadResult performReadBlobIfNewer(1: string filename, 2: list<Codec> acceptedCodecs, 3: i32 knownVersion);
+
+  // (COORDINATOR --> NODE) Write contents the node may already hold (under any filename), by
+  // hash only. Returns MISSING_CONTENTS if it doesn't, then the caller sends performWriteBlob().
+  WriteResult performWriteByHash(1: string filename, 2: string hash, 3: i32 version);
+
+  // (COORDINATOR --> NODE) ERASURE-CODED files: the node's current contents of the file and, until
+  // the stripe they belong to is committed, the version before them (newest first, as stored).
+  // Lets a read fall back to the last complete stripe if a striped write failed part way
+  list<BlobReadResult> performReadFragments(1: string filename, 2: list<Codec> acceptedCodecs);
+
+  // (COORDINATOR --> NODE) Every fragment of the file's stripe of this version has landed: the
+  // version kept from before it (if any) may go
+  Response commitStripe(1: string filename, 2: i32 version);
+
+  // (NODE --> NODE --fwd--> COORDINATOR) read() that returns the contents compressed
+  // (used by update() so anti-entropy traffic stays compressed). NOT_MODIFIED if the newest
+  // version is no newer than knownVersion (-1 to always get the contents)
+  BlobReadResult readBlob(1: string filename, 2: list<Codec> acceptedCodecs, 3: i32 timeoutMillis, 4: i32 knownVersion);
+
   // Used by COORDINATOR to get versions from each node:
   FileInfo getFileInfo(1: string filename);
 
+  // (COORDINATOR --> NODE) getFileInfo() for reads: also returns the contents if they are at
+  // most inlineMaxSize bytes (uncompressed), so small files are read in one round trip
+  FileProbe probeFile(1: string filename, 2: i32 inlineMaxSize);
+
+  // (COORDINATOR --> NODE) getFileInfo()/probeFile() of several files in one call (one result
+  // per filename, in order), used to batch the version probes of concurrent requests
+  list<FileInfo> getFileInfos(1: list<string> filenames);
+  list<FileProbe> probeFiles(1: list<string> filenames, 2: i32 inlineMaxSize);
+
   // (CLIENT --> NODE --fwd--> COORDINATOR)
   // For displaying getting all file info to client on UI
   list<FileInfo> getAllFileVersions();
 
+  // (CLIENT --> NODE --fwd--> COORDINATOR)
+  // Sorted page of files from coordinator's catalog (prefix may be empty, cursor empty for first page)
+  FileListPage listFiles(1: string prefix, 2: string cursor, 3: i32 limit);
+
   // (COORDINATOR --> NODE)
-  // For displaying getting all file info from node (used by getAllFileVersions())
+  // For getting all file info from node (used to rebuild coordinator's catalog)
   list<FileInfo> getFiles();
 
+  // (NODE --> NODE) Pins a snapshot of this node's files and streams their contents (at most
+  // bytesPerSecond) to whoever connects to the manifest's streamPort and sends its snapshotId
+  SnapshotManifest openSnapshot(1: i64 bytesPerSecond);
+
+  // (COORDINATOR --> NEW NODE) Copy a snapshot of peer's files onto this node (returns when done)
+  Response bootstrapFrom(1: NodeInfo peer, 2: i64 bytesPerSecond);
+
+  // (CLIENT/OPERATOR --> NODE) Latency histograms of this node (not forwarded)
+  list<LatencySummary> getMetrics();
+
   // Periodically called on itself (NODE):
   Response update();
 
   // (CLIENT --> COORDINATOR) Called when client initialized to get contact
-  // info of random node (if not provided via command line)
+  // info of random node (if not provided via command line). Picked according to
+  // entrySelection, long-lived clients call it again now and then to rebalance
   NodeInfo getRandomNode();
 }
@@ -0,0 +1,38 @@
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Runs the JMH benchmarks and saves the results as JSON in bench-results/
+ * (one file per run, named by date) so runs can be compared over time.
+ *
+ * Usage: BenchmarkRunner [regex of benchmarks to run]
+ */
+public class BenchmarkRunner {
+
+  private static final String PATH_TO_ROOT = "../../../";
+  private static final String RESULTS_DIRECTORY = PATH_TO_ROOT + "bench-results/";
+
+  public static void main(String[] args) throws RunnerException {
+    String include = (args.length >= 1) ? args[0] : ".*Benchmark.*";
+
+    new File(RESULTS_DIRECTORY).mkdirs();
+    String resultFile = RESULTS_DIRECTORY + "jmh-" + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + ".json";
+
+    Options options = new OptionsBuilder()
+      .include(include)
+      .resultFormat(ResultFormatType.JSON)
+      .result(resultFile)
+      .build();
+    new Runner(options).run();
+
+    System.out.printf("[BenchmarkRunner] Results saved to '%s'\n", resultFile);
+  }
+
+}
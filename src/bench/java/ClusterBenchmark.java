@@ -0,0 +1,93 @@
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end quorum writes and reads against an in-process LocalCluster, sent
+ * to the coordinator over Thrift by several client threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClusterBenchmark {
+
+  private static final int CLIENT_THREADS = 4;
+  private static final int FILES = 64;
+
+  @Param({"7"})
+  public int n;
+
+  @Param({"100", "10000"})
+  public int contentSize;
+
+  private LocalCluster cluster;
+  private String contents;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, TException {
+    Log.setLevel(Log.Level.WARN);
+    cluster = new LocalCluster(n);
+    cluster.start();
+    contents = FileManagerBenchmark.makeContents(contentSize);
+
+    ClientState client = new ClientState();
+    client.connect(this);
+    for (int i = 0; i < FILES; i++) {
+      client.client.write(filename(i), contents, Deadline.DEFAULT_BUDGET_MILLIS);
+    }
+    client.disconnect();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    cluster.stop();
+  }
+
+  private static String filename(int i) {
+    return "file" + Integer.toString(i) + ".txt";
+  }
+
+  @State(Scope.Thread)
+  public static class ClientState {
+    TTransport transport;
+    DFSNode.Client client;
+
+    @Setup(Level.Trial)
+    public void connect(ClusterBenchmark benchmark) throws TException {
+      NodeInfo coordinator = benchmark.cluster.getCoordinatorInfo();
+      transport = new TSocket(coordinator.ip, coordinator.port, Deadline.DEFAULT_BUDGET_MILLIS);
+      client = new DFSNode.Client(new TBinaryProtocol(new TFramedTransport(transport)));
+      transport.open();
+    }
+
+    @TearDown(Level.Trial)
+    public void disconnect() {
+      transport.close();
+    }
+  }
+
+  @Benchmark
+  @Threads(CLIENT_THREADS)
+  public WriteResult write(ClientState state) throws TException {
+    String filename = filename(ThreadLocalRandom.current().nextInt(FILES));
+    return state.client.write(filename, contents, Deadline.DEFAULT_BUDGET_MILLIS);
+  }
+
+  @Benchmark
+  @Threads(CLIENT_THREADS)
+  public ReadResult read(ClientState state) throws TException {
+    String filename = filename(ThreadLocalRandom.current().nextInt(FILES));
+    return state.client.read(filename, Deadline.DEFAULT_BUDGET_MILLIS);
+  }
+
+}
@@ -0,0 +1,84 @@
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DFSCoordinator.buildQuorum() and the coordinator's per-file locks.
+ *
+ * Nodes are only registered (no servers behind them) and the DFS is never
+ * marked ready, so nothing here goes over the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoordinatorBenchmark {
+
+  private static final int LOCK_THREADS = 4;
+
+  @Param({"7", "31"})
+  public int n;
+
+  // Files the lock benchmark spreads over (1 == every thread wants the same file)
+  @Param({"1", "64"})
+  public int hotFiles;
+
+  private DFSCoordinator coordinator;
+  private String[] filenames;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Log.setLevel(Log.Level.WARN);
+    NodeInfo coordinatorInfo = new NodeInfo();
+    coordinatorInfo.ip = "127.0.0.1";
+    coordinatorInfo.port = 9001;
+    coordinatorInfo.isCoordinator = true;
+
+    CoordinatorConfiguration config = new CoordinatorConfiguration();
+    config.quorumSelection = QuorumSelection.RANDOM;
+    config.n = n + 1; // one short, so the DFS never becomes ready
+    config.nw = (n / 2) + 1;
+    config.nr = n - config.nw + 1;
+    config.heartbeatInterval = 60000; // no heartbeats are sent, don't suspect anyone
+
+    coordinator = new DFSCoordinator(coordinatorInfo, config, new Metrics(coordinatorInfo));
+    for (int i = 1; i < n; i++) {
+      NodeInfo node = new NodeInfo();
+      node.ip = "127.0.0.1";
+      node.port = 9001 + i;
+      node.isCoordinator = false;
+      coordinator.addNode(node);
+    }
+
+    filenames = new String[hotFiles];
+    for (int i = 0; i < hotFiles; i++) {
+      filenames[i] = "file" + Integer.toString(i) + ".txt";
+    }
+  }
+
+  @Benchmark
+  public ArrayList<NodeInfo> buildWriteQuorum() {
+    return coordinator.buildQuorum(coordinator.getCoordinatorConfiguration().nw);
+  }
+
+  @Benchmark
+  public ArrayList<NodeInfo> buildReadQuorum() {
+    return coordinator.buildQuorum(coordinator.getCoordinatorConfiguration().nr);
+  }
+
+  @Benchmark
+  @Threads(LOCK_THREADS)
+  public boolean acquireAndReleaseFileLock() {
+    String filename = filenames[ThreadLocalRandom.current().nextInt(hotFiles)];
+    boolean acquired = coordinator.acquireLockOnFile(filename, Deadline.after(Deadline.DEFAULT_BUDGET_MILLIS));
+    if (acquired) {
+      coordinator.releaseLockOnFile(filename);
+    }
+    return acquired;
+  }
+
+}
@@ -0,0 +1,83 @@
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileManager.performWrite() / performRead() (a replica's local disk path)
+ * across file sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileManagerBenchmark {
+
+  private static final int LINE_LENGTH = 64;
+
+  @Param({"100", "10000", "1000000"})
+  public int fileSize;
+
+  private File dataDirectory;
+  private FileManager fileManager;
+  private String contents;
+  private int version;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    Log.setLevel(Log.Level.WARN);
+    NodeInfo node = new NodeInfo();
+    node.ip = "127.0.0.1";
+    node.port = 9001;
+    node.isCoordinator = false;
+
+    dataDirectory = Files.createTempDirectory("dfs-bench").toFile();
+    fileManager = new FileManager(node, new Metrics(node), dataDirectory.getPath() + "/");
+    new File(fileManager.getDataDirectory()).mkdirs();
+
+    contents = makeContents(fileSize);
+    version = 1;
+    fileManager.performWrite("read.txt", contents, version);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    deleteRecursively(dataDirectory);
+  }
+
+  static String makeContents(int size) {
+    StringBuilder builder = new StringBuilder(size);
+    while (builder.length() < size) {
+      int lineLength = Math.min(LINE_LENGTH, size - builder.length());
+      for (int i = 0; i < lineLength - 1; i++) {
+        builder.append((char) ('a' + (i % 26)));
+      }
+      builder.append('\n');
+    }
+    return builder.toString();
+  }
+
+  static void deleteRecursively(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    f.delete();
+  }
+
+  @Benchmark
+  public WriteResult performWrite() {
+    return fileManager.performWrite("write.txt", contents, ++version);
+  }
+
+  @Benchmark
+  public ReadResult performRead() {
+    return fileManager.performRead("read.txt");
+  }
+
+}
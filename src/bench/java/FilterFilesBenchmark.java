@@ -0,0 +1,53 @@
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileManager.filterToMostRecentFiles() on large lists (REPLICAS copies of
+ * every file, each with a different version).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterFilesBenchmark {
+
+  private static final int REPLICAS = 3;
+
+  @Param({"1000", "100000"})
+  public int listSize;
+
+  private FileManager fileManager;
+  private List<FileInfo> allFiles;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Log.setLevel(Log.Level.WARN);
+    NodeInfo node = new NodeInfo();
+    node.ip = "127.0.0.1";
+    node.port = 9001;
+    node.isCoordinator = false;
+    fileManager = new FileManager(node, new Metrics(node));
+
+    Random random = new Random(42);
+    allFiles = new ArrayList<FileInfo>(listSize);
+    for (int i = 0; i < listSize; i++) {
+      FileInfo fileInfo = new FileInfo();
+      fileInfo.sourceNode = node;
+      fileInfo.filename = "file" + Integer.toString(i / REPLICAS) + ".txt";
+      fileInfo.exists = true;
+      fileInfo.version = random.nextInt(100);
+      allFiles.add(fileInfo);
+    }
+    Collections.shuffle(allFiles, random);
+  }
+
+  @Benchmark
+  public List<FileInfo> filterToMostRecentFiles() {
+    return fileManager.filterToMostRecentFiles(allFiles);
+  }
+
+}
@@ -0,0 +1,81 @@
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thrift (binary protocol, same as the DFS uses on the wire) serialization of
+ * ReadResult across content sizes, and of FileInfo.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+  @Param({"100", "10000", "1000000"})
+  public int contentSize;
+
+  private TSerializer serializer;
+  private TDeserializer deserializer;
+
+  private ReadResult readResult;
+  private byte[] readResultBytes;
+  private FileInfo fileInfo;
+  private byte[] fileInfoBytes;
+
+  @Setup(Level.Trial)
+  public void setUp() throws TException {
+    serializer = new TSerializer(new TBinaryProtocol.Factory());
+    deserializer = new TDeserializer(new TBinaryProtocol.Factory());
+
+    readResult = new ReadResult();
+    readResult.response = new Response();
+    readResult.response.acknowledgement = Acknowledgement.SUCCESS;
+    readResult.response.message = "";
+    readResult.contents = FileManagerBenchmark.makeContents(contentSize);
+    readResult.version = 42;
+    readResultBytes = serializer.serialize(readResult);
+
+    NodeInfo node = new NodeInfo();
+    node.ip = "127.0.0.1";
+    node.port = 9001;
+    node.isCoordinator = false;
+    fileInfo = new FileInfo();
+    fileInfo.sourceNode = node;
+    fileInfo.filename = "file1.txt";
+    fileInfo.exists = true;
+    fileInfo.version = 42;
+    fileInfoBytes = serializer.serialize(fileInfo);
+  }
+
+  @Benchmark
+  public byte[] serializeReadResult() throws TException {
+    return serializer.serialize(readResult);
+  }
+
+  @Benchmark
+  public ReadResult deserializeReadResult() throws TException {
+    ReadResult result = new ReadResult();
+    deserializer.deserialize(result, readResultBytes);
+    return result;
+  }
+
+  @Benchmark
+  public byte[] serializeFileInfo() throws TException {
+    return serializer.serialize(fileInfo);
+  }
+
+  @Benchmark
+  public FileInfo deserializeFileInfo() throws TException {
+    FileInfo result = new FileInfo();
+    deserializer.deserialize(result, fileInfoBytes);
+    return result;
+  }
+
+}
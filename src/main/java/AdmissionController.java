@@ -0,0 +1,172 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AdmissionController runs on the COORDINATOR and bounds how many reads and
+ * writes it works on at once, so that under overload requests are turned away
+ * quickly (OVERLOADED + retryAfterMillis) instead of piling up on file locks
+ * and worker threads until every one of them times out.
+ *
+ * Each operation type has its own concurrency limit, adapted to measured
+ * latency (AIMD): +1/limit for every request that completes within TOLERANCE x
+ * the recent minimum latency, x DECREASE (at most once per round trip) when
+ * one is slower than that or times out. Requests over the limit wait in a
+ * bounded FIFO queue, and only as long as their deadline still leaves time to
+ * complete.
+ */
+class AdmissionController {
+
+  public enum Operation { READ, WRITE }
+
+  private static final double INITIAL_LIMIT = 8;
+  private static final double MIN_LIMIT = 1;
+  private static final double TOLERANCE = 2.0;
+  private static final double DECREASE = 0.9;
+  private static final double SMOOTHING = 0.1;
+  private static final long BASELINE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+  private static final int MIN_RETRY_AFTER_MILLIS = 10;
+  private static final int MAX_RETRY_AFTER_MILLIS = 2000;
+
+  private final boolean enabled;
+  private final Limiter[] limiters = new Limiter[Operation.values().length];
+
+  public AdmissionController(int maxConcurrency, int queueSize) {
+    enabled = maxConcurrency > 0;
+    for (Operation operation : Operation.values()) {
+      limiters[operation.ordinal()] = new Limiter(Math.max(1, maxConcurrency), Math.max(0, queueSize));
+    }
+  }
+
+  /************************************************************************************************
+   admit(): false if the request should be rejected as OVERLOADED (call release() otherwise)
+   ************************************************************************************************/
+  public boolean admit(Operation operation, Deadline deadline) {
+    return !enabled || limiters[operation.ordinal()].admit(deadline);
+  }
+
+  public void release(Operation operation, long admittedAtNanos, boolean timedOut) {
+    if (enabled) {
+      limiters[operation.ordinal()].release(System.nanoTime() - admittedAtNanos, timedOut);
+    }
+  }
+
+  // How long a rejected client should wait before trying again
+  public int retryAfterMillis(Operation operation) {
+    return limiters[operation.ordinal()].retryAfterMillis();
+  }
+
+  public int getLimit(Operation operation) {
+    return limiters[operation.ordinal()].currentLimit();
+  }
+
+  /************************************************************************************************
+   LIMITER: one adaptive limit + bounded queue
+   ************************************************************************************************/
+  private static class Limiter {
+    private final double maxLimit;
+    private final int queueSize;
+
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition slotFreed = lock.newCondition();
+
+    private double limit;
+    private int inFlight = 0;
+    private int waiting = 0;
+
+    private double smoothedNanos = 0;
+    private long baselineNanos = Long.MAX_VALUE; // minimum latency of the last window
+    private long windowMinNanos = Long.MAX_VALUE;
+    private long windowStart = System.nanoTime();
+    private long lastDecrease = 0;
+
+    Limiter(int maxLimit, int queueSize) {
+      this.maxLimit = maxLimit;
+      this.queueSize = queueSize;
+      this.limit = Math.min(INITIAL_LIMIT, maxLimit);
+    }
+
+    boolean admit(Deadline deadline) {
+      lock.lock();
+      try {
+        if (inFlight < (int) limit && waiting == 0) {
+          inFlight++;
+          return true;
+        }
+        // Queue full, or no time left to do the work after waiting for a slot
+        if (waiting >= queueSize || deadline.remainingMillis() < smoothedNanos / 1e6) {
+          return false;
+        }
+        waiting++;
+        try {
+          while (inFlight >= (int) limit) {
+            long remaining = deadline.remainingMillis();
+            if (remaining <= 0) {
+              return false;
+            }
+            slotFreed.await(remaining, TimeUnit.MILLISECONDS);
+          }
+          inFlight++;
+          return true;
+        } catch (InterruptedException ie) {
+          Log.error("[AdmissionController] InterruptedException while waiting for a slot.");
+          return false;
+        } finally {
+          waiting--;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void release(long latencyNanos, boolean timedOut) {
+      lock.lock();
+      try {
+        inFlight--;
+        long now = System.nanoTime();
+        smoothedNanos = (smoothedNanos == 0) ? latencyNanos : smoothedNanos + SMOOTHING * (latencyNanos - smoothedNanos);
+
+        windowMinNanos = Math.min(windowMinNanos, latencyNanos);
+        if (baselineNanos == Long.MAX_VALUE || now - windowStart >= BASELINE_WINDOW_NANOS) {
+          baselineNanos = windowMinNanos;
+          windowMinNanos = Long.MAX_VALUE;
+          windowStart = now;
+        }
+
+        if (timedOut || latencyNanos > baselineNanos * TOLERANCE) {
+          // Back off once per round trip, not once per slow request of the same burst
+          if (now - lastDecrease > baselineNanos) {
+            limit = Math.max(MIN_LIMIT, limit * DECREASE);
+            lastDecrease = now;
+          }
+        } else if (inFlight + 1 >= (int) limit) {
+          // Only grow while the limit is what's holding requests back
+          limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        slotFreed.signal();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    int retryAfterMillis() {
+      lock.lock();
+      try {
+        double millis = (smoothedNanos / 1e6) * (waiting + 1) / Math.max(MIN_LIMIT, limit);
+        return (int) Math.max(MIN_RETRY_AFTER_MILLIS, Math.min(MAX_RETRY_AFTER_MILLIS, millis));
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    int currentLimit() {
+      lock.lock();
+      try {
+        return (int) limit;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+}
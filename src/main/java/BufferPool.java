@@ -0,0 +1,177 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool is read-path buffer reuse: it recycles the buffers a node reads
+ * stored objects into, so serving performReadBlob() (and probes with inlined
+ * contents) doesn't allocate a new array the size of the file every time. The
+ * snapshot receiver borrows its stream buffer from it as well.
+ *
+ * That is the only path it covers, so it cuts the GC pressure of reads on the
+ * nodes, not all of it. Still allocated per request:
+ *    - contents bigger than MAX_POOLED_SIZE (16 MB)
+ *    - writes: Thrift hands the handler a String/binary it allocated itself,
+ *      and compressing it makes another copy
+ *    - the coordinator's side of a quorum read: the blob it gets back from a
+ *      node is deserialized by Thrift into a new array (and again for clients
+ *      that read contents as a String)
+ * Pooling those would take a protocol that reads into caller-supplied buffers
+ * (or chunked transfers), which the generated Thrift code doesn't offer.
+ *
+ * Buffers come in power-of-two size classes (MIN_SIZE .. MAX_POOLED_SIZE;
+ * larger ones aren't pooled) and are reference counted: retain() for every
+ * extra holder, release() when done, and the last release() gives the buffer
+ * back to the pool. At most MAX_IDLE_BYTES sit idle in the pool, across all
+ * size classes; buffers given back beyond that are left to the GC.
+ *
+ * Contents sent back in an RPC's result have to live until Thrift has written
+ * the response, i.e. after the handler returned. forRequest() hands out such
+ * buffers: they are held by the request being served on this thread and
+ * released once its response went out (see RequestBuffers, the server event
+ * handler). Outside of a server thread it just allocates.
+ *
+ * Buffers are heap buffers, not direct ones: Thrift writes binary fields
+ * through ByteBuffer.array(). FileChannel I/O on them goes through the JDK's
+ * per-thread (direct) temporary buffers, which are cached as well.
+ */
+class BufferPool {
+
+  public static final int MIN_SIZE = 4096;
+  public static final int MAX_POOLED_SIZE = 16 * 1024 * 1024;
+  public static final long MAX_IDLE_BYTES = 64L * 1024 * 1024;
+
+  private static final int NUM_CLASSES = Integer.numberOfTrailingZeros(MAX_POOLED_SIZE / MIN_SIZE) + 1;
+
+  @SuppressWarnings("unchecked")
+  private static final ConcurrentLinkedQueue<ByteBuffer>[] idle = new ConcurrentLinkedQueue[NUM_CLASSES];
+  static {
+    for (int i = 0; i < NUM_CLASSES; i++) {
+      idle[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+  }
+  // Capacity of all idle buffers (a buffer being given back is counted before it is queued)
+  private static final AtomicLong idleBytes = new AtomicLong();
+
+  // Buffers held by the request this (server) thread is serving (null == not a server thread)
+  private static final ThreadLocal<ArrayList<PooledBuffer>> requestBuffers = new ThreadLocal<ArrayList<PooledBuffer>>();
+
+  /************************************************************************************************
+   PooledBuffer: buffer() is [0, size) of a pooled buffer, valid until the last release()
+   ************************************************************************************************/
+  static class PooledBuffer {
+    private final ByteBuffer pooled;
+    private final ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private PooledBuffer(ByteBuffer pooled, int size) {
+      this.pooled = pooled;
+      pooled.clear();
+      pooled.limit(size);
+      this.buffer = pooled.slice();
+    }
+
+    public ByteBuffer buffer() {
+      return buffer;
+    }
+
+    public PooledBuffer retain() {
+      if (references.getAndIncrement() <= 0) {
+        throw new IllegalStateException("Buffer retained after it was released.");
+      }
+      return this;
+    }
+
+    public void release() {
+      int left = references.decrementAndGet();
+      if (left == 0) {
+        giveBack(pooled);
+      } else if (left < 0) {
+        throw new IllegalStateException("Buffer released more times than it was retained.");
+      }
+    }
+  }
+
+  /************************************************************************************************
+   acquire(): buffer of exactly size bytes (position 0, limit size), with one reference
+   ************************************************************************************************/
+  public static PooledBuffer acquire(int size) {
+    int sizeClass = sizeClass(size);
+    ByteBuffer pooled = null;
+    if (sizeClass >= 0) {
+      pooled = idle[sizeClass].poll();
+      if (pooled != null) {
+        idleBytes.addAndGet(-pooled.capacity());
+      } else {
+        pooled = ByteBuffer.allocate(MIN_SIZE << sizeClass);
+      }
+    } else {
+      pooled = ByteBuffer.allocate(size);
+    }
+    return new PooledBuffer(pooled, size);
+  }
+
+  private static void giveBack(ByteBuffer pooled) {
+    int sizeClass = sizeClass(pooled.capacity());
+    if (sizeClass < 0 || pooled.capacity() != (MIN_SIZE << sizeClass)) {
+      return; // (too big to pool)
+    }
+    if (idleBytes.addAndGet(pooled.capacity()) <= MAX_IDLE_BYTES) {
+      idle[sizeClass].offer(pooled);
+    } else {
+      idleBytes.addAndGet(-pooled.capacity());
+    }
+  }
+
+  // Smallest class that fits size (-1 == bigger than MAX_POOLED_SIZE)
+  private static int sizeClass(int size) {
+    if (size > MAX_POOLED_SIZE) {
+      return -1;
+    }
+    int sizeClass = 0;
+    while ((MIN_SIZE << sizeClass) < size) {
+      sizeClass++;
+    }
+    return sizeClass;
+  }
+
+  /************************************************************************************************
+   forRequest(): buffer of exactly size bytes that stays valid until the response to the request
+   being served on this thread has been written
+   ************************************************************************************************/
+  public static ByteBuffer forRequest(int size) {
+    ArrayList<PooledBuffer> held = requestBuffers.get();
+    if (held == null) {
+      return ByteBuffer.allocate(size);
+    }
+    PooledBuffer pooledBuffer = acquire(size);
+    held.add(pooledBuffer);
+    return pooledBuffer.buffer();
+  }
+
+  /************************************************************************************************
+   REQUEST SCOPE (called by the server event handler, on the thread serving the connection)
+   ************************************************************************************************/
+  public static void beginConnection() {
+    requestBuffers.set(new ArrayList<PooledBuffer>());
+  }
+
+  // The previous request's response has been written (the next one is about to be read)
+  public static void endRequest() {
+    ArrayList<PooledBuffer> held = requestBuffers.get();
+    if (held != null) {
+      for (PooledBuffer pooledBuffer : held) {
+        pooledBuffer.release();
+      }
+      held.clear();
+    }
+  }
+
+  public static void endConnection() {
+    endRequest();
+    requestBuffers.remove();
+  }
+
+}
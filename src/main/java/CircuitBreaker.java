@@ -0,0 +1,42 @@
+/**
+ * CircuitBreaker tracks RPC failures to a single node. After FAILURE_THRESHOLD
+ * failures in a row the breaker OPENS and the coordinator stops sending that
+ * node requests. After OPEN_MILLIS it is HALF_OPEN: requests are let through
+ * again, the first success closes it and the first failure re-opens it.
+ */
+class CircuitBreaker {
+
+  enum State { CLOSED, OPEN, HALF_OPEN }
+
+  private static final int FAILURE_THRESHOLD = 3;
+  private static final long OPEN_MILLIS = 5000;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures = 0;
+  private long openedAt = 0;
+
+  public synchronized State getState() {
+    if (state == State.OPEN && System.currentTimeMillis() - openedAt >= OPEN_MILLIS) {
+      state = State.HALF_OPEN;
+    }
+    return state;
+  }
+
+  public boolean allowsRequests() {
+    return getState() != State.OPEN;
+  }
+
+  public synchronized void recordSuccess() {
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+  }
+
+  public synchronized void recordFailure() {
+    consecutiveFailures++;
+    if (getState() == State.HALF_OPEN || consecutiveFailures >= FAILURE_THRESHOLD) {
+      state = State.OPEN;
+      openedAt = System.currentTimeMillis();
+    }
+  }
+
+}
@@ -24,13 +24,32 @@ public class Client {
   private static final int DEFAULT_PORT = 7777;
 
   private static final int RETRY_ATTEMPTS = 5;
+  // Backoff between retries of OVERLOADED requests (doubles each attempt, with jitter)
+  private static final long MIN_BACKOFF_MILLIS = 50;
+  private static final long MAX_BACKOFF_MILLIS = 5000;
+  private static final Random random = new Random();
+
+  private static final int LIST_PAGE_SIZE = 500;
+
+  // Time budget for each read/write (passed along to every node that handles it)
+  private static final int REQUEST_TIMEOUT_MILLIS = 10000;
+  // Extra time our socket waits past the budget, so the DFS's own TIMEOUT answer can reach us
+  private static final int SOCKET_TIMEOUT_SLACK_MILLIS = 1000;
+
+  // Long-lived sessions ask the coordinator for a (less loaded) node again this often
+  private static final long REBALANCE_INTERVAL_MILLIS = 60000;
 
   private static NodeInfo entryNode;
+  private static NodeInfo coordinatorInfo; // null if the node was given on the command line
+  private static long entryNodeChosenAtMillis;
 
   private static TTransport dfsNode_transport;
   private static TProtocol dfsNode_protocol;
   private static DFSNode.Client dfsNode_client;
 
+  // Leased reads (served locally until the coordinator's lease on them runs out)
+  private static ReadCache readCache = new ReadCache();
+
   public static WriteResult makeWriteRequest(String filename, String contents, boolean contentsInFile) {
     if (contentsInFile) {
       MyFileReader reader = new MyFileReader(PATH_TO_ROOT + contents);
@@ -46,28 +65,117 @@ public class Client {
         return result;
       }
     }
+    readCache.invalidate(filename);
     try {
-      return dfsNode_client.write(filename, contents);
+      WriteResult writeResult = dfsNode_client.write(filename, contents, REQUEST_TIMEOUT_MILLIS);
+      for (int attempt = 0; writeResult.response.acknowledgement == Acknowledgement.OVERLOADED && attempt < RETRY_ATTEMPTS; attempt++) {
+        backOff(writeResult.response, attempt);
+        writeResult = dfsNode_client.write(filename, contents, REQUEST_TIMEOUT_MILLIS);
+      }
+      return writeResult;
     } catch (TException e) {
       System.err.printf("[CLIENT] Failed to make write request.\n");
+      reconnect();
       return null;
     }
   }
 
   public static ReadResult makeReadRequest(String filename) {
+    ReadResult cached = readCache.get(filename);
+    if (cached != null) {
+      return cached;
+    }
     try {
-      return dfsNode_client.read(filename);
+      long sentAt = System.nanoTime();
+      ReadResult readResult = dfsNode_client.leasedRead(filename, readCache.knownVersion(filename), REQUEST_TIMEOUT_MILLIS);
+      for (int attempt = 0; readResult.response.acknowledgement == Acknowledgement.OVERLOADED && attempt < RETRY_ATTEMPTS; attempt++) {
+        backOff(readResult.response, attempt);
+        sentAt = System.nanoTime();
+        readResult = dfsNode_client.leasedRead(filename, readCache.knownVersion(filename), REQUEST_TIMEOUT_MILLIS);
+      }
+      return readCache.put(filename, readResult, sentAt);
     } catch (TException e) {
-      System.err.printf("[CLIENT] Failed to make write request.\n");
+      System.err.printf("[CLIENT] Failed to make read request.\n");
+      reconnect();
       return null;
     }
   }
 
-  public static List<FileInfo> makeGetFilesRequest() {
+  /**
+   * Waits before retrying an OVERLOADED request: at least what the coordinator asked for, doubled
+   * every attempt, with jitter so the clients it turned away don't all come back at once
+   */
+  private static void backOff(Response response, int attempt) {
+    long millis = Math.min(MAX_BACKOFF_MILLIS, Math.max(MIN_BACKOFF_MILLIS, response.retryAfterMillis) << attempt);
+    millis = millis / 2 + (long) (random.nextDouble() * (millis / 2));
+    System.err.printf("[CLIENT] DFS overloaded, retrying in %d ms.\n", millis);
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * A timed out request leaves unread bytes on the connection, so start over with a fresh one
+   */
+  public static void reconnect() {
+    try {
+      dfsNode_transport.close();
+      dfsNode_transport = new TSocket(entryNode.ip, entryNode.port, REQUEST_TIMEOUT_MILLIS + SOCKET_TIMEOUT_SLACK_MILLIS);
+      dfsNode_protocol = new TBinaryProtocol(new TFramedTransport(dfsNode_transport));
+      dfsNode_client = new DFSNode.Client(dfsNode_protocol);
+      dfsNode_transport.open();
+    } catch (TException e) {
+      System.err.printf("[CLIENT] Failed to reconnect to DFS Node '" + entryNode.ip + ":" + Integer.toString(entryNode.port) + "'\n");
+    }
+  }
+
+  /**
+   * Every REBALANCE_INTERVAL_MILLIS, asks the coordinator for a node again and moves over to
+   * it, so a long session doesn't keep loading the node it happened to start on
+   */
+  public static void rebalance() {
+    if (coordinatorInfo == null || System.currentTimeMillis() - entryNodeChosenAtMillis < REBALANCE_INTERVAL_MILLIS) {
+      return;
+    }
+    entryNodeChosenAtMillis = System.currentTimeMillis();
+    NodeInfo node = requestEntryNode(coordinatorInfo);
+    if (node == null || (node.ip.equals(entryNode.ip) && node.port == entryNode.port)) {
+      return;
+    }
+    System.out.printf("[Client] Rebalancing: moving to DFS Node '" + node.ip + ":" + Integer.toString(node.port) + "'\n");
+    entryNode = node;
+    reconnect();
+  }
+
+  public static List<FileInfo> makeGetFilesRequest(String prefix) {
+    List<FileInfo> files = new ArrayList<FileInfo>();
+    String cursor = "";
     try {
-      return dfsNode_client.getAllFileVersions();
+      FileListPage page;
+      do {
+        page = dfsNode_client.listFiles(prefix, cursor, LIST_PAGE_SIZE);
+        if (page.response.acknowledgement != Acknowledgement.SUCCESS) {
+          return null;
+        }
+        files.addAll(page.files);
+        cursor = page.nextCursor;
+      } while (page.hasMore);
+      return files;
     } catch (TException e) {
       System.err.printf("[CLIENT] Failed to make makeGetFilesRequest() request.\n");
+      reconnect();
+      return null;
+    }
+  }
+
+  public static List<LatencySummary> makeGetMetricsRequest() {
+    try {
+      return dfsNode_client.getMetrics();
+    } catch (TException e) {
+      System.err.printf("[CLIENT] Failed to make getMetrics() request.\n");
+      reconnect();
       return null;
     }
   }
@@ -115,6 +223,24 @@ public class Client {
     return fileList;
   }
 
+  public static List<String> formatMetrics(List<LatencySummary> summaries) {
+    String doubleLine = "  ============================================================";
+    String singleLine = "  ------------------------------------------------------------";
+    List<String> metricsList = new ArrayList<String>();
+
+    metricsList.add(doubleLine);
+    metricsList.add("  [LATENCIES ON " + entryNode.ip + ":" + Integer.toString(entryNode.port) + " (ms)]:");
+    metricsList.add(singleLine);
+
+    for (LatencySummary summary : summaries) {
+      metricsList.add(String.format("\t  [%s]: count %d, mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+        summary.name, summary.count, summary.meanMillis, summary.p50Millis, summary.p90Millis,
+        summary.p99Millis, summary.p999Millis, summary.maxMillis));
+    }
+    metricsList.add(doubleLine);
+    return metricsList;
+  }
+
   public static List<String> formatFileContents(ReadResult readResult) {
     List<String> contentsByLines = new ArrayList<String>(Arrays.asList(readResult.contents.split("\n")));
 
@@ -175,7 +301,11 @@ public class Client {
           output.add("• [REQUEST]: WRITE '" + contents + "' TO FILE '" + filename + "'");
           writeResult = makeWriteRequest(filename, contents, false);
         }
-        if (writeResult.response.acknowledgement == Acknowledgement.SUCCESS) {
+        if (writeResult == null) {
+          output.add("  [Completed request in " + Long.toString(getTimeElapsed(start)) + " milliseconds]");
+          output.add("  [RESPONSE]: FAILURE (Lost connection to DFS Node)");
+          return output;
+        } else if (writeResult.response.acknowledgement == Acknowledgement.SUCCESS) {
           output.add("  [Completed request in " + Long.toString(getTimeElapsed(start)) + " milliseconds]");
           output.add("  [RESPONSE]: " + writeResult.response.acknowledgement.name());
           return output;
@@ -192,7 +322,11 @@ public class Client {
         String filename = split_request.get(1).trim();
         output.add("• [REQUEST]: READ CONTENTS OF FILE '" + filename + "'");
         ReadResult readResult = makeReadRequest(filename);
-        if (readResult == null || readResult.response.acknowledgement == Acknowledgement.FAILURE) {
+        if (readResult == null) {
+          output.add("  [Completed request in " + Long.toString(getTimeElapsed(start)) + " milliseconds]");
+          output.add("  [RESPONSE]: FAILURE (Lost connection to DFS Node)");
+          return output;
+        } else if (readResult.response.acknowledgement != Acknowledgement.SUCCESS) {
           output.add("  [Completed request in " + Long.toString(getTimeElapsed(start)) + " milliseconds]");
           output.add("  [RESPONSE]: " + readResult.response.acknowledgement.name() + " (" + readResult.response.message + ")");
           return output;
@@ -204,8 +338,9 @@ public class Client {
         }
       }
     } else if (split_request.contains("ls")) {
-      output.add("• [REQUEST]: GET LIST OF FILES");
-      List<FileInfo> files = makeGetFilesRequest();
+      String prefix = (split_request.size() > 1) ? split_request.get(1).trim() : "";
+      output.add("• [REQUEST]: GET LIST OF FILES" + (prefix.isEmpty() ? "" : " STARTING WITH '" + prefix + "'"));
+      List<FileInfo> files = makeGetFilesRequest(prefix);
       if (files == null) {
         output.add("  [RESPONSE]: FAILURE (Coordinator not ready. Check all nodes have joined and try again.)");
       } else {
@@ -213,6 +348,15 @@ public class Client {
         output.addAll(formatFileVersionList(files));
       }
 
+      return output;
+    } else if (split_request.get(0).toLowerCase().contains("metrics")) {
+      output.add("• [REQUEST]: GET LATENCY METRICS OF DFS NODE");
+      List<LatencySummary> summaries = makeGetMetricsRequest();
+      if (summaries == null) {
+        output.add("  [RESPONSE]: FAILURE (Lost connection to DFS Node)");
+      } else {
+        output.addAll(formatMetrics(summaries));
+      }
       return output;
     } else if (split_request.get(0).toLowerCase().contains("submit")) {
       String filename = split_request.get(1).trim();
@@ -248,6 +392,10 @@ public class Client {
 
       "\n\tLIST FILES AND VERSIONS:\n" +
       "\t\t> ls\n" +
+      "\t\t> ls, file1\t\t(only files starting with 'file1')\n" +
+
+      "\n\tLATENCY METRICS OF CONNECTED NODE:\n" +
+      "\t\t> metrics\n" +
 
       "\n\tSUBMIT FILE WITH MANY REQUESTS:\n" +
       "\t(each request on new line and must be formatted as shown above (comma-separated))\n" +
@@ -261,6 +409,7 @@ public class Client {
 
     while (!input.equals("")) {
 
+      rebalance();
       List<String> response = processRequest(input);
       if (response.size() != 0) {
         printRequestOutput(response, 0);
@@ -299,29 +448,37 @@ public class Client {
   public static NodeInfo getRandomNode(NodeInfo coordinatorInfo) {
     System.out.printf("[Client] Contacting coordinator to get random DFS Node.\n");
 
+    NodeInfo randomNode = requestEntryNode(coordinatorInfo);
+    if (randomNode == null) {
+      System.err.printf("[Client] Failed to connect to Coordinator Node '" + coordinatorInfo.ip + ":" + Integer.toString(coordinatorInfo.port) + "'\n");
+      System.exit(1);
+    }
+    return randomNode;
+  }
+
+  // getRandomNode() that returns null instead of exiting if the coordinator can't be reached
+  public static NodeInfo requestEntryNode(NodeInfo coordinatorInfo) {
     try {
-      TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port);
+      TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port, REQUEST_TIMEOUT_MILLIS);
       TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
       DFSNode.Client client = new DFSNode.Client(protocol);
       transport.open();
-      System.out.printf("[Client] Connected to Coordinator Node '" + coordinatorInfo.ip + ":" + Integer.toString(coordinatorInfo.port) + "'\n");
       NodeInfo randomNode =  client.getRandomNode();
       transport.close();
       return randomNode;
 
     } catch(TException e) {
-      System.err.printf("[Client] Failed to connect to Coordinator Node '" + coordinatorInfo.ip + ":" + Integer.toString(coordinatorInfo.port) + "'\n");
-      System.exit(1);
+      return null;
     }
-    return null;
   }
 
   public static void main(String [] args) {
 
     if (args.length == 0) {
       // [0] Connect to coordinator to get node info
-      NodeInfo coordinatorInfo = readCoordinatorConfigsFromFile();
+      coordinatorInfo = readCoordinatorConfigsFromFile();
       entryNode = getRandomNode(coordinatorInfo);
+      entryNodeChosenAtMillis = System.currentTimeMillis();
 
     } else if (args.length == 1) {
       // [1: node_ip:node_port]
@@ -338,7 +495,7 @@ public class Client {
     System.out.printf("[Client] Set to connect with Random DFS Node at '" + entryNode.ip + ":" + Integer.toString(entryNode.port) + "'\n");
 
     try {
-      dfsNode_transport = new TSocket(entryNode.ip, entryNode.port);
+      dfsNode_transport = new TSocket(entryNode.ip, entryNode.port, REQUEST_TIMEOUT_MILLIS + SOCKET_TIMEOUT_SLACK_MILLIS);
       dfsNode_protocol = new TBinaryProtocol(new TFramedTransport(dfsNode_transport));
       dfsNode_client = new DFSNode.Client(dfsNode_protocol);
 
@@ -0,0 +1,225 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression turns file contents into Blobs (contents as stored on disk and
+ * sent between nodes) and back.
+ *
+ * The coordinator compresses each write ONCE; the blob then goes to the write
+ * quorum, background replication, rebalancing and update() as-is. It is only
+ * decompressed when a client reads the file.
+ */
+class Compression {
+
+  // Codecs this node can read and write (sent as acceptedCodecs)
+  public static final List<Codec> SUPPORTED = Collections.unmodifiableList(Arrays.asList(Codec.values()));
+
+  // Used for contents that arrive uncompressed (performWrite() from older callers)
+  public static final Codec DEFAULT_CODEC = Codec.DEFLATE_FAST;
+  public static final int DEFAULT_MIN_SIZE = 512;
+
+  private static final int BUFFER_SIZE = 8192;
+
+  public static boolean isSupported(Codec codec) {
+    return codec != null && SUPPORTED.contains(codec);
+  }
+
+  /************************************************************************************************
+   normalize(): files have always been stored without trailing newlines + one '\n' (see
+   MyFileWriter.writeLines()), keep it that way so reads return exactly what they used to
+   ************************************************************************************************/
+  public static String normalize(String contents) {
+    return contents.replaceAll("\n+$", "") + "\n";
+  }
+
+  /************************************************************************************************
+   compress(): contents --> blob (falls back to NONE if small or incompressible)
+   ************************************************************************************************/
+  public static Blob compress(String contents, Codec codec, int minSize) {
+    byte[] raw = normalize(contents).getBytes(StandardCharsets.UTF_8);
+    return compress(raw, codec, minSize);
+  }
+
+  private static Blob compress(byte[] raw, Codec codec, int minSize) {
+    return compress(raw, codec, minSize, hash(raw));
+  }
+
+  private static Blob compress(byte[] raw, Codec codec, int minSize, String hash) {
+    Blob blob = new Blob();
+    blob.rawLength = raw.length;
+    blob.hash = hash;
+    if (codec != Codec.NONE && raw.length >= minSize) {
+      byte[] compressed = deflate(raw, (codec == Codec.DEFLATE) ? Deflater.BEST_COMPRESSION : Deflater.BEST_SPEED);
+      if (compressed.length < raw.length) {
+        blob.codec = codec;
+        blob.data = ByteBuffer.wrap(compressed);
+        return blob;
+      }
+    }
+    blob.codec = Codec.NONE;
+    blob.data = ByteBuffer.wrap(raw);
+    return blob;
+  }
+
+  /************************************************************************************************
+   decompress(): blob --> contents (null if the blob is corrupt or its codec unknown)
+   ************************************************************************************************/
+  public static String decompress(Blob blob) {
+    ByteBuffer data = blob.data;
+    if (blob.codec == Codec.NONE && data.hasArray()) {
+      // Decoded straight out of the (possibly pooled) buffer
+      return new String(data.array(), data.arrayOffset() + data.position(), data.remaining(), StandardCharsets.UTF_8);
+    }
+    byte[] raw = decompressToBytes(blob);
+    return (raw == null) ? null : new String(raw, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] decompressToBytes(Blob blob) {
+    if (blob.codec == Codec.NONE) {
+      return bytes(blob);
+    }
+    if (blob.codec != Codec.DEFLATE_FAST && blob.codec != Codec.DEFLATE) {
+      return null;
+    }
+    Inflater inflater = new Inflater();
+    try {
+      ByteBuffer data = blob.data;
+      if (data.hasArray()) {
+        inflater.setInput(data.array(), data.arrayOffset() + data.position(), data.remaining());
+      } else {
+        inflater.setInput(bytes(blob));
+      }
+      byte[] raw = new byte[blob.rawLength];
+      int length = 0;
+      while (length < raw.length && !inflater.finished()) {
+        int inflated = inflater.inflate(raw, length, raw.length - length);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          return null;
+        }
+        length += inflated;
+      }
+      return (length == raw.length) ? raw : null;
+    } catch (DataFormatException e) {
+      return null;
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /************************************************************************************************
+   recode(): blob in a codec the receiver accepts (as-is if possible, so nothing is recompressed)
+   ************************************************************************************************/
+  public static Blob recode(Blob blob, List<Codec> acceptedCodecs) {
+    if (ErasureCoding.isFragment(blob)) {
+      // Can't decompress one fragment on its own: sent as-is, rebuilt by the coordinator
+      return blob;
+    }
+    if (acceptedCodecs != null && acceptedCodecs.contains(blob.codec)) {
+      return blob;
+    }
+    byte[] raw = decompressToBytes(blob);
+    if (raw == null) {
+      return null;
+    }
+    Codec codec = Codec.NONE;
+    if (acceptedCodecs != null) {
+      for (Codec accepted : acceptedCodecs) {
+        if (accepted != Codec.NONE && isSupported(accepted)) {
+          codec = accepted;
+          break;
+        }
+      }
+    }
+    return compress(raw, codec, 0, (blob.hash != null) ? blob.hash : hash(raw));
+  }
+
+  /************************************************************************************************
+   toReadResult(): BlobReadResult --> ReadResult with plain contents (what clients get)
+   ************************************************************************************************/
+  public static ReadResult toReadResult(BlobReadResult blobResult) {
+    ReadResult readResult = new ReadResult();
+    readResult.response = blobResult.response;
+    readResult.version = blobResult.version;
+    readResult.contents = "";
+    if (blobResult.response.acknowledgement == Acknowledgement.SUCCESS) {
+      String contents = ErasureCoding.isFragment(blobResult.blob) ? null : decompress(blobResult.blob);
+      if (contents != null) {
+        readResult.contents = contents;
+      } else {
+        readResult.response = new Response();
+        readResult.response.acknowledgement = Acknowledgement.FAILURE;
+        readResult.response.message = ErasureCoding.isFragment(blobResult.blob) ?
+          "Node only stores one erasure-coded fragment of this file, read it through the coordinator." :
+          "Could not decompress contents (codec " + blobResult.blob.codec + ").";
+        readResult.version = -1;
+      }
+    }
+    return readResult;
+  }
+
+  /************************************************************************************************
+   HELPERS
+   ************************************************************************************************/
+  // Contents of the blob's buffer (without copying when it wraps a whole array)
+  public static byte[] bytes(Blob blob) {
+    ByteBuffer buffer = blob.data;
+    if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+        && buffer.remaining() == buffer.array().length) {
+      return buffer.array();
+    }
+    byte[] copy = new byte[buffer.remaining()];
+    buffer.duplicate().get(copy);
+    return copy;
+  }
+
+  /************************************************************************************************
+   hash(): SHA-256 (hex) of uncompressed contents, identifies contents in FileManager's store
+   ************************************************************************************************/
+  public static String hash(byte[] raw) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(raw);
+      StringBuilder hex = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM has to provide SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // Hash of the blob's contents (computed if the sender didn't set it)
+  public static String hashOf(Blob blob) {
+    if (blob.hash != null) {
+      return blob.hash;
+    }
+    byte[] raw = decompressToBytes(blob);
+    return (raw == null) ? null : hash(raw);
+  }
+
+  private static byte[] deflate(byte[] raw, int level) {
+    Deflater deflater = new Deflater(level);
+    try {
+      deflater.setInput(raw);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 2));
+      byte[] buffer = new byte[BUFFER_SIZE];
+      while (!deflater.finished()) {
+        int length = deflater.deflate(buffer);
+        out.write(buffer, 0, length);
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+}
@@ -18,6 +18,7 @@ class CoordinatorConfigurationManager {
   private NodeInfo nodeInfo;
 
   private int update_frequency;
+  private Log.Level log_level;
 
   public CoordinatorConfigurationManager(NodeInfo info) {
     coordinatorConfig = new CoordinatorConfiguration();
@@ -37,6 +38,10 @@ class CoordinatorConfigurationManager {
     return update_frequency;
   }
 
+  public Log.Level getLogLevel() {
+    return log_level;
+  }
+
   public void printCoordinatorConfiguration() {
     String line = "=================================================================\n";
     String line2 = "-----------------------------------------------------------------\n";
@@ -48,6 +53,19 @@ class CoordinatorConfigurationManager {
                 "\t[N]\t\t\t" + coordinatorConfig.n + "\n" +
                 "\t[Nw]\t\t\t" + coordinatorConfig.nw + "\n" +
                 "\t[Nr]\t\t\t" + coordinatorConfig.nr + "\n" +
+                "\n\t[REPLICATION QUEUE]:\t" + coordinatorConfig.replicationQueueSize + "\n" +
+                "\t[REPLICATION RETRIES]:\t" + coordinatorConfig.replicationRetries + "\n" +
+                "\t[ENTRY SELECTION]:\t" + coordinatorConfig.entrySelection + "\n" +
+                "\n\t[COMPRESSION]:\t\t" + coordinatorConfig.compression +
+                  " (>= " + coordinatorConfig.compressionMinSize + " bytes)\n" +
+                (coordinatorConfig.erasureK > 0 ?
+                  "\t[ERASURE CODING]:\t" + coordinatorConfig.erasureK + "+" + coordinatorConfig.erasureM +
+                  " (>= " + coordinatorConfig.erasureMinSize + " bytes)\n" : "") +
+                (coordinatorConfig.leaseDuration > 0 ?
+                  "\t[READ LEASES]:\t\t" + coordinatorConfig.leaseDuration + " ms\n" : "") +
+                (coordinatorConfig.quorumSelection == QuorumSelection.ADAPTIVE ?
+                  "\t[ADAPTIVE WINDOW]:\t" + coordinatorConfig.adaptiveWindow + " ms\n" +
+                  "\t[ADAPTIVE INTERVAL]:\t" + coordinatorConfig.adaptiveInterval + " ms\n" : "") +
                 line;
     System.out.println(s);
   }
@@ -183,6 +201,13 @@ class CoordinatorConfigurationManager {
     }
 
     update_frequency = Integer.valueOf(coordinatorProperties.getProperty(Property.update_frequency.name()));
+    try {
+      log_level = Log.Level.valueOf(coordinatorProperties.getProperty(Property.log_level.name()));
+    } catch (IllegalArgumentException e) {
+      log_level = Log.Level.valueOf(defaultCoordinatorProperties.getProperty(Property.log_level.name()));
+      System.err.printf("[CoordinatorConfigurationManager] Log level '" + coordinatorProperties.getProperty(Property.log_level.name()) +
+        "' not recognized. Changed to default (%s).\n\n", log_level);
+    }
 
     // [4] Save configs/properties to nodeInfo and coordinatorConfig objects:
     nodeInfo.port = Integer.valueOf(coordinatorProperties.getProperty(Property.port.name()));
@@ -194,6 +219,38 @@ class CoordinatorConfigurationManager {
         "' not recognized. Changed to default (%s).\n\n", coordinatorConfig.quorumSelection);
     }
     coordinatorConfig.n = Integer.valueOf(coordinatorProperties.getProperty(Property.n.name()));
+    coordinatorConfig.replicationQueueSize = Integer.valueOf(coordinatorProperties.getProperty(Property.replication_queue_size.name()));
+    coordinatorConfig.replicationRetries = Integer.valueOf(coordinatorProperties.getProperty(Property.replication_retries.name()));
+    coordinatorConfig.adaptiveWindow = Integer.valueOf(coordinatorProperties.getProperty(Property.adaptive_window.name()));
+    coordinatorConfig.adaptiveInterval = Integer.valueOf(coordinatorProperties.getProperty(Property.adaptive_interval.name()));
+    coordinatorConfig.rebalanceRate = Integer.valueOf(coordinatorProperties.getProperty(Property.rebalance_rate.name()));
+    coordinatorConfig.heartbeatInterval = Integer.valueOf(coordinatorProperties.getProperty(Property.heartbeat_interval.name()));
+    coordinatorConfig.phiThreshold = Double.valueOf(coordinatorProperties.getProperty(Property.phi_threshold.name()));
+    try {
+      coordinatorConfig.compression = Codec.valueOf(coordinatorProperties.getProperty(Property.compression.name()));
+    } catch (IllegalArgumentException e) {
+      coordinatorConfig.compression = Codec.valueOf(defaultCoordinatorProperties.getProperty(Property.compression.name()));
+      System.err.printf("[CoordinatorConfigurationManager] Codec enum '" + coordinatorProperties.getProperty(Property.compression.name()) +
+        "' not recognized. Changed to default (%s).\n\n", coordinatorConfig.compression);
+    }
+    coordinatorConfig.compressionMinSize = Integer.valueOf(coordinatorProperties.getProperty(Property.compression_min_size.name()));
+    coordinatorConfig.erasureK = Integer.valueOf(coordinatorProperties.getProperty(Property.erasure_k.name()));
+    coordinatorConfig.erasureM = Integer.valueOf(coordinatorProperties.getProperty(Property.erasure_m.name()));
+    coordinatorConfig.erasureMinSize = Integer.valueOf(coordinatorProperties.getProperty(Property.erasure_min_size.name()));
+    coordinatorConfig.leaseDuration = Integer.valueOf(coordinatorProperties.getProperty(Property.lease_duration.name()));
+    coordinatorConfig.inlineMaxSize = Integer.valueOf(coordinatorProperties.getProperty(Property.inline_max_size.name()));
+    try {
+      coordinatorConfig.entrySelection = EntrySelection.valueOf(coordinatorProperties.getProperty(Property.entry_selection.name()));
+    } catch (IllegalArgumentException e) {
+      coordinatorConfig.entrySelection = EntrySelection.valueOf(defaultCoordinatorProperties.getProperty(Property.entry_selection.name()));
+      System.err.printf("[CoordinatorConfigurationManager] EntrySelection enum '" + coordinatorProperties.getProperty(Property.entry_selection.name()) +
+        "' not recognized. Changed to default (%s).\n\n", coordinatorConfig.entrySelection);
+    }
+    coordinatorConfig.admissionMaxConcurrency = Integer.valueOf(coordinatorProperties.getProperty(Property.admission_max_concurrency.name()));
+    coordinatorConfig.admissionQueueSize = Integer.valueOf(coordinatorProperties.getProperty(Property.admission_queue_size.name()));
+    coordinatorConfig.writeCoalescing = Boolean.valueOf(coordinatorProperties.getProperty(Property.write_coalescing.name()));
+    coordinatorConfig.readCoalescing = Boolean.valueOf(coordinatorProperties.getProperty(Property.read_coalescing.name()));
+    coordinatorConfig.probeBatchSize = Integer.valueOf(coordinatorProperties.getProperty(Property.probe_batch_size.name()));
 
     if (coordinatorConfig.quorumSelection == QuorumSelection.USER_CONFIG) {
       if (coordinatorProperties.getProperty(Property.nw.name()) != null) {
@@ -220,6 +277,7 @@ class CoordinatorConfigurationManager {
     [1]: Check validity of N, reset to min (7) if needed:
     *************************************************************************/
     int minimum_n = Integer.valueOf(defaultCoordinatorProperties.getProperty("minimum_n"));
+    coordinatorConfig.minimumN = minimum_n;
     if (coordinatorConfig.n < minimum_n) {
       System.err.printf("[CoordinatorConfigurationManager] N entered (%d) is less than minumum required number of replicas. Changed to default (%d).\n\n", coordinatorConfig.n, minimum_n);
       coordinatorConfig.n = minimum_n;
@@ -242,55 +300,80 @@ class CoordinatorConfigurationManager {
     }
     // Separate IF so if QuorumSelection changed, can still calculate nw, nr
     if (coordinatorConfig.quorumSelection != QuorumSelection.USER_CONFIG) {
-      if (coordinatorConfig.quorumSelection == QuorumSelection.READ_HEAVY) {
-        /**********************************************************************
-          [READ_HEAVY] Minimize size of read quorum
-        **********************************************************************/
-        // Set Nw to MAXIMUM possible:
-        coordinatorConfig.nw = coordinatorConfig.n;
-        // Set Nr to MINIMUM possible:
-        coordinatorConfig.nr = 1;
-
-      } else if (coordinatorConfig.quorumSelection == QuorumSelection.WRITE_HEAVY) {
-        /**********************************************************************
-          [WRITE_HEAVY] Minimize size of write quorum
-        **********************************************************************/
-        // Set Nw to MINIMUM possible:
-        coordinatorConfig.nw = (coordinatorConfig.n/2) + 1;
-        // Set Nr to MAXIMIM possible:
-        coordinatorConfig.nr = coordinatorConfig.n;
-
-      } else if (coordinatorConfig.quorumSelection == QuorumSelection.RANDOM) {
-        /**********************************************************************
-          [RANDOM] Select random Nw and Nr within valid range
-        **********************************************************************/
-        Random r = new Random();
-
-        // Randomly select an Nw within valid range:
-        int nw_min = (coordinatorConfig.n/2) + 1;
-        int nw_range = coordinatorConfig.n - nw_min;
-        coordinatorConfig.nw = nw_min + r.nextInt(nw_range);
-
-        // Randomly select an Nr within valid range:
-        int nr_min = (coordinatorConfig.n - coordinatorConfig.nw) + 1;
-        int nr_range = coordinatorConfig.n - nr_min;
-        coordinatorConfig.nr = nr_min + r.nextInt(nr_range);
-
-      } else if (coordinatorConfig.quorumSelection == QuorumSelection.CONSISTENT) {
-        /**********************************************************************
-          [CONSISTENT] Nw and Nr set to N (fully consistent system)
-        **********************************************************************/
-        coordinatorConfig.nw = coordinatorConfig.n;
-        coordinatorConfig.nr = coordinatorConfig.n;
-      } else {
-        /* ERROR: this shouldnt happen since converted to enum earlier */
-        System.err.printf("[CoordinatorConfigurationManager] UNKNOWN QUORUM SELECTION OF '%s'.\n", coordinatorConfig.quorumSelection);
-        System.exit(1);
-      }
+      selectNrNw(coordinatorConfig);
     }
   }
 
+  /************************************************************************************************
+   selectNrNw(): sets Nw and Nr for config's N and QuorumSelection. Also used by the
+   coordinator to recompute quorum sizes when nodes join or leave a running DFS.
+   ************************************************************************************************/
+  public static void selectNrNw(CoordinatorConfiguration config) {
+    if (config.quorumSelection == QuorumSelection.READ_HEAVY) {
+      /**********************************************************************
+        [READ_HEAVY] Minimize size of read quorum
+      **********************************************************************/
+      // Set Nw to MAXIMUM possible:
+      config.nw = config.n;
+      // Set Nr to MINIMUM possible:
+      config.nr = 1;
 
+    } else if (config.quorumSelection == QuorumSelection.WRITE_HEAVY) {
+      /**********************************************************************
+        [WRITE_HEAVY] Minimize size of write quorum
+      **********************************************************************/
+      // Set Nw to MINIMUM possible:
+      config.nw = (config.n/2) + 1;
+      // Set Nr to MAXIMIM possible:
+      config.nr = config.n;
 
+    } else if (config.quorumSelection == QuorumSelection.RANDOM) {
+      /**********************************************************************
+        [RANDOM] Select random Nw and Nr within valid range
+      **********************************************************************/
+      Random r = new Random();
+
+      // Randomly select an Nw within valid range:
+      int nw_min = (config.n/2) + 1;
+      int nw_range = config.n - nw_min;
+      config.nw = nw_min + r.nextInt(nw_range);
+
+      // Randomly select an Nr within valid range:
+      int nr_min = (config.n - config.nw) + 1;
+      int nr_range = config.n - nr_min;
+      config.nr = nr_min + r.nextInt(nr_range);
+
+    } else if (config.quorumSelection == QuorumSelection.ADAPTIVE) {
+      /**********************************************************************
+        [ADAPTIVE] Start balanced, coordinator moves Nw and Nr at runtime
+        based on the observed read/write mix (see QuorumTuner).
+        Keeps current sizes when they are still valid for N.
+      **********************************************************************/
+      if (config.nw <= config.n/2 || config.nw > config.n ||
+          config.nr + config.nw <= config.n || config.nr > config.n) {
+        config.nw = (config.n/2) + 1;
+        config.nr = (config.n - config.nw) + 1;
+      }
+
+    } else if (config.quorumSelection == QuorumSelection.USER_CONFIG) {
+      /**********************************************************************
+        [USER_CONFIG] (only when N changes at runtime) Keep user's sizes,
+        clamped back into the valid range for the new N
+      **********************************************************************/
+      config.nw = Math.min(Math.max(config.nw, (config.n/2) + 1), config.n);
+      config.nr = Math.min(Math.max(config.nr, (config.n - config.nw) + 1), config.n);
+
+    } else if (config.quorumSelection == QuorumSelection.CONSISTENT) {
+      /**********************************************************************
+        [CONSISTENT] Nw and Nr set to N (fully consistent system)
+      **********************************************************************/
+      config.nw = config.n;
+      config.nr = config.n;
+    } else {
+      /* ERROR: this shouldnt happen since converted to enum earlier */
+      System.err.printf("[CoordinatorConfigurationManager] UNKNOWN QUORUM SELECTION OF '%s'.\n", config.quorumSelection);
+      System.exit(1);
+    }
+  }
 
 }
@@ -8,7 +8,9 @@ import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocol;
 
 import java.util.*;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 class DFSCoordinator {
 
@@ -20,18 +22,116 @@ class DFSCoordinator {
   private Semaphore readyLock = new Semaphore(1);
   private boolean ready;
 
-  // Nodes
+  // Nodes (joining nodes are still being rebalanced and are not part of any quorum yet)
   private Semaphore nodesListLock = new Semaphore(1);
   private ArrayList<NodeInfo> nodes;
+  private ArrayList<NodeInfo> joiningNodes = new ArrayList<NodeInfo>();
+  private Rebalancer rebalancer;
+  private static final long MEMBERSHIP_RETRY_MILLIS = 2000;
+  // At most one task retries lowering Nr after membership changes (to the latest target)
+  private ScheduledExecutorService membershipRetries = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "membership-retry");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+  private Semaphore readQuorumRetryLock = new Semaphore(1);
+  private ScheduledFuture<?> readQuorumRetry = null;
+  private int readQuorumRetryTarget;
 
   // Open/queued files
-  private Semaphore queuedFileListLock = new Semaphore(1);
-  private HashMap<String, Semaphore> queuedFiles = new HashMap<String, Semaphore>();
+  private ConcurrentHashMap<String, Semaphore> queuedFiles = new ConcurrentHashMap<String, Semaphore>();
+  // Writes in flight per file: writes only hold the file's lock while reserving a version, so
+  // reads must not answer with a version before its write has finished (entry dropped when idle)
+  private static class FileWrites {
+    int highestReserved;
+    HashMap<Integer, CountDownLatch> inFlight = new HashMap<Integer, CountDownLatch>();
+  }
+  private Semaphore writesLock = new Semaphore(1);
+  private HashMap<String, FileWrites> writesInFlight = new HashMap<String, FileWrites>();
+
+  // Background pushes to replicas outside the write quorum
+  private ReplicationManager replicationManager;
+
+  // Read leases held by clients (writes to a leased file wait for them to run out)
+  private LeaseManager leaseManager;
+
+  // Most recent version of every file (serves listing without asking nodes)
+  private FileCatalog catalog = new FileCatalog();
+
+  // Quorum epochs: reads/writes hold the read lock for their duration, changing Nr/Nw
+  // takes the write lock so no request ever mixes quorum sizes from two epochs
+  private static final long RECONFIGURE_TIMEOUT_MILLIS = 5000;
+  private ReentrantReadWriteLock configLock = new ReentrantReadWriteLock(true);
+  private int epoch = 0;
+  // Smallest Nw any file's newest version may have been written with (since last full sync)
+  private AtomicInteger minWriteQuorumSinceSync;
+  // Fewest nodes any erasure-coded version was striped over (MAX_VALUE == none yet). Stripes are
+  // never replicated in the background, so unlike the above this is never reset
+  private AtomicInteger minStripeWidth = new AtomicInteger(Integer.MAX_VALUE);
+
+  // Only used if QuorumSelection is ADAPTIVE
+  private QuorumTuner quorumTuner;
+
+  // Latency histograms (shared with the rest of this node)
+  private Metrics metrics;
+
+  // Node health: heartbeats (is node up?) and per-node circuit breakers (are its RPCs failing?)
+  private FailureDetector failureDetector;
+  private ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<String, CircuitBreaker>();
 
-  public DFSCoordinator(NodeInfo info, CoordinatorConfiguration config) {
+  // Version probes of concurrent requests, sent to each node in batches (null == one call per probe)
+  private ProbeBatcher probeBatcher;
+
+  // Bounds the reads/writes in progress (excess ones are answered OVERLOADED)
+  private AdmissionController admissionController;
+
+  // Entry nodes for clients, picked by the load nodes report with their heartbeats
+  private EntrySelector entrySelector;
+  private long lastSelfReportMillis = 0;
+
+  // Parallel reads of erasure-coded fragments
+  private ExecutorService fragmentReaders = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "fragment-reader");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  // commitStripe() calls once a striped write has landed on every node of its stripe
+  private ExecutorService stripeCommitter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "stripe-committer");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  public DFSCoordinator(NodeInfo info, CoordinatorConfiguration config, Metrics metrics) {
     ready = false;
     nodeInfo = info;
     coordinatorConfig = config;
+    this.metrics = metrics;
+    failureDetector = new FailureDetector(coordinatorConfig.phiThreshold, coordinatorConfig.heartbeatInterval);
+    replicationManager = new ReplicationManager(this, coordinatorConfig.replicationQueueSize, coordinatorConfig.replicationRetries);
+    minWriteQuorumSinceSync = new AtomicInteger(coordinatorConfig.nw);
+    rebalancer = new Rebalancer(this, coordinatorConfig.rebalanceRate * 1024L);
+    leaseManager = new LeaseManager(coordinatorConfig.leaseDuration);
+    entrySelector = new EntrySelector(coordinatorConfig.entrySelection);
+    admissionController = new AdmissionController(coordinatorConfig.admissionMaxConcurrency, coordinatorConfig.admissionQueueSize);
+    if (coordinatorConfig.probeBatchSize > 1) {
+      probeBatcher = new ProbeBatcher(this, coordinatorConfig.probeBatchSize);
+    }
+
+    if (coordinatorConfig.quorumSelection == QuorumSelection.ADAPTIVE) {
+      quorumTuner = new QuorumTuner(this, coordinatorConfig.adaptiveWindow, coordinatorConfig.adaptiveInterval);
+      quorumTuner.start();
+    }
 
     try {
       nodesListLock.acquire();
@@ -40,7 +140,7 @@ class DFSCoordinator {
       printNodesList();
       nodesListLock.release();
     } catch (InterruptedException ie) {
-      System.err.printf("[DFSCoordinator] InterruptedException while acquiring lock on nodes list.\n");
+      Log.error("[DFSCoordinator] InterruptedException while acquiring lock on nodes list.");
     }
   }
 
@@ -48,52 +148,228 @@ class DFSCoordinator {
     try {
       readyLock.acquire();
     } catch (InterruptedException ie) {
-      System.err.printf("[DFSCoordinator] InterruptedException while acquiring lock on 'ready' flag.\n");
+      Log.error("[DFSCoordinator] InterruptedException while acquiring lock on 'ready' flag.");
     }
     boolean result = ready;
     readyLock.release();
     return result;
   }
 
+  public FileCatalog getCatalog() {
+    return catalog;
+  }
+
+  public AdmissionController getAdmissionController() {
+    return admissionController;
+  }
+
+  public LeaseManager getLeaseManager() {
+    return leaseManager;
+  }
+
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  public CoordinatorConfiguration getCoordinatorConfiguration() {
+    return coordinatorConfig;
+  }
+
   /************************************************************************************************
-   *************************************** FILE LOCK METHODS **************************************
+   shutdown(): stops every background thread of this coordinator (pushes, retries and probes
+   still queued are dropped)
+   ************************************************************************************************/
+  public void shutdown() {
+    replicationManager.shutdown();
+    rebalancer.shutdown();
+    if (quorumTuner != null) { quorumTuner.shutdown(); }
+    if (probeBatcher != null) { probeBatcher.shutdown(); }
+    membershipRetries.shutdownNow();
+    fragmentReaders.shutdownNow();
+    stripeCommitter.shutdownNow();
+  }
+
+  /************************************************************************************************
+   ******************************** QUORUM EPOCH / ADAPTIVE METHODS *******************************
    ************************************************************************************************/
 
-  public void acquireLockOnFile(String filename) {
+  public void beginOperation() {
+    configLock.readLock().lock();
+  }
+
+  public void endOperation() {
+    configLock.readLock().unlock();
+  }
+
+  public void recordRead(long latencyMillis, int quorumSize) {
+    if (quorumTuner != null) { quorumTuner.recordRead(latencyMillis, quorumSize); }
+  }
+
+  public void recordWrite(long latencyMillis, int quorumSize, boolean striped) {
+    if (quorumTuner != null) { quorumTuner.recordWrite(latencyMillis, quorumSize); }
+    minWriteQuorumSinceSync.accumulateAndGet(quorumSize, Math::min);
+    if (striped) {
+      minStripeWidth.accumulateAndGet(quorumSize, Math::min);
+    }
+  }
+
+  // Smallest Nr whose read quorums still overlap every stripe
+  private int stripeFloorNr() {
+    return coordinatorConfig.n - minStripeWidth.get() + 1;
+  }
+
+  /************************************************************************************************
+   applyQuorums(): waits for in-flight requests of current epoch, then starts a new one
+   ************************************************************************************************/
+  private boolean applyQuorums(int nr, int nw) {
+    try {
+      if (!configLock.writeLock().tryLock(RECONFIGURE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        Log.warn("[DFSCoordinator] Timed out waiting for in-flight requests, keeping Nr/Nw %d/%d.", coordinatorConfig.nr, coordinatorConfig.nw);
+        return false;
+      }
+    } catch (InterruptedException ie) {
+      Log.error("[DFSCoordinator] InterruptedException while acquiring lock on quorum configuration.");
+      return false;
+    }
     try {
-      queuedFileListLock.acquire();
-      if (!queuedFiles.containsKey(filename)) {
-        queuedFiles.put(filename, new Semaphore(1));
+      return applyQuorumsLocked(nr, nw);
+    } finally {
+      configLock.writeLock().unlock();
+    }
+  }
+
+  // Caller must hold configLock's write lock
+  private boolean applyQuorumsLocked(int nr, int nw) {
+    int n = coordinatorConfig.n;
+    if (nw <= n/2 || nw > n || nr < 1 || nr > n || nr + nw <= n) {
+      Log.warn("[DFSCoordinator] Ignoring invalid quorum sizes Nr = %d, Nw = %d (N = %d).", nr, nw, n);
+      return false;
+    }
+    if (nr < stripeFloorNr()) {
+      Log.info("[DFSCoordinator] Not lowering Nr to %d, erasure-coded files may be on only %d nodes.", nr, minStripeWidth.get());
+      return false;
+    }
+    // Lowering Nr is only safe if every file's newest version is on more than N-Nr nodes
+    if (nr < coordinatorConfig.nr && nr + minWriteQuorumSinceSync.get() <= n) {
+      if (replicationManager.isFullyReplicated()) {
+        minWriteQuorumSinceSync.set(n);
+      } else {
+        Log.info("[DFSCoordinator] Not lowering Nr to %d yet, background replication still catching up.", nr);
+        return false;
       }
-      Semaphore fileLock = queuedFiles.get(filename);
-      fileLock.acquire();
+    }
+    epoch++;
+    coordinatorConfig.nr = nr;
+    coordinatorConfig.nw = nw;
+    Log.info("[DFSCoordinator] Quorum EPOCH %d: Nr = %d, Nw = %d (N = %d)", epoch, nr, nw, n);
+    return true;
+  }
+
+  /************************************************************************************************
+   reconfigureQuorums(): moves to (Nr, Nw) one epoch at a time so every step keeps
+   Nr + Nw > N for requests of the previous epoch as well as the new one
+   ************************************************************************************************/
+  public void reconfigureQuorums(int targetNr, int targetNw) {
+    // [1] Growing a quorum only ever adds overlap
+    if (targetNr > coordinatorConfig.nr && !applyQuorums(targetNr, coordinatorConfig.nw)) { return; }
+    if (targetNw > coordinatorConfig.nw && !applyQuorums(coordinatorConfig.nr, targetNw)) { return; }
+    // [2] Shrinking Nw: reads of the previous epoch already use an Nr that overlaps targetNw
+    if (targetNw < coordinatorConfig.nw && !applyQuorums(coordinatorConfig.nr, targetNw)) { return; }
+    // [3] Shrinking Nr: gated on replication inside applyQuorums()
+    if (targetNr < coordinatorConfig.nr) { applyQuorums(targetNr, coordinatorConfig.nw); }
+  }
+
+  /************************************************************************************************
+   ************************************** NODE HEALTH METHODS *************************************
+   ************************************************************************************************/
+
+  private static String nodeKey(NodeInfo n) {
+    return n.ip + ":" + Integer.toString(n.port);
+  }
+
+  private CircuitBreaker breakerFor(NodeInfo n) {
+    CircuitBreaker breaker = breakers.get(nodeKey(n));
+    if (breaker == null) {
+      breakers.putIfAbsent(nodeKey(n), new CircuitBreaker());
+      breaker = breakers.get(nodeKey(n));
+    }
+    return breaker;
+  }
+
+  /**
+   * Node is worth contacting: heartbeats are arriving and its RPCs aren't failing
+   */
+  public boolean isAvailable(NodeInfo n) {
+    if (n.equals(nodeInfo)) { return true; }
+    return failureDetector.isAlive(n) && breakerFor(n).allowsRequests();
+  }
+
+  public void recordSuccess(NodeInfo n) {
+    breakerFor(n).recordSuccess();
+  }
+
+  public void recordFailure(NodeInfo n) {
+    breakerFor(n).recordFailure();
+  }
+
+  public Response heartbeat(NodeInfo n, NodeLoad load) {
+    Response response = new Response();
+    if (failureDetector.heartbeat(n)) {
+      entrySelector.report(n, load);
+      response.acknowledgement = Acknowledgement.SUCCESS;
+      response.message = "";
+    } else {
+      response.acknowledgement = Acknowledgement.FAILURE;
+      response.message = "Node is not part of the DFS";
+    }
+    return response;
+  }
+
+  /************************************************************************************************
+   *************************************** FILE LOCK METHODS **************************************
+   ************************************************************************************************/
+
+  /**
+   * Waits for the file's lock until the deadline passes
+   * @return false if the lock could not be acquired in time
+   */
+  public boolean acquireLockOnFile(String filename, Deadline deadline) {
+    queuedFiles.putIfAbsent(filename, new Semaphore(1));
+    Semaphore fileLock = queuedFiles.get(filename);
+    long start = System.nanoTime();
+    try {
+      return fileLock.tryAcquire(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
     } catch (InterruptedException ie) {
-      System.err.printf("[DFSCoordinator] InterruptedException while acquiring lock on file '%s'.\n", filename);
+      Log.error("[DFSCoordinator] InterruptedException while acquiring lock on file '%s'.", filename);
+      return false;
+    } finally {
+      metrics.record(Metrics.LOCK_WAIT, start);
     }
   }
 
   public void releaseLockOnFile(String filename) {
     Semaphore fileLock = queuedFiles.get(filename);
     fileLock.release();
-    queuedFileListLock.release();
   }
 
   /************************************************************************************************
    *************************************** ALL PRINT METHODS **************************************
    ************************************************************************************************/
 
+  private static final String LINE = "============================================================";
+  private static final String LINE2 = "------------------------------------------------------------\n";
+
   public String fileSourceAndVersionToString(FileInfo f) {
     return "[" + f.sourceNode.ip + ":" + Integer.toString(f.sourceNode.port) + "]:\t" + (f.exists ? Integer.toString(f.version) : "--") + "\n";
   }
 
   public void printFileVersionsByNode(ArrayList<FileInfo> fileInfos) {
-    String line = "============================================================";
-    String line2 = "------------------------------------------------------------\n";
-    String listAsString = "\n" + line + "\n[QUORUM'S INFO ON FILE '" + fileInfos.get(0).filename + "']: \n" + line2;
+    if (!Log.isEnabled(Log.Level.DEBUG)) { return; }
+    StringBuilder listAsString = new StringBuilder("\n" + LINE + "\n[QUORUM'S INFO ON FILE '" + fileInfos.get(0).filename + "']: \n" + LINE2);
     for (FileInfo f : fileInfos) {
-      listAsString += "\t" + fileSourceAndVersionToString(f);
+      listAsString.append("\t").append(fileSourceAndVersionToString(f));
     }
-    System.out.println(listAsString + line + "\n");
+    Log.debug("%s", listAsString.append(LINE).append("\n").toString());
   }
 
   public String fileNameAndVersionToString(FileInfo f) {
@@ -101,133 +377,341 @@ class DFSCoordinator {
   }
 
   public void printAllFileVersions(ArrayList<FileInfo> fileInfos) {
-    String line = "============================================================";
-    String line2 = "------------------------------------------------------------\n";
-    String listAsString = "\n" + line + "\n[MOST RECENT VERISONS OF ALL FILES]: \n" + line2;
+    if (!Log.isEnabled(Log.Level.DEBUG)) { return; }
+    StringBuilder listAsString = new StringBuilder("\n" + LINE + "\n[MOST RECENT VERISONS OF ALL FILES]: \n" + LINE2);
     for (FileInfo f : fileInfos) {
-      listAsString += "\t" + fileNameAndVersionToString(f);
+      listAsString.append("\t").append(fileNameAndVersionToString(f));
     }
-    System.out.println(listAsString + line + "\n");
+    Log.debug("%s", listAsString.append(LINE).append("\n").toString());
   }
 
   public String nodeInfoToString(NodeInfo n) {
     return "[" + n.ip + ":" + Integer.toString(n.port) + "]" + (n.isCoordinator ? "\t*COORDINATOR\t" : "") + "\n";
   }
 
+  // Only called on membership changes (caller holds nodes list lock)
   public void printNodesList() {
-    String line = "============================================================";
-    String line2 = "------------------------------------------------------------\n";
-    String listAsString = "\n" + line + "\n[LIST OF NODES IN DFS (" + Integer.toString(nodes.size()) + " of " + Integer.toString(coordinatorConfig.n) + ")]: \n" + line2;
+    if (!Log.isEnabled(Log.Level.INFO)) { return; }
+    StringBuilder listAsString = new StringBuilder("\n" + LINE + "\n[LIST OF NODES IN DFS (" + Integer.toString(nodes.size()) + " of " + Integer.toString(coordinatorConfig.n) + ")]: \n" + LINE2);
     for (NodeInfo n : nodes) {
-      listAsString += "\t" + nodeInfoToString(n);
+      listAsString.append("\t").append(nodeInfoToString(n));
     }
-    System.out.println(listAsString + line + "\n");
+    Log.info("%s", listAsString.append(LINE).append("\n").toString());
   }
 
   /************************************************************************************************
    addNode():
    ************************************************************************************************/
   public Response addNode(NodeInfo newNode) {
-    System.out.printf("[DFSCoordinator] Received JOIN request from '%s:%d' --> ",
-            newNode.ip,
-            newNode.port);
     Response response = new Response();
 
     try {
       readyLock.acquire();
     } catch (InterruptedException ie) {
-      System.err.printf("[DFSCoordinator] InterruptedException while acquiring lock on 'ready' flag.\n");
+      Log.error("[DFSCoordinator] InterruptedException while acquiring lock on 'ready' flag.");
     }
 
     if (ready) {
-      response.acknowledgement = Acknowledgement.FAILURE;
-      response.message = "DFS is at full capacity (" + Integer.toString(coordinatorConfig.n) + " nodes)";
-      System.out.printf("REJECTED\n");
+      // DFS already running --> copy data over first, node joins quorums once it has caught up
+      boolean alreadyMember = false;
+      try {
+        nodesListLock.acquire();
+        alreadyMember = nodes.contains(newNode) || joiningNodes.contains(newNode);
+        if (!alreadyMember) {
+          joiningNodes.add(newNode);
+        }
+        nodesListLock.release();
+      } catch (InterruptedException ie) {
+        Log.error("[DFSCoordinator] InterruptedException while acquiring lock on nodes list.");
+      }
+      if (alreadyMember) {
+        response.acknowledgement = Acknowledgement.FAILURE;
+        response.message = "Node is already part of the DFS";
+        Log.info("[DFSCoordinator] Received JOIN request from '%s:%d' --> REJECTED", newNode.ip, newNode.port);
+      } else {
+        replicationManager.rememberNode(newNode);
+        failureDetector.track(newNode);
+        rebalancer.addJoiningNode(newNode);
+        response.acknowledgement = Acknowledgement.SUCCESS;
+        response.message = "Joined running DFS, copying data to node before adding it to quorums";
+        Log.info("[DFSCoordinator] Received JOIN request from '%s:%d' --> ACCEPTED (JOINING)", newNode.ip, newNode.port);
+      }
     } else {
 
       try {
         nodesListLock.acquire();
         nodes.add(newNode);
-        System.out.printf("ACCEPTED\n");
+        failureDetector.track(newNode);
+        Log.info("[DFSCoordinator] Received JOIN request from '%s:%d' --> ACCEPTED", newNode.ip, newNode.port);
         printNodesList();
         nodesListLock.release();
       } catch (InterruptedException ie) {
-        System.err.printf("[DFSCoordinator] InterruptedException while acquiring lock on nodes list.\n");
+        Log.error("[DFSCoordinator] InterruptedException while acquiring lock on nodes list.");
       }
 
       response.acknowledgement = Acknowledgement.SUCCESS;
       response.message = "";
       if (!ready && nodes.size() == coordinatorConfig.n) {
         ready = true;
+        rebuildCatalogInBackground();
       }
     }
     readyLock.release();
     return response;
   }
 
+  /************************************************************************************************
+   promoteNode(): joining node has caught up, make it a full member and grow N
+   ************************************************************************************************/
+  public void promoteNode(NodeInfo node) {
+    configLock.writeLock().lock();
+    try {
+      nodesListLock.acquire();
+      boolean stillJoining = joiningNodes.remove(node);
+      if (stillJoining) {
+        nodes.add(node);
+        coordinatorConfig.n++;
+        printNodesList();
+      }
+      nodesListLock.release();
+      if (stillJoining) {
+        Log.info("[DFSCoordinator] Node %s:%d promoted, N is now %d.", node.ip, node.port, coordinatorConfig.n);
+        applyMembershipQuorums();
+      }
+    } catch (InterruptedException ie) {
+      Log.error("[DFSCoordinator] InterruptedException while acquiring lock on nodes list.");
+    } finally {
+      configLock.writeLock().unlock();
+    }
+  }
+
+  public void abandonJoin(NodeInfo node) {
+    try {
+      nodesListLock.acquire();
+      joiningNodes.remove(node);
+      nodesListLock.release();
+    } catch (InterruptedException ie) {
+      Log.error("[DFSCoordinator] InterruptedException while acquiring lock on nodes list.");
+    }
+    replicationManager.forgetNode(node);
+    failureDetector.forget(node);
+    entrySelector.forget(node);
+    Log.warn("[DFSCoordinator] Node %s:%d failed to join.", node.ip, node.port);
+  }
+
+  /************************************************************************************************
+   removeNode():
+   ************************************************************************************************/
+  public Response removeNode(NodeInfo node) {
+    Response response = new Response();
+    response.acknowledgement = Acknowledgement.FAILURE;
+    response.message = "";
+
+    if (node.equals(nodeInfo)) {
+      response.message = "Coordinator node cannot leave the DFS";
+      Log.info("[DFSCoordinator] Received LEAVE request from '%s:%d' --> REJECTED", node.ip, node.port);
+      return response;
+    }
+
+    boolean isReady = isReady();
+    configLock.writeLock().lock();
+    try {
+      nodesListLock.acquire();
+      if (joiningNodes.remove(node)) {
+        response.acknowledgement = Acknowledgement.SUCCESS;
+      } else if (!nodes.contains(node)) {
+        response.message = "Node is not part of the DFS";
+      } else if (isReady && coordinatorConfig.n - 1 < coordinatorConfig.minimumN) {
+        response.message = "DFS cannot shrink below " + Integer.toString(coordinatorConfig.minimumN) + " nodes";
+      } else {
+        nodes.remove(node);
+        response.acknowledgement = Acknowledgement.SUCCESS;
+        if (isReady) {
+          coordinatorConfig.n--;
+          // The node may have held a copy of any file's newest version
+          minWriteQuorumSinceSync.updateAndGet(current -> Math.max(current - 1, 1));
+          minStripeWidth.updateAndGet(current -> (current == Integer.MAX_VALUE) ? current : Math.max(current - 1, 1));
+        }
+      }
+      printNodesList();
+      nodesListLock.release();
+    } catch (InterruptedException ie) {
+      Log.error("[DFSCoordinator] InterruptedException while acquiring lock on nodes list.");
+    }
+
+    if (response.acknowledgement == Acknowledgement.SUCCESS) {
+      Log.info("[DFSCoordinator] Received LEAVE request from '%s:%d' --> REMOVED", node.ip, node.port);
+      replicationManager.forgetNode(node);
+      failureDetector.forget(node);
+      entrySelector.forget(node);
+      breakers.remove(nodeKey(node));
+      if (isReady) {
+        applyMembershipQuorums();
+      }
+    } else {
+      Log.info("[DFSCoordinator] Received LEAVE request from '%s:%d' --> REJECTED (%s)", node.ip, node.port, response.message);
+    }
+    configLock.writeLock().unlock();
+    return response;
+  }
+
+  /************************************************************************************************
+   applyMembershipQuorums(): recompute Nr/Nw after N changed (caller holds config write lock).
+   If Nr can't safely drop to its new value yet, it stays higher and is lowered later.
+   ************************************************************************************************/
+  private void applyMembershipQuorums() {
+    CoordinatorConfiguration target = coordinatorConfig.deepCopy();
+    CoordinatorConfigurationManager.selectNrNw(target);
+
+    int n = coordinatorConfig.n;
+    int safeNr = target.nr;
+    if (target.nr + minWriteQuorumSinceSync.get() <= n) {
+      if (replicationManager.isFullyReplicated()) {
+        minWriteQuorumSinceSync.set(n);
+      } else {
+        safeNr = Math.min(n - minWriteQuorumSinceSync.get() + 1, n);
+      }
+    }
+    safeNr = Math.max(safeNr, n - target.nw + 1);
+    safeNr = Math.min(Math.max(safeNr, stripeFloorNr()), n);
+
+    // Assign directly: in-flight requests have drained, and safeNr overlaps all existing data
+    epoch++;
+    coordinatorConfig.nr = safeNr;
+    coordinatorConfig.nw = target.nw;
+    Log.info("[DFSCoordinator] Quorum EPOCH %d: Nr = %d, Nw = %d (N = %d)", epoch, safeNr, target.nw, n);
+
+    if (safeNr > target.nr) {
+      lowerReadQuorumLater(target.nr);
+    }
+  }
+
+  private void lowerReadQuorumLater(int targetNr) {
+    readQuorumRetryLock.acquireUninterruptibly();
+    readQuorumRetryTarget = targetNr;
+    if (readQuorumRetry == null) {
+      readQuorumRetry = membershipRetries.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          retryLowerReadQuorum();
+        }
+      }, MEMBERSHIP_RETRY_MILLIS, MEMBERSHIP_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    readQuorumRetryLock.release();
+  }
+
+  private void retryLowerReadQuorum() {
+    readQuorumRetryLock.acquireUninterruptibly();
+    int targetNr = readQuorumRetryTarget;
+    readQuorumRetryLock.release();
+
+    int nr = Math.max(targetNr, coordinatorConfig.n - coordinatorConfig.nw + 1);
+    nr = Math.min(Math.max(nr, stripeFloorNr()), coordinatorConfig.n);
+    if (coordinatorConfig.nr <= nr || applyQuorums(nr, coordinatorConfig.nw)) {
+      readQuorumRetryLock.acquireUninterruptibly();
+      if (readQuorumRetryTarget == targetNr && readQuorumRetry != null) {
+        readQuorumRetry.cancel(false);
+        readQuorumRetry = null;
+      }
+      readQuorumRetryLock.release();
+    }
+  }
+
+  /************************************************************************************************
+   rebuildCatalogInBackground(): picks up any files nodes already hold
+   ************************************************************************************************/
+  public void rebuildCatalogInBackground() {
+    Thread rebuild = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        beginOperation();
+        ArrayList<NodeInfo> readQuorum = buildReadQuorum();
+        endOperation();
+        catalog.rebuild(readQuorum);
+      }
+    });
+    rebuild.setDaemon(true);
+    rebuild.start();
+  }
+
   /************************************************************************************************
    getRandomNode():
    ************************************************************************************************/
   public NodeInfo getRandomNode() {
-    Random r = new Random();
+    ArrayList<NodeInfo> candidates;
     try {
       nodesListLock.acquire();
-      NodeInfo randomNode = nodes.get(r.nextInt(nodes.size()));
+      candidates = new ArrayList<NodeInfo>(nodes);
       nodesListLock.release();
-      return randomNode;
     } catch (InterruptedException ie) {
-      System.err.printf("[DFSCoordinator] InterruptedException while acquiring lock on nodes list.\n");
+      Log.error("[DFSCoordinator] InterruptedException while acquiring lock on nodes list.");
+      return null;
     }
-    return null;
+
+    // Skip nodes that look down (unless they all do)
+    ArrayList<NodeInfo> available = new ArrayList<NodeInfo>(candidates.size());
+    for (NodeInfo n : candidates) {
+      if (isAvailable(n)) {
+        available.add(n);
+      }
+    }
+    if (!available.isEmpty()) {
+      candidates = available;
+    }
+
+    // The coordinator doesn't heartbeat itself: refresh its own load as often as the others'
+    long now = System.currentTimeMillis();
+    if (now - lastSelfReportMillis >= coordinatorConfig.heartbeatInterval) {
+      lastSelfReportMillis = now;
+      entrySelector.report(nodeInfo, metrics.getLoadTracker().getLoad());
+    }
+    return entrySelector.choose(candidates);
   }
 
   /************************************************************************************************
    printQuorum():
    ************************************************************************************************/
   public void printQuorum(ArrayList<NodeInfo> quorum, boolean isWriteQuorum) {
-    String line = "============================================================";
-    String line2 = "------------------------------------------------------------\n";
-    String listAsString = "\n" + line + "\n[LIST OF (" + quorum.size() + ") NODES IN " +
-    (isWriteQuorum ? "WRITE" : "READ") + " QUORUM]: \n" + line2;
+    if (!Log.isEnabled(Log.Level.DEBUG)) { return; }
+    StringBuilder listAsString = new StringBuilder("\n" + LINE + "\n[LIST OF (" + quorum.size() + ") NODES IN " +
+      (isWriteQuorum ? "WRITE" : "READ") + " QUORUM]: \n" + LINE2);
     for (NodeInfo n : quorum) {
-      listAsString += "\t" + nodeInfoToString(n);
+      listAsString.append("\t").append(nodeInfoToString(n));
     }
-    System.out.println(listAsString + line + "\n");
+    Log.debug("%s", listAsString.append(LINE).append("\n").toString());
   }
 
   /************************************************************************************************
    buildQuorum():
    ************************************************************************************************/
   public ArrayList<NodeInfo> buildQuorum(int num) {
-    System.out.printf("[DFSCoordinator] Building quorum of size %d\n", num);
-    ArrayList<NodeInfo> quorum = new ArrayList<NodeInfo>(num);
-
-    HashSet<Integer> nodeIndices = new HashSet<Integer>(num);
-    Random r = new Random();
-    while (num != 0) {
-      int new_idx = r.nextInt(nodes.size());
-      if (!nodeIndices.contains(new_idx)) {
-        nodeIndices.add(new_idx);
-        num--;
-      }
-    }
+    Log.debug("[DFSCoordinator] Building quorum of size %d", num);
+    ArrayList<NodeInfo> availableNodes = new ArrayList<NodeInfo>();
     try {
       nodesListLock.acquire();
-      for (Integer i : nodeIndices) {
-        quorum.add(nodes.get(i));
+      for (NodeInfo n : nodes) {
+        if (isAvailable(n)) {
+          availableNodes.add(n);
+        }
       }
       nodesListLock.release();
     } catch (InterruptedException ie) {
-      System.err.printf("[DFSCoordinator] InterruptedException while acquiring lock on nodes list.\n");
+      Log.error("[DFSCoordinator] InterruptedException while acquiring lock on nodes list.");
+    }
+
+    // Only sample from live nodes. If too few are up, caller gets a short quorum and must fail fast
+    if (availableNodes.size() < num) {
+      Log.warn("[DFSCoordinator] Only %d live nodes available for quorum of size %d.", availableNodes.size(), num);
     }
-    return quorum;
+    Collections.shuffle(availableNodes);
+    return new ArrayList<NodeInfo>(availableNodes.subList(0, Math.min(num, availableNodes.size())));
   }
 
   /************************************************************************************************
    buildReadQuorum():
    ************************************************************************************************/
   public ArrayList<NodeInfo> buildReadQuorum() {
-    System.out.printf("[DFSCoordinator] Building read quorum...\n");
+    Log.debug("[DFSCoordinator] Building read quorum...");
     ArrayList<NodeInfo> readQuorum = buildQuorum(coordinatorConfig.nr);
     printQuorum(readQuorum, false);
     return readQuorum;
@@ -237,33 +721,104 @@ class DFSCoordinator {
    buildWriteQuorum():
    ************************************************************************************************/
   public ArrayList<NodeInfo> buildWriteQuorum() {
-    System.out.printf("[DFSCoordinator] Building write quorum...\n");
+    Log.debug("[DFSCoordinator] Building write quorum...");
     ArrayList<NodeInfo> writeQuorum = buildQuorum(coordinatorConfig.nw);
     printQuorum(writeQuorum, true);
     return writeQuorum;
   }
 
+  /************************************************************************************************
+   getNodesOutsideQuorum(): every other node, including ones still joining
+   ************************************************************************************************/
+  public ArrayList<NodeInfo> getNodesOutsideQuorum(ArrayList<NodeInfo> quorum) {
+    ArrayList<NodeInfo> others = new ArrayList<NodeInfo>();
+    try {
+      nodesListLock.acquire();
+      for (NodeInfo n : nodes) {
+        if (!quorum.contains(n)) {
+          others.add(n);
+        }
+      }
+      others.addAll(joiningNodes);
+      nodesListLock.release();
+    } catch (InterruptedException ie) {
+      Log.error("[DFSCoordinator] InterruptedException while acquiring lock on nodes list.");
+    }
+    return others;
+  }
+
+  /************************************************************************************************
+   replicateInBackground(): queue committed version for the replicas the write quorum skipped
+   ************************************************************************************************/
+  public void replicateInBackground(ArrayList<NodeInfo> writeQuorum, String filename, Blob blob, int version) {
+    ArrayList<NodeInfo> others = getNodesOutsideQuorum(writeQuorum);
+    if (!others.isEmpty()) {
+      Log.debug("[DFSCoordinator] Queued '%s' (VERSION %d) for background replication to %d replicas.", filename, version, others.size());
+      replicationManager.replicate(others, filename, blob, version);
+    }
+  }
+
   /************************************************************************************************
    getFileInfos():
    ************************************************************************************************/
-  public ArrayList<FileInfo> getFileInfos(ArrayList<NodeInfo> quorum, String filename) {
+  public ArrayList<FileInfo> getFileInfos(ArrayList<NodeInfo> quorum, String filename, Deadline deadline) {
+    ArrayList<FileProbe> probes = getFileProbes(quorum, filename, 0, deadline);
+    ArrayList<FileInfo> fileInfos = new ArrayList<FileInfo>(probes.size());
+    for (FileProbe probe : probes) {
+      fileInfos.add(probe.info);
+    }
+    return fileInfos;
+  }
+
+  /************************************************************************************************
+   getFileProbes(): getFileInfos(), with the contents of files of at most inlineMaxSize bytes
+   ************************************************************************************************/
+  public ArrayList<FileProbe> getFileProbes(ArrayList<NodeInfo> quorum, String filename, int inlineMaxSize, Deadline deadline) {
+    ArrayList<FileProbe> probes;
     ArrayList<FileInfo> fileInfos = new ArrayList<FileInfo>(quorum.size());
-    for (NodeInfo n : quorum) {
-      try {
-        TTransport transport = new TSocket(n.ip, n.port);
-        TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
-        DFSNode.Client client = new DFSNode.Client(protocol);
-        transport.open();
-        fileInfos.add(client.getFileInfo(filename));
-        transport.close();
-
-      } catch(TException e) {
-        System.err.printf("[DFSCoordinator] getFileInfos(): Failed to connect to %s:%d.\n", n.ip, n.port);
+    long start = System.nanoTime();
+    if (probeBatcher != null) {
+      // Batched with the other files being probed on the same nodes
+      probes = probeBatcher.probe(quorum, filename, inlineMaxSize, deadline);
+      for (FileProbe probe : probes) {
+        fileInfos.add(probe.info);
+      }
+    } else {
+      probes = new ArrayList<FileProbe>(quorum.size());
+      for (NodeInfo n : quorum) {
+        if (deadline.isExpired()) {
+          Log.warn("[DFSCoordinator] getFileInfos(): Deadline passed, not contacting %s:%d.", n.ip, n.port);
+          continue;
+        }
+        try {
+          TTransport transport = new TSocket(n.ip, n.port, deadline.socketTimeout());
+          TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+          DFSNode.Client client = new DFSNode.Client(protocol);
+          transport.open();
+          FileProbe probe;
+          if (inlineMaxSize > 0) {
+            probe = client.probeFile(filename, inlineMaxSize);
+          } else {
+            probe = new FileProbe();
+            probe.info = client.getFileInfo(filename);
+          }
+          transport.close();
+          probes.add(probe);
+          fileInfos.add(probe.info);
+          recordSuccess(n);
+
+        } catch(TException e) {
+          Log.warn("[DFSCoordinator] getFileInfos(): Failed to connect to %s:%d.", n.ip, n.port);
+          recordFailure(n);
+        }
       }
     }
-    System.out.printf("[DFSCoordinator] getFileInfos(): Collected all file info\n");
-    printFileVersionsByNode(fileInfos);
-    return fileInfos;
+    metrics.record(Metrics.VERSION_PROBE, start);
+    Log.debug("[DFSCoordinator] getFileInfos(): Collected file info from %d of %d nodes", fileInfos.size(), quorum.size());
+    if (!fileInfos.isEmpty()) {
+      printFileVersionsByNode(fileInfos);
+    }
+    return probes;
   }
 
   /************************************************************************************************
@@ -276,7 +831,7 @@ class DFSCoordinator {
         maxVersion = fileInfo.version;
       }
     }
-    System.out.printf("[DFSCoordinator] Most recent version of '%s' found: %d\n", fileInfos.get(0).filename, maxVersion);
+    Log.debug("[DFSCoordinator] Most recent version of '%s' found: %d", fileInfos.get(0).filename, maxVersion);
     return maxVersion;
   }
 
@@ -287,7 +842,7 @@ class DFSCoordinator {
     int mostRecentVersion = getMostRecentFileVersion(fileInfos);
 
     if (mostRecentVersion == -1) {
-      System.out.printf("[DFSCoordinator] File '%s' not found.\n", fileInfos.get(0).filename);
+      Log.info("[DFSCoordinator] File '%s' not found.", fileInfos.get(0).filename);
     } else {
       for (FileInfo fileInfo : fileInfos) {
         if (fileInfo.exists && fileInfo.version == mostRecentVersion) {
@@ -304,23 +859,275 @@ class DFSCoordinator {
   }
 
   /************************************************************************************************
-   getNewWriteVersion():
+   getNewWriteVersion(): returns -1 if not enough of the write quorum answered (in time)
    ************************************************************************************************/
-  public int getNewWriteVersion(ArrayList<NodeInfo> writeQuorum, String filename) {
-    ArrayList<FileInfo> fileInfos = getFileInfos(writeQuorum, filename);
+  public int getNewWriteVersion(ArrayList<NodeInfo> writeQuorum, String filename, Deadline deadline) {
+    ArrayList<FileInfo> fileInfos = getFileInfos(writeQuorum, filename, deadline);
+    if (fileInfos.size() < coordinatorConfig.nw) {
+      // Without a full quorum's versions we might pick a version that's already taken
+      return -1;
+    }
     int mostRecentVersion = getMostRecentFileVersion(fileInfos);
     if (mostRecentVersion == -1) { return 1; }
     else { return mostRecentVersion + 1; }
   }
 
   /************************************************************************************************
-   getReaderNode():
+   reserveWriteVersion(): (call while holding the file's lock) new version for a write, newer than
+   anything the write quorum has AND anything already handed out to writes still in flight.
+   Returns -1 like getNewWriteVersion(), otherwise call finishWrite() once the write is done
+   ************************************************************************************************/
+  public int reserveWriteVersion(ArrayList<NodeInfo> writeQuorum, String filename, Deadline deadline) {
+    int newVersion = getNewWriteVersion(writeQuorum, filename, deadline);
+    if (newVersion == -1) {
+      return -1;
+    }
+    writesLock.acquireUninterruptibly();
+    FileWrites fileWrites = writesInFlight.get(filename);
+    if (fileWrites == null) {
+      fileWrites = new FileWrites();
+      writesInFlight.put(filename, fileWrites);
+    } else if (fileWrites.highestReserved >= newVersion) {
+      newVersion = fileWrites.highestReserved + 1;
+    }
+    fileWrites.highestReserved = newVersion;
+    fileWrites.inFlight.put(newVersion, new CountDownLatch(1));
+    writesLock.release();
+    return newVersion;
+  }
+
+  public void finishWrite(String filename, int version) {
+    writesLock.acquireUninterruptibly();
+    FileWrites fileWrites = writesInFlight.get(filename);
+    fileWrites.inFlight.remove(version).countDown();
+    if (fileWrites.inFlight.isEmpty()) {
+      writesInFlight.remove(filename);
+    }
+    writesLock.release();
+  }
+
+  /************************************************************************************************
+   awaitWrite(): blocks until the write of filename's version (if still in flight) has finished,
+   false if it didn't by the deadline. Without it a read could return a version only part of the
+   write quorum has, and a later read (of another part) the one before
+   ************************************************************************************************/
+  public boolean awaitWrite(String filename, int version, Deadline deadline) {
+    CountDownLatch finished = null;
+    writesLock.acquireUninterruptibly();
+    FileWrites fileWrites = writesInFlight.get(filename);
+    if (fileWrites != null) {
+      finished = fileWrites.inFlight.get(version);
+    }
+    writesLock.release();
+    if (finished == null) {
+      return true;
+    }
+    try {
+      return finished.await(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ie) {
+      Log.error("[DFSCoordinator] InterruptedException while waiting for a write to '%s'.", filename);
+      return false;
+    }
+  }
+
+  /************************************************************************************************
+   getReaderNode(): returns null if not enough of the read quorum answered (in time)
    ************************************************************************************************/
-  public NodeInfo getReaderNode(String filename) {
+  public NodeInfo getReaderNode(String filename, Deadline deadline) {
     ArrayList<NodeInfo> readQuorum = buildReadQuorum();
-    ArrayList<FileInfo> fileInfos = getFileInfos(readQuorum, filename);
-    System.out.printf("[DFSCoordinator] Getting node with most recent version for read.\n");
+    ArrayList<FileInfo> fileInfos = getFileInfos(readQuorum, filename, deadline);
+    if (fileInfos.size() < coordinatorConfig.nr) {
+      Log.warn("[DFSCoordinator] Only %d of %d read quorum nodes answered for '%s'.", fileInfos.size(), coordinatorConfig.nr, filename);
+      return null;
+    }
+    Log.debug("[DFSCoordinator] Getting node with most recent version for read.");
     return getNodeWithMostRecentVersion(fileInfos);
   }
 
+  /************************************************************************************************
+   getReaderProbe(): getReaderNode() (as info.sourceNode) with the most recent version it holds,
+   and its contents if they were small enough to come back with the probe
+   ************************************************************************************************/
+  public FileProbe getReaderProbe(String filename, Deadline deadline) {
+    ArrayList<NodeInfo> readQuorum = buildReadQuorum();
+    ArrayList<FileProbe> probes = getFileProbes(readQuorum, filename, coordinatorConfig.inlineMaxSize, deadline);
+    if (probes.size() < coordinatorConfig.nr) {
+      Log.warn("[DFSCoordinator] Only %d of %d read quorum nodes answered for '%s'.", probes.size(), coordinatorConfig.nr, filename);
+      return null;
+    }
+    Log.debug("[DFSCoordinator] Getting node with most recent version for read.");
+    ArrayList<FileInfo> fileInfos = new ArrayList<FileInfo>(probes.size());
+    for (FileProbe probe : probes) {
+      fileInfos.add(probe.info);
+    }
+    FileProbe readerProbe = new FileProbe();
+    readerProbe.info = new FileInfo();
+    readerProbe.info.filename = filename;
+    readerProbe.info.sourceNode = getNodeWithMostRecentVersion(fileInfos);
+    readerProbe.info.version = getMostRecentFileVersion(fileInfos);
+    readerProbe.info.exists = (readerProbe.info.version != -1);
+    for (FileProbe probe : probes) {
+      if (probe.blob != null && probe.info.exists && probe.info.version == readerProbe.info.version) {
+        readerProbe.info.sourceNode = probe.info.sourceNode;
+        readerProbe.blob = probe.blob;
+        break;
+      }
+    }
+    return readerProbe;
+  }
+
+  /************************************************************************************************
+   commitStripeInBackground(): tells the stripe's nodes its version is complete, so they drop the
+   version they kept in case it wasn't (a lost call only costs that node some disk space until
+   the file's next write)
+   ************************************************************************************************/
+  public void commitStripeInBackground(final ArrayList<NodeInfo> stripe, final String filename, final int version) {
+    stripeCommitter.execute(new Runnable() {
+      @Override
+      public void run() {
+        for (NodeInfo n : stripe) {
+          try {
+            TTransport transport = new TSocket(n.ip, n.port, Deadline.DEFAULT_BUDGET_MILLIS);
+            TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+            DFSNode.Client client = new DFSNode.Client(protocol);
+            transport.open();
+            client.commitStripe(filename, version);
+            transport.close();
+          } catch (TException e) {
+            Log.warn("[DFSCoordinator] Unable to commit stripe of '%s' (VERSION %d) on %s:%d.", filename, version, n.ip, n.port);
+          }
+        }
+      }
+    });
+  }
+
+  // Fragments (and whole copies) of one file collected by readFragments(), per version
+  private static class Candidates {
+    HashMap<String, HashMap<Integer, Blob>> stripes = new HashMap<String, HashMap<Integer, Blob>>(); // version:contentHash --> index --> fragment
+    HashMap<String, Integer> stripeVersions = new HashMap<String, Integer>();
+    HashMap<String, Integer> dataFragments = new HashMap<String, Integer>();
+    Blob newestWhole = null;
+    int newestWholeVersion = -1;
+
+    void add(BlobReadResult result) {
+      if (result.response.acknowledgement != Acknowledgement.SUCCESS || result.blob == null) {
+        return;
+      }
+      if (!ErasureCoding.isFragment(result.blob)) {
+        if (result.version > newestWholeVersion) {
+          newestWhole = result.blob;
+          newestWholeVersion = result.version;
+        }
+        return;
+      }
+      Fragment layout = result.blob.fragment;
+      String key = stripeKey(result.version, layout);
+      if (!stripes.containsKey(key)) {
+        stripes.put(key, new HashMap<Integer, Blob>());
+        stripeVersions.put(key, result.version);
+        dataFragments.put(key, layout.dataFragments);
+      }
+      stripes.get(key).put(layout.index, result.blob);
+    }
+
+    boolean isComplete(String key) {
+      return stripes.containsKey(key) && stripes.get(key).size() >= dataFragments.get(key);
+    }
+
+    static String stripeKey(int version, Fragment layout) {
+      return Integer.toString(version) + ":" + layout.contentHash;
+    }
+  }
+
+  /************************************************************************************************
+   readFragments(): (ERASURE-CODED files) asks every live node for its fragments in parallel and
+   rebuilds the blob as soon as dataFragments of first's version are in. If that version can't
+   be rebuilt (its write failed part way), falls back to the newest version that can: nodes keep
+   the version before an uncommitted stripe. Returns null if none can be before the deadline.
+   ************************************************************************************************/
+  public BlobReadResult readFragments(final String filename, BlobReadResult first, NodeInfo firstNode, final Deadline deadline) {
+    Candidates candidates = new Candidates();
+    candidates.add(first);
+    String firstKey = Candidates.stripeKey(first.version, first.blob.fragment);
+
+    // (firstNode too: it may hold the version before first's)
+    ArrayList<NodeInfo> nodes = buildQuorum(Integer.MAX_VALUE);
+    long start = System.nanoTime();
+
+    ExecutorCompletionService<List<BlobReadResult>> completion = new ExecutorCompletionService<List<BlobReadResult>>(fragmentReaders);
+    List<Future<List<BlobReadResult>>> pending = new ArrayList<Future<List<BlobReadResult>>>(nodes.size());
+    for (final NodeInfo n : nodes) {
+      pending.add(completion.submit(new Callable<List<BlobReadResult>>() {
+        @Override
+        public List<BlobReadResult> call() {
+          try {
+            TTransport transport = new TSocket(n.ip, n.port, deadline.socketTimeout());
+            TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+            DFSNode.Client client = new DFSNode.Client(protocol);
+            transport.open();
+            List<BlobReadResult> results = client.performReadFragments(filename, Compression.SUPPORTED);
+            transport.close();
+            recordSuccess(n);
+            return results;
+          } catch (TException e) {
+            recordFailure(n);
+            return null;
+          }
+        }
+      }));
+    }
+
+    int outstanding = pending.size();
+    try {
+      while (!candidates.isComplete(firstKey) && outstanding > 0 && !deadline.isExpired()) {
+        Future<List<BlobReadResult>> done = completion.poll(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+        if (done == null) {
+          break;
+        }
+        outstanding--;
+        List<BlobReadResult> results = done.get();
+        if (results != null) {
+          for (BlobReadResult result : results) {
+            candidates.add(result);
+          }
+        }
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      Log.error("[DFSCoordinator] Interrupted while collecting fragments of '%s'.", filename);
+    }
+    for (Future<List<BlobReadResult>> future : pending) {
+      future.cancel(true);
+    }
+    metrics.record(Metrics.FRAGMENT_READ, start);
+
+    // Newest version that can be rebuilt (first's, unless its stripe is incomplete)
+    String bestKey = null;
+    for (String key : candidates.stripes.keySet()) {
+      if (candidates.isComplete(key) && (bestKey == null || candidates.stripeVersions.get(key) > candidates.stripeVersions.get(bestKey))) {
+        bestKey = key;
+      }
+    }
+    BlobReadResult rebuilt = new BlobReadResult();
+    rebuilt.response = new Response();
+    rebuilt.response.acknowledgement = Acknowledgement.SUCCESS;
+    rebuilt.response.message = "";
+    if (bestKey != null && candidates.stripeVersions.get(bestKey) > candidates.newestWholeVersion) {
+      rebuilt.version = candidates.stripeVersions.get(bestKey);
+      rebuilt.blob = ErasureCoding.join(candidates.stripes.get(bestKey).values());
+      Log.debug("[DFSCoordinator] Rebuilding '%s' (VERSION %d) from %d fragments.", filename, rebuilt.version, candidates.stripes.get(bestKey).size());
+    } else if (candidates.newestWhole != null) {
+      rebuilt.version = candidates.newestWholeVersion;
+      rebuilt.blob = candidates.newestWhole;
+    } else {
+      Log.warn("[DFSCoordinator] Only %d of %d fragments of '%s' (VERSION %d) found, and no older version to fall back to.",
+        candidates.stripes.get(firstKey).size(), first.blob.fragment.dataFragments, filename, first.version);
+      return null;
+    }
+    if (rebuilt.version != first.version) {
+      Log.warn("[DFSCoordinator] VERSION %d of '%s' can't be rebuilt (write failed part way?), read VERSION %d instead.",
+        first.version, filename, rebuilt.version);
+    }
+    return rebuilt;
+  }
+
 }
@@ -17,32 +17,80 @@ public class DFSNodeHandler implements DFSNode.Iface {
     private NodeInfo coordinatorInfo;
 
     private FileManager fileManager;
+    private SnapshotTransfer snapshotTransfer;
+    private Metrics metrics;
 
     // Only used if Node is COORDINATOR NODE:
     private DFSCoordinator dfsCoordinator;
+    private WriteCoalescer writeCoalescer; // null unless write_coalescing is on
+    private ReadCoalescer readCoalescer; // null unless read_coalescing is on
 
     public DFSNodeHandler(NodeInfo info, CoordinatorConfiguration config) {
+        this(info, config, FileManager.DATA_DIRECTORY);
+    }
+
+    public DFSNodeHandler(NodeInfo info, CoordinatorConfiguration config, String dataDirectory) {
         // CONSTRUCTOR for [COORDINATOR NODE]
         nodeInfo = info;
         coordinatorInfo = info;
-        System.out.printf(name() + " Constructing COORDINATOR NODE on '%s:%d'\n", info.ip, info.port);
-        dfsCoordinator = new DFSCoordinator(nodeInfo, config);
-        fileManager = new FileManager(nodeInfo);
+        Log.info("%s Constructing COORDINATOR NODE on '%s:%d'", name(), info.ip, info.port);
+        metrics = new Metrics(nodeInfo);
+        dfsCoordinator = new DFSCoordinator(nodeInfo, config, metrics);
+        fileManager = new FileManager(nodeInfo, metrics, dataDirectory);
+        snapshotTransfer = new SnapshotTransfer(nodeInfo, fileManager);
+        if (config.writeCoalescing) {
+          writeCoalescer = new WriteCoalescer(new WriteCoalescer.Writer() {
+            @Override
+            public WriteResult write(String filename, String contents, Deadline deadline) {
+              return leasedWrite(filename, contents, deadline);
+            }
+          });
+        }
+        if (config.readCoalescing) {
+          readCoalescer = new ReadCoalescer(new ReadCoalescer.Reader() {
+            @Override
+            public BlobReadResult read(String filename, int knownVersion, Deadline deadline) {
+              return limitedQuorumRead(filename, knownVersion, deadline);
+            }
+          });
+        }
     }
 
     public DFSNodeHandler(NodeInfo info, NodeInfo coordInfo) {
+        this(info, coordInfo, FileManager.DATA_DIRECTORY);
+    }
+
+    public DFSNodeHandler(NodeInfo info, NodeInfo coordInfo, String dataDirectory) {
         // CONSTRUCTOR for [REGULAR NODE]
-        System.out.printf("[DFSNode] Constructing REGULAR NODE on '%s:%d\n", info.ip, info.port);
-        System.out.printf("[DFSNode] Coordinator Info: '%s:%d\n", coordInfo.ip, coordInfo.port);
+        Log.info("[DFSNode] Constructing REGULAR NODE on '%s:%d", info.ip, info.port);
+        Log.info("[DFSNode] Coordinator Info: '%s:%d", coordInfo.ip, coordInfo.port);
         nodeInfo = info;
         coordinatorInfo = coordInfo;
-        fileManager = new FileManager(nodeInfo);
+        metrics = new Metrics(nodeInfo);
+        fileManager = new FileManager(nodeInfo, metrics, dataDirectory);
+        snapshotTransfer = new SnapshotTransfer(nodeInfo, fileManager);
     }
 
     public boolean isCoordinator() {
       return nodeInfo.isCoordinator;
     }
 
+    public Metrics getMetricsRegistry() {
+      return metrics;
+    }
+
+    /************************************************************************************************
+     shutdown(): stops the coordinator's background threads (if this node is the coordinator) and
+     unregisters this node's JMX beans. The Thrift server is stopped by whoever started it
+     ************************************************************************************************/
+    public void shutdown() {
+      if (dfsCoordinator != null) {
+        dfsCoordinator.shutdown();
+      }
+      metrics.unregisterFromJMX();
+      Log.info("%s Shut down.", name());
+    }
+
     public String name() {
       if (isCoordinator()) { return "[DFSNode]*"; }
       else { return "[DFSNode]"; }
@@ -50,7 +98,7 @@ public class DFSNodeHandler implements DFSNode.Iface {
 
     @Override
     public Response joinDFS(NodeInfo newNode) throws TException {
-      System.out.printf(name() + " Received JOIN(%s:%d) request.\n", newNode.ip, newNode.port);
+      Log.info("%s Received JOIN(%s:%d) request.", name(), newNode.ip, newNode.port);
       Response response;
       if (isCoordinator()) {
         response = dfsCoordinator.addNode(newNode);
@@ -63,77 +111,293 @@ public class DFSNodeHandler implements DFSNode.Iface {
     }
 
     @Override
-    public WriteResult write(String filename, String contents) {
-      System.out.printf(name() + " received WRITE(%s) request.\n", filename);
+    public Response leaveDFS(NodeInfo node) throws TException {
+      Log.info("%s Received LEAVE(%s:%d) request.", name(), node.ip, node.port);
+      Response response;
+      if (isCoordinator()) {
+        response = dfsCoordinator.removeNode(node);
+      } else {
+        response = new Response();
+        response.acknowledgement = Acknowledgement.FAILURE;
+        response.message = "Cannot 'LEAVE' non-coordinator node.";
+      }
+      return response;
+    }
 
+    @Override
+    public Response heartbeat(NodeInfo node, NodeLoad load) throws TException {
+      Response response;
       if (isCoordinator()) {
+        response = dfsCoordinator.heartbeat(node, load);
+      } else {
+        response = new Response();
+        response.acknowledgement = Acknowledgement.FAILURE;
+        response.message = "Cannot 'HEARTBEAT' non-coordinator node.";
+      }
+      return response;
+    }
 
-        WriteResult finalWriteResult = new WriteResult();
-        finalWriteResult.response = new Response();
-        finalWriteResult.response.acknowledgement = Acknowledgement.SUCCESS;
-        finalWriteResult.response.message = "";
+    @Override
+    public WriteResult write(String filename, String contents, int timeoutMillis) {
+      Log.info("%s received WRITE(%s) request.", name(), filename);
+      Deadline deadline = Deadline.after(timeoutMillis);
+
+      WriteResult finalWriteResult = new WriteResult();
+      finalWriteResult.response = new Response();
+      finalWriteResult.response.acknowledgement = Acknowledgement.SUCCESS;
+      finalWriteResult.response.message = "";
+
+      if (isCoordinator()) {
 
         if (!dfsCoordinator.isReady()) {
-          System.out.printf(name() + " COORDINATOR not ready, rejecting WRITE(%s) request.\n", filename);
+          Log.info("%s COORDINATOR not ready, rejecting WRITE(%s) request.", name(), filename);
           finalWriteResult.response.acknowledgement = Acknowledgement.FAILURE;
           finalWriteResult.response.message = "Coordinator not ready. Check all nodes have joined and try again.";
           return finalWriteResult;
         }
 
-        dfsCoordinator.acquireLockOnFile(filename);
-
-        ArrayList<NodeInfo> writeQuorum = dfsCoordinator.buildWriteQuorum();
-        int newVersion = dfsCoordinator.getNewWriteVersion(writeQuorum, filename);
-        System.out.printf(name() + " WRITE(%s): Will write (VERSION %d) to %d replicas.\n", filename, newVersion, writeQuorum.size());
-
-        for (NodeInfo writerNode : writeQuorum) {
-          try {
-            TTransport transport = new TSocket(writerNode.ip, writerNode.port);
-            TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
-            DFSNode.Client client = new DFSNode.Client(protocol);
-            transport.open();
-            System.out.printf(name() + " WRITE(%s): Forwarding PERFORM_WRITE() to (%s:%d).\n", filename, writerNode.ip, writerNode.port);
-            WriteResult writersResult = client.performWrite(filename, contents, newVersion);
-            transport.close();
-
-            if (writersResult.response.acknowledgement == Acknowledgement.FAILURE) {
-              System.out.printf(name() + " WRITE(%s): Failed to PERFORM_WRITE() on (%s:%d) because '%s'.\n", filename, writerNode.ip, writerNode.port, writersResult.response.message);
-              finalWriteResult = writersResult; // want to send failed one back if it failed even once
-              break;
+        if (writeCoalescer != null) {
+          return writeCoalescer.write(filename, contents, deadline);
+        }
+        return leasedWrite(filename, contents, deadline);
+
+      } else {
+        try {
+          TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port, deadline.socketTimeout());
+          TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+          DFSNode.Client client = new DFSNode.Client(protocol);
+          transport.open();
+          Log.debug("%s WRITE(%s): Forwarding to Coordinator Node.", name(), filename);
+
+          WriteResult writeResult = client.write(filename, contents, deadline.forwardBudget());
+
+          transport.close();
+          return writeResult;
+        } catch(TException e) {
+          Log.warn("[DFSNode] WRITE(%s): Failed to call WRITE on Coordinator Node.", filename);
+          if (deadline.isExpired()) {
+            finalWriteResult.response.acknowledgement = Acknowledgement.TIMEOUT;
+            finalWriteResult.response.message = "Timed out waiting for Coordinator Node.";
+          } else {
+            finalWriteResult.response.acknowledgement = Acknowledgement.FAILURE;
+            finalWriteResult.response.message = "Failed to forward write to coordinator node.";
+          }
+          return finalWriteResult;
+        }
+      }
+    }
+
+    /************************************************************************************************
+     leasedWrite(): (COORDINATOR) write() once the read leases on the file have run out
+     ************************************************************************************************/
+    private WriteResult leasedWrite(String filename, String contents, Deadline deadline) {
+      // No new leases on the file from here on, and the ones already granted must run out before
+      // any replica gets the new version (their holders keep serving the old one until then).
+      // Waited for before admission: no slot, lock or configLock is held meanwhile
+      LeaseManager leaseManager = dfsCoordinator.getLeaseManager();
+      long leasesExpireAtMillis = leaseManager.beginWrite(filename);
+      try {
+        if (!LeaseManager.awaitExpiry(leasesExpireAtMillis, deadline)) {
+          Log.warn("%s WRITE(%s): Read leases on file outlast the deadline.", name(), filename);
+          WriteResult timedOut = new WriteResult();
+          timedOut.response = new Response();
+          timedOut.response.acknowledgement = Acknowledgement.TIMEOUT;
+          timedOut.response.message = "Timed out waiting for read leases on this file to expire.";
+          return timedOut;
+        }
+        return admittedWrite(filename, contents, deadline);
+      } finally {
+        leaseManager.endWrite(filename);
+      }
+    }
+
+    /************************************************************************************************
+     admittedWrite(): (COORDINATOR) write() under admission control
+     ************************************************************************************************/
+    private WriteResult admittedWrite(String filename, String contents, Deadline deadline) {
+      WriteResult finalWriteResult = new WriteResult();
+      finalWriteResult.response = new Response();
+      finalWriteResult.response.acknowledgement = Acknowledgement.SUCCESS;
+      finalWriteResult.response.message = "";
+
+      AdmissionController admission = dfsCoordinator.getAdmissionController();
+      if (!admission.admit(AdmissionController.Operation.WRITE, deadline)) {
+        Log.info("%s COORDINATOR overloaded, rejecting WRITE(%s) request.", name(), filename);
+        finalWriteResult.response.acknowledgement = Acknowledgement.OVERLOADED;
+        finalWriteResult.response.message = "Coordinator overloaded, try again later.";
+        finalWriteResult.response.retryAfterMillis = admission.retryAfterMillis(AdmissionController.Operation.WRITE);
+        return finalWriteResult;
+      }
+      long admittedAt = System.nanoTime();
+      boolean timedOut = true;
+      try {
+        finalWriteResult = coordinatorWrite(filename, contents, deadline, finalWriteResult);
+        timedOut = (finalWriteResult.response.acknowledgement == Acknowledgement.TIMEOUT);
+        return finalWriteResult;
+      } finally {
+        admission.release(AdmissionController.Operation.WRITE, admittedAt, timedOut);
+      }
+    }
+
+    /************************************************************************************************
+     coordinatorWrite(): (COORDINATOR) write() once the request has been admitted
+     ************************************************************************************************/
+    private WriteResult coordinatorWrite(String filename, String contents, Deadline deadline, WriteResult finalWriteResult) {
+      // Compress once, before taking the lock: every replica gets the same blob
+      CoordinatorConfiguration config = dfsCoordinator.getCoordinatorConfiguration();
+      Blob blob = Compression.compress(contents, config.compression, config.compressionMinSize);
+
+      dfsCoordinator.beginOperation();
+      try {
+        if (!dfsCoordinator.acquireLockOnFile(filename, deadline)) {
+          Log.warn("%s WRITE(%s): Timed out waiting for lock on file.", name(), filename);
+          finalWriteResult.response.acknowledgement = Acknowledgement.TIMEOUT;
+          finalWriteResult.response.message = "Timed out waiting for other requests on this file.";
+          return finalWriteResult;
+        }
+        long start = System.currentTimeMillis();
+
+        // Large files are striped instead: one Reed-Solomon fragment per node of the write quorum
+        // (widened to at least k+m nodes). Too few live nodes to stripe --> replicate in full
+        ArrayList<NodeInfo> writeQuorum = null;
+        List<Blob> fragments = null;
+        int newVersion = -1;
+        try {
+          int stripeWidth = stripeWidth(blob);
+          if (stripeWidth > 0) {
+            writeQuorum = dfsCoordinator.buildQuorum(stripeWidth);
+            if (writeQuorum.size() == stripeWidth) {
+              fragments = ErasureCoding.split(blob, config.erasureK, stripeWidth);
+              Log.debug("%s WRITE(%s): Erasure coding into %d+%d fragments.", name(), filename, config.erasureK, stripeWidth - config.erasureK);
+            } else {
+              writeQuorum = null;
             }
-          } catch(TException e) {
-            System.err.printf(name() + " WRITE(%s): Failed to connect to writer (%s:%d).\n", filename, writerNode.ip, writerNode.port);
+          }
+          if (writeQuorum == null) {
+            writeQuorum = dfsCoordinator.buildWriteQuorum();
+          }
+          if (writeQuorum.size() >= dfsCoordinator.getCoordinatorConfiguration().nw) {
+            newVersion = dfsCoordinator.reserveWriteVersion(writeQuorum, filename, deadline);
+          }
+        } finally {
+          // Optimistic from here on: the version is reserved, so release the lock before sending any
+          // data. Writes to the same file overlap their transfers, and replicas keep whichever
+          // version is newest (older ones are answered with SUPERSEDED)
+          dfsCoordinator.releaseLockOnFile(filename);
+        }
+        if (newVersion == -1) {
+          if (deadline.isExpired()) {
+            Log.warn("%s WRITE(%s): Timed out collecting versions from write quorum.", name(), filename);
+            finalWriteResult.response.acknowledgement = Acknowledgement.TIMEOUT;
+            finalWriteResult.response.message = "Timed out collecting versions from write quorum.";
+          } else {
+            Log.info("%s WRITE(%s): Not enough live nodes for a write quorum, rejecting.", name(), filename);
             finalWriteResult.response.acknowledgement = Acknowledgement.FAILURE;
-            finalWriteResult.response.message = "Failed to connect to writer";
+            finalWriteResult.response.message = "Not enough live nodes to form a write quorum. Try again later.";
           }
+          return finalWriteResult;
         }
 
-        dfsCoordinator.releaseLockOnFile(filename);
+        // Whatever happens from here on, the reserved version must be finished: reads of the file
+        // wait for it
+        try {
+          finalWriteResult = writeToQuorum(filename, blob, fragments, writeQuorum, newVersion, deadline, finalWriteResult);
+        } finally {
+          dfsCoordinator.finishWrite(filename, newVersion);
+        }
+        dfsCoordinator.recordWrite(System.currentTimeMillis() - start, writeQuorum.size(), fragments != null);
         return finalWriteResult;
+      } finally {
+        dfsCoordinator.endOperation();
+      }
+    }
 
-      } else {
+    /************************************************************************************************
+     writeToQuorum(): (COORDINATOR) sends a reserved version to its write quorum (one fragment per
+     node if fragments is set)
+     ************************************************************************************************/
+    private WriteResult writeToQuorum(String filename, Blob blob, List<Blob> fragments, ArrayList<NodeInfo> writeQuorum,
+                                      int newVersion, Deadline deadline, WriteResult finalWriteResult) {
+      CoordinatorConfiguration config = dfsCoordinator.getCoordinatorConfiguration();
+      Log.debug("%s WRITE(%s): Will write (VERSION %d) to %d replicas.", name(), filename, newVersion, writeQuorum.size());
+      long quorumWriteStart = System.nanoTime();
+      boolean superseded = false;
+
+      for (int i = 0; i < writeQuorum.size(); i++) {
+        NodeInfo writerNode = writeQuorum.get(i);
+        if (deadline.isExpired()) {
+          Log.warn("%s WRITE(%s): Deadline passed before writing to (%s:%d).", name(), filename, writerNode.ip, writerNode.port);
+          finalWriteResult.response.acknowledgement = Acknowledgement.TIMEOUT;
+          finalWriteResult.response.message = "Timed out writing to write quorum.";
+          break;
+        }
         try {
-          TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port);
+          TTransport transport = new TSocket(writerNode.ip, writerNode.port, deadline.socketTimeout());
           TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
           DFSNode.Client client = new DFSNode.Client(protocol);
           transport.open();
-          System.out.printf(name() + " WRITE(%s): Forwarding to Coordinator Node.\n", filename);
-
-          WriteResult writeResult = client.write(filename, contents);
-
+          Log.debug("%s WRITE(%s): Forwarding PERFORM_WRITE() to (%s:%d).", name(), filename, writerNode.ip, writerNode.port);
+          WriteResult writersResult = pushBlob(client, filename, (fragments == null) ? blob : fragments.get(i), newVersion, config.inlineMaxSize);
           transport.close();
-          return writeResult;
+          dfsCoordinator.recordSuccess(writerNode);
+
+          if (writersResult.response.acknowledgement == Acknowledgement.SUPERSEDED) {
+            // A later write to this file already reached this replica, it wins there anyway
+            Log.debug("%s WRITE(%s): VERSION %d superseded on (%s:%d).", name(), filename, newVersion, writerNode.ip, writerNode.port);
+            superseded = true;
+          } else if (writersResult.response.acknowledgement == Acknowledgement.FAILURE) {
+            Log.warn("%s WRITE(%s): Failed to PERFORM_WRITE() on (%s:%d) because '%s'.", name(), filename, writerNode.ip, writerNode.port, writersResult.response.message);
+            finalWriteResult = writersResult; // want to send failed one back if it failed even once
+            break;
+          }
         } catch(TException e) {
-          System.err.printf("[DFSNode] WRITE(%s): Failed to call WRITE on Coordinator Node.\n", filename);
-          e.printStackTrace();
+          dfsCoordinator.recordFailure(writerNode);
+          if (deadline.isExpired()) {
+            Log.warn("%s WRITE(%s): Timed out writing to (%s:%d).", name(), filename, writerNode.ip, writerNode.port);
+            finalWriteResult.response.acknowledgement = Acknowledgement.TIMEOUT;
+            finalWriteResult.response.message = "Timed out writing to write quorum.";
+            break;
+          }
+          Log.warn("%s WRITE(%s): Failed to connect to writer (%s:%d).", name(), filename, writerNode.ip, writerNode.port);
+          finalWriteResult.response.acknowledgement = Acknowledgement.FAILURE;
+          finalWriteResult.response.message = "Failed to connect to writer";
         }
       }
-      return null;
+
+      metrics.record(Metrics.QUORUM_WRITE, quorumWriteStart);
+
+      if (finalWriteResult.response.acknowledgement == Acknowledgement.SUCCESS) {
+        dfsCoordinator.getCatalog().record(writeQuorum.get(0), filename, newVersion);
+        finalWriteResult.version = newVersion;
+        if (fragments != null) {
+          // Whole stripe landed: nodes may drop the version they kept in case it didn't
+          // (fragments aren't pushed to other nodes: any k of the stripe rebuild the file)
+          dfsCoordinator.commitStripeInBackground(writeQuorum, filename, newVersion);
+        }
+        if (superseded) {
+          finalWriteResult.response.message = "Superseded by a newer write to the same file.";
+        } else if (fragments == null) {
+          dfsCoordinator.replicateInBackground(writeQuorum, filename, blob, newVersion);
+        }
+      }
+
+      return finalWriteResult;
     }
 
     @Override
-    public ReadResult read(String filename) {
-      System.out.printf(name() + " Received READ(%s) request.\n", filename);
+    public ReadResult read(String filename, int timeoutMillis) {
+      return readIfNewer(filename, -1, timeoutMillis);
+    }
+
+    @Override
+    public ReadResult readIfNewer(String filename, int knownVersion, int timeoutMillis) {
+      Log.info("%s Received READ(%s) request.", name(), filename);
+      Deadline deadline = Deadline.after(timeoutMillis);
+
+      if (isCoordinator()) {
+        // Decompressed once, here, for the client
+        return Compression.toReadResult(quorumRead(filename, knownVersion, deadline));
+      }
 
       ReadResult readResult = new ReadResult();
       readResult.response = new Response();
@@ -141,75 +405,366 @@ public class DFSNodeHandler implements DFSNode.Iface {
       readResult.response.message = "";
       readResult.contents = "";
       readResult.version = -1;
+      try {
+        TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port, deadline.socketTimeout());
+        TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+        DFSNode.Client client = new DFSNode.Client(protocol);
+        transport.open();
+        Log.debug("%s READ(%s): Forwarding to Coordinator Node.", name(), filename);
+        readResult = client.readIfNewer(filename, knownVersion, deadline.forwardBudget());
+        transport.close();
+      } catch(TException e) {
+        if (deadline.isExpired()) {
+          Log.warn("%s READ(%s): Timed out waiting for Coordinator Node.", name(), filename);
+          readResult.response.acknowledgement = Acknowledgement.TIMEOUT;
+          readResult.response.message = "Timed out waiting for Coordinator Node.";
+        } else {
+          Log.warn("%s READ(%s): Failed to connect to Coordinator Node.", name(), filename);
+          readResult.response.message = "Failed to forward read to coordinator node.";
+        }
+      }
+      return readResult;
+    }
+
+    @Override
+    public ReadResult leasedRead(String filename, int knownVersion, int timeoutMillis) {
+      Log.info("%s Received LEASED_READ(%s) request.", name(), filename);
+      Deadline deadline = Deadline.after(timeoutMillis);
 
       if (isCoordinator()) {
+        LeaseManager leaseManager = dfsCoordinator.getLeaseManager();
+        long readStamp = leaseManager.beginRead();
+        ReadResult readResult = Compression.toReadResult(quorumRead(filename, knownVersion, deadline));
+        if (readResult.response.acknowledgement == Acknowledgement.SUCCESS ||
+            readResult.response.acknowledgement == Acknowledgement.NOT_MODIFIED) {
+          readResult.leaseMillis = leaseManager.grant(filename, readStamp);
+        }
+        return readResult;
+      }
 
-        if (!dfsCoordinator.isReady()) {
-          System.out.printf(name() + " COORDINATOR not ready, rejecting READ(%s) request.\n", filename);
-          readResult.response.message = "Coordinator not ready. Check all nodes have joined and try again.";
-          return readResult;
+      ReadResult readResult = new ReadResult();
+      readResult.response = new Response();
+      readResult.response.acknowledgement = Acknowledgement.FAILURE;
+      readResult.response.message = "";
+      readResult.contents = "";
+      readResult.version = -1;
+      try {
+        TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port, deadline.socketTimeout());
+        TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+        DFSNode.Client client = new DFSNode.Client(protocol);
+        transport.open();
+        Log.debug("%s LEASED_READ(%s): Forwarding to Coordinator Node.", name(), filename);
+        readResult = client.leasedRead(filename, knownVersion, deadline.forwardBudget());
+        transport.close();
+      } catch(TException e) {
+        if (deadline.isExpired()) {
+          Log.warn("%s LEASED_READ(%s): Timed out waiting for Coordinator Node.", name(), filename);
+          readResult.response.acknowledgement = Acknowledgement.TIMEOUT;
+          readResult.response.message = "Timed out waiting for Coordinator Node.";
+        } else {
+          Log.warn("%s LEASED_READ(%s): Failed to connect to Coordinator Node.", name(), filename);
+          readResult.response.message = "Failed to forward read to coordinator node.";
         }
+      }
+      return readResult;
+    }
 
-        dfsCoordinator.acquireLockOnFile(filename);
+    @Override
+    public BlobReadResult readBlob(String filename, List<Codec> acceptedCodecs, int timeoutMillis, int knownVersion) {
+      Log.debug("%s Received READ_BLOB(%s) request.", name(), filename);
+      Deadline deadline = Deadline.after(timeoutMillis);
 
-        NodeInfo readerNode = dfsCoordinator.getReaderNode(filename);
-        if (readerNode.port == -1) {
-          System.out.printf(name() + " READ(%s): File not found.\n", filename);
-          readResult.response.message = "File does not exist yet";
-        } else {
-          System.out.printf(name() + " READ(%s): Will read from %s:%d\n", filename, readerNode.ip, readerNode.port);
-          try {
-            TTransport transport = new TSocket(readerNode.ip, readerNode.port);
-            TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
-            DFSNode.Client client = new DFSNode.Client(protocol);
-            transport.open();
-            System.out.printf(name() + " READ(%s): Forwarding to reader (%s:%d).\n", filename, readerNode.ip, readerNode.port);
-            readResult = client.performRead(filename);
-            transport.close();
-          } catch(TException e) {
-            System.err.printf(name() + " READ(%s): Failed to connect to reader (%s:%d).\n", filename, readerNode.ip, readerNode.port);
-            readResult.response.message = "Failed to connect to reader.";
+      if (isCoordinator()) {
+        BlobReadResult readResult = quorumRead(filename, knownVersion, deadline);
+        if (readResult.response.acknowledgement == Acknowledgement.SUCCESS) {
+          Blob blob = Compression.recode(readResult.blob, acceptedCodecs);
+          if (blob == null) {
+            return failedBlobRead("Could not decompress contents (codec " + readResult.blob.codec + ").");
           }
+          readResult.blob = blob;
+        }
+        return readResult;
+      }
+
+      BlobReadResult readResult = failedBlobRead("");
+      try {
+        TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port, deadline.socketTimeout());
+        TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+        DFSNode.Client client = new DFSNode.Client(protocol);
+        transport.open();
+        Log.debug("%s READ_BLOB(%s): Forwarding to Coordinator Node.", name(), filename);
+        readResult = client.readBlob(filename, acceptedCodecs, deadline.forwardBudget(), knownVersion);
+        transport.close();
+      } catch(TException e) {
+        if (deadline.isExpired()) {
+          Log.warn("%s READ_BLOB(%s): Timed out waiting for Coordinator Node.", name(), filename);
+          readResult.response.acknowledgement = Acknowledgement.TIMEOUT;
+          readResult.response.message = "Timed out waiting for Coordinator Node.";
+        } else {
+          Log.warn("%s READ_BLOB(%s): Failed to connect to Coordinator Node.", name(), filename);
+          readResult.response.message = "Failed to forward read to coordinator node.";
+        }
+      }
+      return readResult;
+    }
+
+    // Write quorum size for an erasure-coded write of this blob (0 == replicate in full)
+    private int stripeWidth(Blob blob) {
+      CoordinatorConfiguration config = dfsCoordinator.getCoordinatorConfiguration();
+      if (config.erasureK <= 0 || blob.data.remaining() < config.erasureMinSize) {
+        return 0;
+      }
+      int width = Math.max(config.erasureK + config.erasureM, config.nw);
+      return (width <= config.n) ? width : 0;
+    }
+
+    private static BlobReadResult failedBlobRead(String message) {
+      BlobReadResult readResult = new BlobReadResult();
+      readResult.response = new Response();
+      readResult.response.acknowledgement = Acknowledgement.FAILURE;
+      readResult.response.message = message;
+      readResult.version = -1;
+      return readResult;
+    }
+
+    /************************************************************************************************
+     quorumRead(): (COORDINATOR) newest version of the file from the read quorum, as stored
+     (NOT_MODIFIED, without contents, if it is no newer than knownVersion; -1 == always read it)
+     ************************************************************************************************/
+    private BlobReadResult quorumRead(String filename, int knownVersion, Deadline deadline) {
+      BlobReadResult readResult = failedBlobRead("");
+
+      if (!dfsCoordinator.isReady()) {
+        Log.info("%s COORDINATOR not ready, rejecting READ(%s) request.", name(), filename);
+        readResult.response.message = "Coordinator not ready. Check all nodes have joined and try again.";
+        return readResult;
+      }
+
+      if (readCoalescer != null) {
+        return readCoalescer.read(filename, knownVersion, deadline);
+      }
+      return limitedQuorumRead(filename, knownVersion, deadline);
+    }
+
+    // quorumRead() under admission control (one slot per shared read)
+    private BlobReadResult limitedQuorumRead(String filename, int knownVersion, Deadline deadline) {
+      BlobReadResult readResult = failedBlobRead("");
+
+      AdmissionController admission = dfsCoordinator.getAdmissionController();
+      if (!admission.admit(AdmissionController.Operation.READ, deadline)) {
+        Log.info("%s COORDINATOR overloaded, rejecting READ(%s) request.", name(), filename);
+        readResult.response.acknowledgement = Acknowledgement.OVERLOADED;
+        readResult.response.message = "Coordinator overloaded, try again later.";
+        readResult.response.retryAfterMillis = admission.retryAfterMillis(AdmissionController.Operation.READ);
+        return readResult;
+      }
+      long admittedAt = System.nanoTime();
+      boolean timedOut = true;
+      try {
+        readResult = admittedQuorumRead(filename, knownVersion, deadline);
+        timedOut = (readResult.response.acknowledgement == Acknowledgement.TIMEOUT);
+        return readResult;
+      } finally {
+        admission.release(AdmissionController.Operation.READ, admittedAt, timedOut);
+      }
+    }
+
+    private BlobReadResult admittedQuorumRead(String filename, int knownVersion, Deadline deadline) {
+      BlobReadResult readResult = failedBlobRead("");
+
+      dfsCoordinator.beginOperation();
+      try {
+        if (!dfsCoordinator.acquireLockOnFile(filename, deadline)) {
+          Log.warn("%s READ(%s): Timed out waiting for lock on file.", name(), filename);
+          readResult.response.acknowledgement = Acknowledgement.TIMEOUT;
+          readResult.response.message = "Timed out waiting for other requests on this file.";
+          return readResult;
+        }
+        try {
+          long start = System.currentTimeMillis();
+          readResult = lockedQuorumRead(filename, knownVersion, deadline);
+          dfsCoordinator.recordRead(System.currentTimeMillis() - start, dfsCoordinator.getCoordinatorConfiguration().nr);
+          return readResult;
+        } finally {
+          dfsCoordinator.releaseLockOnFile(filename);
         }
-        dfsCoordinator.releaseLockOnFile(filename);
+      } finally {
+        dfsCoordinator.endOperation();
+      }
+    }
+
+    /************************************************************************************************
+     lockedQuorumRead(): (COORDINATOR) reads a file from its read quorum, with the file's lock held
+     ************************************************************************************************/
+    private BlobReadResult lockedQuorumRead(String filename, int knownVersion, Deadline deadline) {
+      BlobReadResult readResult = failedBlobRead("");
+
+      FileProbe readerProbe = dfsCoordinator.getReaderProbe(filename, deadline);
+      FileInfo readerInfo = (readerProbe == null) ? null : readerProbe.info;
+      NodeInfo readerNode = (readerInfo == null) ? null : readerInfo.sourceNode;
+      if (readerNode == null && deadline.isExpired()) {
+        Log.warn("%s READ(%s): Timed out collecting versions from read quorum.", name(), filename);
+        readResult.response.acknowledgement = Acknowledgement.TIMEOUT;
+        readResult.response.message = "Timed out collecting versions from read quorum.";
+      } else if (readerNode == null) {
+        Log.info("%s READ(%s): Not enough live nodes for a read quorum, rejecting.", name(), filename);
+        readResult.response.message = "Not enough live nodes to form a read quorum. Try again later.";
+      } else if (readerNode.port == -1) {
+        Log.info("%s READ(%s): File not found.", name(), filename);
+        readResult.response.message = "File does not exist yet";
+      } else if (knownVersion >= 0 && readerInfo.version <= knownVersion) {
+        // Caller is up to date: the version probe already told us, no need to move the contents
+        Log.debug("%s READ(%s): VERSION %d not modified.", name(), filename, readerInfo.version);
+        readResult.response.acknowledgement = Acknowledgement.NOT_MODIFIED;
+        readResult.version = readerInfo.version;
+      } else if (readerProbe.blob != null) {
+        // Small file: the newest node already sent its contents with the version probe
+        Log.debug("%s READ(%s): VERSION %d inlined by %s:%d", name(), filename, readerInfo.version, readerNode.ip, readerNode.port);
+        readResult.response.acknowledgement = Acknowledgement.SUCCESS;
+        readResult.blob = readerProbe.blob;
+        readResult.version = readerInfo.version;
       } else {
+        Log.debug("%s READ(%s): Will read from %s:%d", name(), filename, readerNode.ip, readerNode.port);
+        long quorumReadStart = System.nanoTime();
         try {
-          TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port);
+          TTransport transport = new TSocket(readerNode.ip, readerNode.port, deadline.socketTimeout());
           TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
           DFSNode.Client client = new DFSNode.Client(protocol);
           transport.open();
-          System.out.printf(name() + " READ(%s): Forwarding to Coordinator Node.\n", filename);
-          readResult = client.read(filename);
+          Log.debug("%s READ(%s): Forwarding to reader (%s:%d).", name(), filename, readerNode.ip, readerNode.port);
+          if (knownVersion >= 0) {
+            readResult = client.performReadBlobIfNewer(filename, Compression.SUPPORTED, knownVersion);
+          } else {
+            readResult = client.performReadBlob(filename, Compression.SUPPORTED);
+          }
           transport.close();
+          metrics.record(Metrics.QUORUM_READ, quorumReadStart);
+          dfsCoordinator.recordSuccess(readerNode);
+
+          if (readResult.response.acknowledgement == Acknowledgement.SUCCESS && ErasureCoding.isFragment(readResult.blob)) {
+            // (an older version if this one's stripe can't be rebuilt: its write failed part way)
+            BlobReadResult rebuilt = dfsCoordinator.readFragments(filename, readResult, readerNode, deadline);
+            if (rebuilt != null) {
+              readResult = rebuilt;
+            } else if (deadline.isExpired()) {
+              readResult = failedBlobRead("Timed out collecting erasure-coded fragments.");
+              readResult.response.acknowledgement = Acknowledgement.TIMEOUT;
+            } else {
+              readResult = failedBlobRead("Not enough erasure-coded fragments available to rebuild the file.");
+            }
+          }
         } catch(TException e) {
-          System.err.printf(name() + " READ(%s): Failed to connect to Coordinator Node.\n", filename);
-          readResult.response.message = "Failed to forward read to coordinator node.";
+          dfsCoordinator.recordFailure(readerNode);
+          if (deadline.isExpired()) {
+            Log.warn("%s READ(%s): Timed out reading from (%s:%d).", name(), filename, readerNode.ip, readerNode.port);
+            readResult.response.acknowledgement = Acknowledgement.TIMEOUT;
+            readResult.response.message = "Timed out reading from reader.";
+          } else {
+            Log.warn("%s READ(%s): Failed to connect to reader (%s:%d).", name(), filename, readerNode.ip, readerNode.port);
+            readResult.response.message = "Failed to connect to reader.";
+          }
         }
       }
+      // The file's lock doesn't cover writes' transfers: only answer with a version once its write is done
+      if (readResult.response.acknowledgement == Acknowledgement.SUCCESS && !dfsCoordinator.awaitWrite(filename, readResult.version, deadline)) {
+        Log.warn("%s READ(%s): Timed out waiting for the write of VERSION %d.", name(), filename, readResult.version);
+        readResult = failedBlobRead("Timed out waiting for a write in progress on this file.");
+        readResult.response.acknowledgement = Acknowledgement.TIMEOUT;
+      }
       return readResult;
     }
 
     @Override
     public WriteResult performWrite(String filename, String contents, int version) {
-      System.out.printf(name() + " Received PERFORM_WRITE(%s) request.\n", filename);
+      Log.debug("%s Received PERFORM_WRITE(%s) request.", name(), filename);
       return fileManager.performWrite(filename, contents, version);
     }
 
     @Override
     public ReadResult performRead(String filename) {
-      System.out.printf(name() + " Received PERFORM_READ(%s) request.\n", filename);
+      Log.debug("%s Received PERFORM_READ(%s) request.", name(), filename);
       return fileManager.performRead(filename);
     }
 
+    @Override
+    public WriteResult performWriteBlob(String filename, Blob blob, int version) {
+      Log.debug("%s Received PERFORM_WRITE_BLOB(%s, %s) request.", name(), filename, blob.codec);
+      return fileManager.performWriteBlob(filename, blob, version);
+    }
+
+    @Override
+    public WriteResult performWriteByHash(String filename, String hash, int version) {
+      Log.debug("%s Received PERFORM_WRITE_BY_HASH(%s) request.", name(), filename);
+      return fileManager.performWriteByHash(filename, hash, version);
+    }
+
+    @Override
+    public List<BlobReadResult> performReadFragments(String filename, List<Codec> acceptedCodecs) {
+      Log.debug("%s Received PERFORM_READ_FRAGMENTS(%s) request.", name(), filename);
+      return fileManager.performReadFragments(filename, acceptedCodecs);
+    }
+
+    @Override
+    public Response commitStripe(String filename, int version) {
+      Log.debug("%s Received COMMIT_STRIPE(%s, %d) request.", name(), filename, version);
+      return fileManager.commitStripe(filename, version);
+    }
+
+    /************************************************************************************************
+     pushBlob(): write a blob to a replica, sending only its hash first and the contents only if
+     the replica doesn't already store them (rewrites with unchanged contents cost ~nothing).
+     Blobs of at most directMaxSize bytes are sent right away: for them the hash round trip
+     would cost more than it saves (pass inline_max_size)
+     ************************************************************************************************/
+    static WriteResult pushBlob(DFSNode.Client client, String filename, Blob blob, int version, int directMaxSize) throws TException {
+      if (blob.hash != null && blob.data.remaining() > directMaxSize) {
+        WriteResult result = client.performWriteByHash(filename, blob.hash, version);
+        if (result.response.acknowledgement != Acknowledgement.MISSING_CONTENTS) {
+          return result;
+        }
+      }
+      return client.performWriteBlob(filename, blob, version);
+    }
+
+    @Override
+    public BlobReadResult performReadBlob(String filename, List<Codec> acceptedCodecs) {
+      Log.debug("%s Received PERFORM_READ_BLOB(%s) request.", name(), filename);
+      return fileManager.performReadBlob(filename, acceptedCodecs);
+    }
+
+    @Override
+    public BlobReadResult performReadBlobIfNewer(String filename, List<Codec> acceptedCodecs, int knownVersion) {
+      Log.debug("%s Received PERFORM_READ_BLOB_IF_NEWER(%s, %d) request.", name(), filename, knownVersion);
+      return fileManager.performReadBlobIfNewer(filename, acceptedCodecs, knownVersion);
+    }
+
     @Override
     public FileInfo getFileInfo(String filename) {
-      System.out.printf(name() + " Received GET_FILE_INFO(%s) request.\n", filename);
+      Log.debug("%s Received GET_FILE_INFO(%s) request.", name(), filename);
       return fileManager.getFileInfo(filename);
     }
 
+    @Override
+    public FileProbe probeFile(String filename, int inlineMaxSize) {
+      Log.debug("%s Received PROBE_FILE(%s) request.", name(), filename);
+      return fileManager.probeFile(filename, inlineMaxSize);
+    }
+
+    @Override
+    public List<FileInfo> getFileInfos(List<String> filenames) {
+      Log.debug("%s Received GET_FILE_INFOS(%d files) request.", name(), filenames.size());
+      return fileManager.getFileInfos(filenames);
+    }
+
+    @Override
+    public List<FileProbe> probeFiles(List<String> filenames, int inlineMaxSize) {
+      Log.debug("%s Received PROBE_FILES(%d files) request.", name(), filenames.size());
+      return fileManager.probeFiles(filenames, inlineMaxSize);
+    }
+
     @Override
     public Response update() {
-      System.out.printf(name() + " Received UPDATE() request.\n");
+      Log.info("%s Received UPDATE() request.", name());
       Response response = new Response();
       response.acknowledgement = Acknowledgement.SUCCESS;
       response.message = "";
@@ -217,11 +772,17 @@ public class DFSNodeHandler implements DFSNode.Iface {
       // for each file in file manager, call READ
       ArrayList<FileInfo> allFilesOnNode = fileManager.getAllFileInfos();
       for (FileInfo file : allFilesOnNode) {
-        // Call read, fwd to coordinator, get updated info on file:
-        ReadResult readResult = read(file.filename);
-        if (readResult.response.acknowledgement == Acknowledgement.SUCCESS) {
+        // Call read, fwd to coordinator, get updated info on file (still compressed):
+        // (NOT_MODIFIED: our version is the newest, no contents sent)
+        BlobReadResult readResult = readBlob(file.filename, Compression.SUPPORTED, Deadline.DEFAULT_BUDGET_MILLIS, file.version);
+        if (readResult.response.acknowledgement == Acknowledgement.NOT_MODIFIED) {
+          continue;
+        } else if (readResult.response.acknowledgement == Acknowledgement.SUCCESS && readResult.version <= file.version) {
+          // Already up to date (and keep erasure-coded fragments as fragments)
+          continue;
+        } else if (readResult.response.acknowledgement == Acknowledgement.SUCCESS) {
           // Local write:
-          WriteResult writeResult = fileManager.performWrite(file.filename, readResult.contents, readResult.version);
+          WriteResult writeResult = fileManager.performWriteBlob(file.filename, readResult.blob, readResult.version);
           if (writeResult.response.acknowledgement == Acknowledgement.FAILURE) {
             response.acknowledgement = Acknowledgement.FAILURE;
             response.message = "Failed to write to file '" + file.filename + "'";
@@ -234,70 +795,105 @@ public class DFSNodeHandler implements DFSNode.Iface {
           return response;
         }
       }
-      System.out.printf("\n" + name() + " File versions post UPDATE().\n");
+      Log.debug("%s File versions post UPDATE().", name());
       fileManager.printAllFileVersions();
       return response;
     }
 
+    @Override
+    public List<LatencySummary> getMetrics() {
+      return metrics.getSummaries();
+    }
+
     @Override
     public NodeInfo getRandomNode() {
-      System.out.printf(name() + " Received GET_RANDOM_NODE() request.\n");
+      Log.info("%s Received GET_RANDOM_NODE() request.", name());
       return dfsCoordinator.getRandomNode();
     }
 
 
     @Override
     public List<FileInfo> getFiles() {
-      System.out.printf(name() + " Received GET_FILES() request.\n");
+      Log.debug("%s Received GET_FILES() request.", name());
       return fileManager.getAllFileInfos();
     }
 
+    @Override
+    public SnapshotManifest openSnapshot(long bytesPerSecond) {
+      Log.info("%s Received OPEN_SNAPSHOT() request.", name());
+      return snapshotTransfer.open(bytesPerSecond);
+    }
+
+    @Override
+    public Response bootstrapFrom(NodeInfo peer, long bytesPerSecond) {
+      Log.info("%s Received BOOTSTRAP_FROM(%s:%d) request.", name(), peer.ip, peer.port);
+      return snapshotTransfer.bootstrapFrom(peer, bytesPerSecond);
+    }
+
     @Override
     public List<FileInfo> getAllFileVersions() {
-      System.out.printf(name() + " Received GET_ALL_FILE_VERSIONS() request.\n");
+      Log.info("%s Received GET_ALL_FILE_VERSIONS() request.", name());
       if (isCoordinator()) {
         if (!dfsCoordinator.isReady()) {
           return null;
         }
-        List<NodeInfo> readQuorum = dfsCoordinator.buildReadQuorum();
-        List<FileInfo> allFiles = new ArrayList<FileInfo>();
-
-        for (NodeInfo reader : readQuorum) {
-          try {
-            TTransport transport = new TSocket(reader.ip, reader.port);
-            TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
-            DFSNode.Client client = new DFSNode.Client(protocol);
-
-            transport.open();
-
-            List<FileInfo> filesFromReader = client.getFiles();
-            allFiles.addAll(filesFromReader);
-
-            transport.close();
-
-          } catch(TException e) {
-            System.err.printf(name() + " GET_ALL_FILE_VERSIONS(): Failed to connect to reader node to get files.\n");
-          }
-        }
-        allFiles = fileManager.filterToMostRecentFiles(allFiles);
-        return allFiles;
+        return dfsCoordinator.getCatalog().getAll();
 
       } else {
         try {
-          TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port);
+          TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port, Deadline.DEFAULT_BUDGET_MILLIS);
           TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
           DFSNode.Client client = new DFSNode.Client(protocol);
           transport.open();
-          System.out.printf(name() + " GET_ALL_FILE_VERSIONS(): Forwarding to Coordinator Node.\n");
+          Log.debug("%s GET_ALL_FILE_VERSIONS(): Forwarding to Coordinator Node.", name());
           List<FileInfo> files = client.getAllFileVersions();
           transport.close();
           return files;
         } catch(TException e) {
-          System.err.printf(name() + " GET_ALL_FILE_VERSIONS(): Failed to connect to Coordinator Node.\n");
+          Log.warn("%s GET_ALL_FILE_VERSIONS(): Failed to connect to Coordinator Node.", name());
         }
       }
       return new ArrayList<FileInfo>();
     }
 
+    @Override
+    public FileListPage listFiles(String prefix, String cursor, int limit) {
+      Log.info("%s Received LIST_FILES(%s) request.", name(), prefix);
+      if (isCoordinator()) {
+        if (!dfsCoordinator.isReady()) {
+          FileListPage page = new FileListPage();
+          page.response = new Response();
+          page.response.acknowledgement = Acknowledgement.FAILURE;
+          page.response.message = "Coordinator not ready. Check all nodes have joined and try again.";
+          page.files = new ArrayList<FileInfo>();
+          page.nextCursor = "";
+          page.hasMore = false;
+          return page;
+        }
+        return dfsCoordinator.getCatalog().listFiles(prefix, cursor, limit);
+
+      } else {
+        FileListPage page = new FileListPage();
+        try {
+          TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port, Deadline.DEFAULT_BUDGET_MILLIS);
+          TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+          DFSNode.Client client = new DFSNode.Client(protocol);
+          transport.open();
+          Log.debug("%s LIST_FILES(%s): Forwarding to Coordinator Node.", name(), prefix);
+          page = client.listFiles(prefix, cursor, limit);
+          transport.close();
+        } catch(TException e) {
+          Log.warn("%s LIST_FILES(%s): Failed to connect to Coordinator Node.", name(), prefix);
+          page.response = new Response();
+          page.response.acknowledgement = Acknowledgement.FAILURE;
+          page.response.message = "Failed to forward listing to coordinator node.";
+          page.files = new ArrayList<FileInfo>();
+          page.nextCursor = "";
+          page.hasMore = false;
+        }
+        return page;
+      }
+    }
+
 
 }
@@ -27,6 +27,7 @@ public class DFSNodeInstance {
     private static final String DFS_DEFAULTS_FILE = "default.properties";
 
     private static int update_frequency;
+    private static int heartbeat_interval;
 
     private static NodeInfo nodeInfo;
     private static NodeInfo coordinatorInfo;
@@ -78,6 +79,12 @@ public class DFSNodeInstance {
         }
       }
       update_frequency = Integer.valueOf(userDefinedProperties.getProperty(Property.update_frequency.name()));
+      heartbeat_interval = Integer.valueOf(userDefinedProperties.getProperty(Property.heartbeat_interval.name()));
+      try {
+        Log.setLevel(Log.Level.valueOf(userDefinedProperties.getProperty(Property.log_level.name())));
+      } catch (IllegalArgumentException e) {
+        System.err.printf("[NodeInstance] Log level '%s' not recognized, using INFO.\n", userDefinedProperties.getProperty(Property.log_level.name()));
+      }
     }
 
     public static void makeNodeDirectory() {
@@ -100,6 +107,7 @@ public class DFSNodeInstance {
             args.transportFactory(factory);
 
             TServer server = new TThreadPoolServer(args);
+            server.setServerEventHandler(new RequestBuffers(dfsNodeHandler.getMetricsRegistry().getLoadTracker()));
 
             System.out.printf("[NodeInstance] Starting on '%s:%d'\n",
                     nodeInfo.ip,
@@ -118,7 +126,7 @@ public class DFSNodeInstance {
         if (!nodeInfo.isCoordinator) {
 
           // Connect to [COORDINATOR NODE]
-          TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port);
+          TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port, Deadline.DEFAULT_BUDGET_MILLIS);
           TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
           DFSNode.Client coordinatorNodeClient = new DFSNode.Client(protocol);
 
@@ -144,6 +152,50 @@ public class DFSNodeInstance {
         }
     }
 
+    public static void tryToLeaveDFS() {
+
+        // Only need to 'leave' if not coordinator:
+        if (!nodeInfo.isCoordinator) {
+
+          TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port, Deadline.DEFAULT_BUDGET_MILLIS);
+          TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+          DFSNode.Client coordinatorNodeClient = new DFSNode.Client(protocol);
+
+          try {
+            transport.open();
+            Response leaveResponse = coordinatorNodeClient.leaveDFS(nodeInfo);
+            transport.close();
+
+            if (leaveResponse.acknowledgement == Acknowledgement.SUCCESS) {
+              System.out.println("[NodeInstance] Successfully left DFS");
+            } else {
+              System.out.println("[NodeInstance] Failed to leave DFS (" + leaveResponse.message + ")");
+            }
+          }
+          catch (TException e) {
+            System.err.println("[NodeInstance] Error leaving DFS (connecting to coordinator node)\n");
+          }
+
+        }
+    }
+
+    public static boolean sendHeartbeat() {
+
+      TTransport transport = new TSocket(coordinatorInfo.ip, coordinatorInfo.port, heartbeat_interval);
+      TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+      DFSNode.Client coordinatorNodeClient = new DFSNode.Client(protocol);
+
+      try {
+        transport.open();
+        Response heartbeatResponse = coordinatorNodeClient.heartbeat(nodeInfo, dfsNodeHandler.getMetricsRegistry().getLoadTracker().getLoad());
+        transport.close();
+        return heartbeatResponse.acknowledgement == Acknowledgement.SUCCESS;
+      }
+      catch (TException e) {
+        return false;
+      }
+    }
+
     public static void callUpdate() {
 
       TTransport transport = new TSocket(nodeInfo.ip, nodeInfo.port);
@@ -197,6 +249,7 @@ public class DFSNodeInstance {
 
           coordinatorConfigManager.readInCoordinatorProperties(commandLineArgsAsString);
           update_frequency = coordinatorConfigManager.getUpdateFrequency();
+          Log.setLevel(coordinatorConfigManager.getLogLevel());
           System.out.print("[NodeInstance] Coordinator node configurations PRIOR to adjustment:");
           coordinatorConfigManager.printCoordinatorConfiguration();
           coordinatorConfigManager.setNrNw();
@@ -207,7 +260,7 @@ public class DFSNodeInstance {
 
           coordinatorConfigManager.writeCoordinatorInfoToPropFile();
           dfsNodeHandler = new DFSNodeHandler(nodeInfo, coordinatorConfig);
-          processor = new DFSNode.Processor(dfsNodeHandler);
+          processor = new DFSNode.Processor(dfsNodeHandler.getMetricsRegistry().instrument(dfsNodeHandler));
 
         } else {
             /******************************************************************
@@ -241,7 +294,7 @@ public class DFSNodeInstance {
 
             // Create DFSNodeHandler/processor using regular node constructor
             dfsNodeHandler = new DFSNodeHandler(nodeInfo, coordinatorInfo);
-            processor = new DFSNode.Processor(dfsNodeHandler);
+            processor = new DFSNode.Processor(dfsNodeHandler.getMetricsRegistry().instrument(dfsNodeHandler));
 
             /******************************************************************/
           }
@@ -281,6 +334,7 @@ public class DFSNodeInstance {
             Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
                 public void run() {
                     System.out.format("\n[NodeInstance] Shutting down DFSNode.\n");
+                    tryToLeaveDFS();
                     if (nodeInfo.isCoordinator) {
                       coordinatorConfigManager.cleanCoordinatorPropFile();
                       System.out.println("[NodeInstance] Resetting Coordinator Node's properties.");
@@ -315,6 +369,26 @@ public class DFSNodeInstance {
             }
         };
 
+        Runnable heartbeat = new Runnable() {
+            @Override
+            public void run() {
+              boolean wasHeard = true;
+              while(true) {
+                try {
+                  Thread.sleep(heartbeat_interval);
+                  boolean heard = sendHeartbeat();
+                  if (heard != wasHeard) {
+                    // Only print when it changes, don't flood the log every interval
+                    System.out.printf("[NodeInstance] Heartbeats %s by Coordinator Node.\n", heard ? "accepted" : "NOT accepted");
+                    wasHeard = heard;
+                  }
+                } catch (InterruptedException ie) {
+                  ie.printStackTrace();
+                }
+              }
+            }
+        };
+
         Thread t_shutdown= new Thread(shutdown_hook);
         t_shutdown.start();
 
@@ -324,6 +398,12 @@ public class DFSNodeInstance {
         Thread t_update= new Thread(update);
         t_update.start();
 
+        if (!nodeInfo.isCoordinator) {
+          Thread t_heartbeat= new Thread(heartbeat);
+          t_heartbeat.setDaemon(true);
+          t_heartbeat.start();
+        }
+
         setupThreadedServer();
 
     }
@@ -0,0 +1,51 @@
+/**
+ * Deadline is the time budget of one client request as it is passed from hop to
+ * hop (client --> node --> coordinator --> replicas).
+ *
+ * Each hop builds a Deadline from the budget it was given, uses whatever is left
+ * as its socket timeout / lock wait, and forwards the remaining budget (minus a
+ * small margin, so the next hop gives up and answers TIMEOUT before we do).
+ */
+class Deadline {
+
+  // Used if the caller didn't pass a budget (<= 0)
+  public static final int DEFAULT_BUDGET_MILLIS = 10000;
+  // Kept back when forwarding so the next hop's TIMEOUT response can reach us
+  private static final long HOP_MARGIN_MILLIS = 50;
+
+  private final long expiresAt;
+
+  private Deadline(long expiresAt) {
+    this.expiresAt = expiresAt;
+  }
+
+  public static Deadline after(int budgetMillis) {
+    if (budgetMillis <= 0) {
+      budgetMillis = DEFAULT_BUDGET_MILLIS;
+    }
+    return new Deadline(System.currentTimeMillis() + budgetMillis);
+  }
+
+  public long remainingMillis() {
+    return Math.max(0, expiresAt - System.currentTimeMillis());
+  }
+
+  public boolean isExpired() {
+    return remainingMillis() == 0;
+  }
+
+  /**
+   * Timeout for a socket used by this hop (TSocket treats 0 as 'wait forever')
+   */
+  public int socketTimeout() {
+    return (int) Math.max(1, remainingMillis());
+  }
+
+  /**
+   * Budget to pass on to the next hop
+   */
+  public int forwardBudget() {
+    return (int) Math.max(1, remainingMillis() - HOP_MARGIN_MILLIS);
+  }
+
+}
@@ -0,0 +1,102 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * EntrySelector runs on the COORDINATOR and picks the node a new client should
+ * send its requests to (getRandomNode()), using the load every node reports
+ * with its heartbeats.
+ *
+ *    RANDOM          uniformly random (ignores load)
+ *    TWO_CHOICES     the less loaded of two random nodes
+ *    LEAST_LOADED    the least loaded node
+ *
+ * Reported load is up to one heartbeat old, so every client sent to a node
+ * since its last report counts as one more connection. Otherwise a burst of
+ * clients would all be sent to the same node.
+ */
+class EntrySelector {
+
+  private static class Report {
+    final NodeLoad load;
+    final AtomicInteger assignedSince = new AtomicInteger(); // clients sent here since this report
+
+    Report(NodeLoad load) {
+      this.load = load;
+    }
+  }
+
+  private final EntrySelection selection;
+  private ConcurrentHashMap<String, Report> reports = new ConcurrentHashMap<String, Report>();
+  private Random random = new Random();
+
+  public EntrySelector(EntrySelection selection) {
+    this.selection = (selection == null) ? EntrySelection.TWO_CHOICES : selection;
+  }
+
+  private static String nodeKey(NodeInfo n) {
+    return n.ip + ":" + Integer.toString(n.port);
+  }
+
+  public void report(NodeInfo n, NodeLoad load) {
+    if (load != null) {
+      reports.put(nodeKey(n), new Report(load));
+    }
+  }
+
+  public void forget(NodeInfo n) {
+    reports.remove(nodeKey(n));
+  }
+
+  /************************************************************************************************
+   score(): lower is better (nodes that never reported count as idle)
+   ************************************************************************************************/
+  private double score(NodeInfo n) {
+    Report report = reports.get(nodeKey(n));
+    if (report == null) {
+      return 0;
+    }
+    return report.load.connections + report.load.inFlightRequests + report.assignedSince.get() + report.load.cpuLoad;
+  }
+
+  /************************************************************************************************
+   choose(): entry node for a new client among the candidates (null if there are none)
+   ************************************************************************************************/
+  public NodeInfo choose(List<NodeInfo> candidates) {
+    if (candidates.isEmpty()) {
+      return null;
+    }
+    NodeInfo chosen;
+    if (selection == EntrySelection.RANDOM || candidates.size() == 1) {
+      chosen = candidates.get(random.nextInt(candidates.size()));
+    } else if (selection == EntrySelection.TWO_CHOICES) {
+      int first = random.nextInt(candidates.size());
+      int second = random.nextInt(candidates.size() - 1);
+      if (second >= first) {
+        second++;
+      }
+      chosen = (score(candidates.get(second)) < score(candidates.get(first))) ? candidates.get(second) : candidates.get(first);
+    } else {
+      // LEAST_LOADED (ties broken at random, starting from a random node)
+      int start = random.nextInt(candidates.size());
+      chosen = candidates.get(start);
+      double best = score(chosen);
+      for (int i = 1; i < candidates.size(); i++) {
+        NodeInfo candidate = candidates.get((start + i) % candidates.size());
+        double candidateScore = score(candidate);
+        if (candidateScore < best) {
+          chosen = candidate;
+          best = candidateScore;
+        }
+      }
+    }
+    Report report = reports.get(nodeKey(chosen));
+    if (report == null) {
+      reports.putIfAbsent(nodeKey(chosen), new Report(new NodeLoad()));
+      report = reports.get(nodeKey(chosen));
+    }
+    report.assignedSince.incrementAndGet();
+    return chosen;
+  }
+
+}
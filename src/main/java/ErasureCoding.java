@@ -0,0 +1,93 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * ErasureCoding splits a (compressed) Blob into Reed-Solomon fragment Blobs,
+ * one per node, and joins any dataFragments of them back into the Blob.
+ *
+ * Fragments keep the blob's codec and rawLength (they describe the whole
+ * file); each gets its own hash so FileManager's content store and the
+ * hash-first replication handshake treat fragments as distinct contents.
+ */
+class ErasureCoding {
+
+  public static boolean isFragment(Blob blob) {
+    return blob != null && blob.fragment != null;
+  }
+
+  /************************************************************************************************
+   split(): blob --> totalFragments fragments (the first dataFragments hold the data itself)
+   ************************************************************************************************/
+  public static List<Blob> split(Blob blob, int dataFragments, int totalFragments) {
+    byte[] data = Compression.bytes(blob);
+    int fragmentSize = Math.max(1, (data.length + dataFragments - 1) / dataFragments);
+
+    byte[][] shards = new byte[totalFragments][fragmentSize];
+    for (int i = 0; i < dataFragments; i++) {
+      int offset = i * fragmentSize;
+      if (offset < data.length) {
+        System.arraycopy(data, offset, shards[i], 0, Math.min(fragmentSize, data.length - offset));
+      }
+    }
+    new ReedSolomon(dataFragments, totalFragments - dataFragments).encode(shards);
+
+    List<Blob> fragments = new ArrayList<Blob>(totalFragments);
+    for (int i = 0; i < totalFragments; i++) {
+      Fragment fragment = new Fragment();
+      fragment.index = i;
+      fragment.dataFragments = dataFragments;
+      fragment.totalFragments = totalFragments;
+      fragment.length = data.length;
+      fragment.contentHash = blob.hash;
+
+      Blob fragmentBlob = new Blob();
+      fragmentBlob.codec = blob.codec;
+      fragmentBlob.rawLength = blob.rawLength;
+      fragmentBlob.data = ByteBuffer.wrap(shards[i]);
+      fragmentBlob.hash = blob.hash + "-" + Integer.toString(i) + "of" +
+        Integer.toString(dataFragments) + "+" + Integer.toString(totalFragments - dataFragments);
+      fragmentBlob.fragment = fragment;
+      fragments.add(fragmentBlob);
+    }
+    return fragments;
+  }
+
+  /************************************************************************************************
+   join(): any dataFragments fragments (of the same blob) --> blob (null if there aren't enough)
+   ************************************************************************************************/
+  public static Blob join(Collection<Blob> fragments) {
+    Blob first = fragments.iterator().next();
+    Fragment layout = first.fragment;
+
+    byte[][] shards = new byte[layout.totalFragments][];
+    int found = 0;
+    for (Blob fragment : fragments) {
+      int index = fragment.fragment.index;
+      if (shards[index] == null && fragment.fragment.contentHash.equals(layout.contentHash)) {
+        shards[index] = Compression.bytes(fragment);
+        found++;
+      }
+    }
+    if (found < layout.dataFragments) {
+      return null;
+    }
+
+    byte[][] dataShards = new ReedSolomon(layout.dataFragments, layout.totalFragments - layout.dataFragments).decode(shards);
+    byte[] data = new byte[layout.length];
+    int fragmentSize = dataShards[0].length;
+    for (int i = 0; i < layout.dataFragments; i++) {
+      int offset = i * fragmentSize;
+      if (offset < data.length) {
+        System.arraycopy(dataShards[i], 0, data, offset, Math.min(fragmentSize, data.length - offset));
+      }
+    }
+
+    Blob blob = new Blob();
+    blob.codec = first.codec;
+    blob.rawLength = first.rawLength;
+    blob.data = ByteBuffer.wrap(data);
+    blob.hash = layout.contentHash;
+    return blob;
+  }
+
+}
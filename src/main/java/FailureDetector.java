@@ -0,0 +1,116 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FailureDetector is a phi-accrual failure detector used by the COORDINATOR.
+ *
+ * Every node sends heartbeat() at a fixed interval. For each node we keep a
+ * window of recent inter-arrival times and compute "phi", the suspicion that
+ * the node is down given how long it has been since its last heartbeat:
+ *
+ *    phi = -log10( P(next heartbeat arrives later than now) )
+ *
+ * A node is considered down once phi crosses the configured threshold
+ * (phi = 8 means roughly a 1 in 10^8 chance we are wrong).
+ */
+class FailureDetector {
+
+  private static final int WINDOW_SIZE = 100;
+
+  private double threshold;
+  private long expectedIntervalMillis;
+  private ConcurrentHashMap<String, HeartbeatHistory> histories = new ConcurrentHashMap<String, HeartbeatHistory>();
+
+  /**
+   * Inter-arrival times of one node's heartbeats (ring buffer)
+   */
+  private static class HeartbeatHistory {
+    private long[] intervals = new long[WINDOW_SIZE];
+    private int count = 0;
+    private int next = 0;
+    private double sum = 0;
+    private double sumOfSquares = 0;
+    private long lastHeartbeat;
+
+    HeartbeatHistory(long now) {
+      lastHeartbeat = now;
+    }
+
+    synchronized void heartbeat(long now) {
+      long interval = now - lastHeartbeat;
+      lastHeartbeat = now;
+      if (count == WINDOW_SIZE) {
+        sum -= intervals[next];
+        sumOfSquares -= (double) intervals[next] * intervals[next];
+      } else {
+        count++;
+      }
+      intervals[next] = interval;
+      sum += interval;
+      sumOfSquares += (double) interval * interval;
+      next = (next + 1) % WINDOW_SIZE;
+    }
+
+    synchronized double phi(long now, long expectedIntervalMillis) {
+      double mean = (count > 0) ? sum / count : expectedIntervalMillis;
+      double variance = (count > 1) ? (sumOfSquares / count) - (mean * mean) : 0;
+      // Floor the deviation so a perfectly regular node isn't declared dead after one late beat
+      double stddev = Math.max(Math.sqrt(Math.max(variance, 0)), mean / 4);
+      long delta = now - lastHeartbeat;
+
+      // Logistic approximation of the normal CDF
+      double y = (delta - mean) / stddev;
+      double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+      if (delta > mean) {
+        return -Math.log10(e / (1.0 + e));
+      } else {
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+      }
+    }
+  }
+
+  public FailureDetector(double threshold, long expectedIntervalMillis) {
+    this.threshold = threshold;
+    this.expectedIntervalMillis = expectedIntervalMillis;
+  }
+
+  private static String nodeKey(NodeInfo n) {
+    return n.ip + ":" + Integer.toString(n.port);
+  }
+
+  /**
+   * Start tracking a node (counts as its first heartbeat)
+   */
+  public void track(NodeInfo n) {
+    histories.put(nodeKey(n), new HeartbeatHistory(System.currentTimeMillis()));
+  }
+
+  public void forget(NodeInfo n) {
+    histories.remove(nodeKey(n));
+  }
+
+  /**
+   * @return false if node isn't being tracked
+   */
+  public boolean heartbeat(NodeInfo n) {
+    HeartbeatHistory history = histories.get(nodeKey(n));
+    if (history == null) {
+      return false;
+    }
+    history.heartbeat(System.currentTimeMillis());
+    return true;
+  }
+
+  public double phi(NodeInfo n) {
+    HeartbeatHistory history = histories.get(nodeKey(n));
+    if (history == null) {
+      return 0; // untracked (e.g. the coordinator itself)
+    }
+    return history.phi(System.currentTimeMillis(), expectedIntervalMillis);
+  }
+
+  public boolean isAlive(NodeInfo n) {
+    return phi(n) < threshold;
+  }
+
+}
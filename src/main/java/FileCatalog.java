@@ -0,0 +1,139 @@
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * FileCatalog is the COORDINATOR's sorted index of the most recent version of
+ * every file in the DFS. It is kept current by the write path, so listing files
+ * never has to touch the nodes. The parallel quorum scan is only used to
+ * (re)build it, e.g. when the DFS first becomes ready.
+ */
+class FileCatalog {
+
+  public static final int MAX_PAGE_SIZE = 1000;
+  private static final int MAX_SCAN_THREADS = 8;
+
+  // filename --> most recent known version (sorted by filename for paging)
+  private ConcurrentSkipListMap<String, FileInfo> files = new ConcurrentSkipListMap<String, FileInfo>();
+
+  /************************************************************************************************
+   record(): called once a version has been committed to a write quorum
+   ************************************************************************************************/
+  public void record(FileInfo fileInfo) {
+    while (true) {
+      FileInfo current = files.putIfAbsent(fileInfo.filename, fileInfo);
+      if (current == null || current.version >= fileInfo.version) {
+        return;
+      }
+      if (files.replace(fileInfo.filename, current, fileInfo)) {
+        return;
+      }
+    }
+  }
+
+  public void record(NodeInfo sourceNode, String filename, int version) {
+    FileInfo fileInfo = new FileInfo();
+    fileInfo.sourceNode = sourceNode;
+    fileInfo.filename = filename;
+    fileInfo.exists = true;
+    fileInfo.version = version;
+    record(fileInfo);
+  }
+
+  public FileInfo get(String filename) {
+    return files.get(filename);
+  }
+
+  public int size() {
+    return files.size();
+  }
+
+  public List<FileInfo> getAll() {
+    return new ArrayList<FileInfo>(files.values());
+  }
+
+  /************************************************************************************************
+   listFiles(): one page of files starting with 'prefix', strictly after 'cursor'
+   ************************************************************************************************/
+  public FileListPage listFiles(String prefix, String cursor, int limit) {
+    if (prefix == null) { prefix = ""; }
+    if (limit <= 0 || limit > MAX_PAGE_SIZE) { limit = MAX_PAGE_SIZE; }
+
+    NavigableMap<String, FileInfo> tail;
+    if (cursor != null && !cursor.isEmpty() && cursor.compareTo(prefix) >= 0) {
+      tail = files.tailMap(cursor, false);
+    } else {
+      tail = files.tailMap(prefix, true);
+    }
+
+    FileListPage page = new FileListPage();
+    page.response = new Response();
+    page.response.acknowledgement = Acknowledgement.SUCCESS;
+    page.response.message = "";
+    page.files = new ArrayList<FileInfo>(Math.min(limit, 64));
+    page.nextCursor = "";
+    page.hasMore = false;
+
+    for (Map.Entry<String, FileInfo> entry : tail.entrySet()) {
+      if (!entry.getKey().startsWith(prefix)) {
+        break; // sorted, so nothing further can match
+      }
+      if (page.files.size() == limit) {
+        page.hasMore = true;
+        break;
+      }
+      page.files.add(entry.getValue());
+      page.nextCursor = entry.getKey();
+    }
+    if (!page.hasMore) {
+      page.nextCursor = "";
+    }
+    return page;
+  }
+
+  /************************************************************************************************
+   rebuild(): parallel getFiles() scan of a read quorum, merged into the catalog
+   ************************************************************************************************/
+  public void rebuild(List<NodeInfo> readQuorum) {
+    Log.info("[FileCatalog] Rebuilding catalog from %d nodes...", readQuorum.size());
+    ExecutorService scanners = Executors.newFixedThreadPool(Math.max(1, Math.min(readQuorum.size(), MAX_SCAN_THREADS)));
+    List<Future<List<FileInfo>>> results = new ArrayList<Future<List<FileInfo>>>(readQuorum.size());
+
+    for (final NodeInfo reader : readQuorum) {
+      results.add(scanners.submit(new Callable<List<FileInfo>>() {
+        @Override
+        public List<FileInfo> call() throws TException {
+          TTransport transport = new TSocket(reader.ip, reader.port, Deadline.DEFAULT_BUDGET_MILLIS);
+          TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+          DFSNode.Client client = new DFSNode.Client(protocol);
+          transport.open();
+          List<FileInfo> filesFromReader = client.getFiles();
+          transport.close();
+          return filesFromReader;
+        }
+      }));
+    }
+
+    for (int i = 0; i < results.size(); i++) {
+      try {
+        for (FileInfo fileInfo : results.get(i).get()) {
+          if (fileInfo.exists) {
+            record(fileInfo);
+          }
+        }
+      } catch (InterruptedException | ExecutionException e) {
+        NodeInfo reader = readQuorum.get(i);
+        Log.warn("[FileCatalog] Failed to get files from %s:%d.", reader.ip, reader.port);
+      }
+    }
+    scanners.shutdown();
+    Log.info("[FileCatalog] Catalog rebuilt (%d files).", files.size());
+  }
+
+}
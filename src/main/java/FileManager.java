@@ -1,39 +1,107 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 
 class FileManager {
 
   private static final String PATH_TO_ROOT = "../../../";
-  private static final String DATA_DIRECTORY = PATH_TO_ROOT + "data/";
+  static final String DATA_DIRECTORY = PATH_TO_ROOT + "data/";
 
   private NodeInfo nodeInfo;
   private String pathToNodesDataDir;
+  private Metrics metrics;
 
-  private HashMap<String, Integer> fileVersions = new HashMap<String, Integer>();
-  private HashMap<String, Semaphore> fileLocks = new HashMap<String, Semaphore>();
+  // Concurrent: replicas are written by the request threads AND background replication
+  private ConcurrentHashMap<String, Integer> fileVersions = new ConcurrentHashMap<String, Integer>();
+  private ConcurrentHashMap<String, Semaphore> fileLocks = new ConcurrentHashMap<String, Semaphore>();
 
-  public FileManager(NodeInfo info) {
+  // Content store (see CONTENT STORE below): filename --> hash of its contents, hash --> object
+  private static final String OBJECTS_DIRECTORY = "objects/";
+  private ConcurrentHashMap<String, String> fileHashes = new ConcurrentHashMap<String, String>();
+  private ConcurrentHashMap<String, StoredObject> objects = new ConcurrentHashMap<String, StoredObject>();
+  private Semaphore objectsLock = new Semaphore(1);
+
+  // Erasure-coded files: a fragment only helps once enough of its stripe landed, so until the
+  // coordinator commits the stripe of a file's current version (commitStripe()), the file's last
+  // committed version is kept as well (changed under the file's lock)
+  private static class PreviousVersion {
+    final String hash;
+    final int version;
+
+    PreviousVersion(String hash, int version) {
+      this.hash = hash;
+      this.version = version;
+    }
+  }
+  private ConcurrentHashMap<String, PreviousVersion> previousVersions = new ConcurrentHashMap<String, PreviousVersion>();
+  private Set<String> uncommittedStripes = ConcurrentHashMap.newKeySet();
+
+  /**
+   * One stored contents: how it is compressed and how many files point at it
+   * (references is only changed while holding objectsLock)
+   */
+  private static class StoredObject {
+    final Codec codec;
+    final int rawLength;
+    final Fragment fragment; // null unless this is one erasure-coded fragment
+    int references;
+
+    StoredObject(Blob blob) {
+      this(blob.codec, blob.rawLength, blob.fragment);
+    }
+
+    StoredObject(Codec codec, int rawLength, Fragment fragment) {
+      this.codec = codec;
+      this.rawLength = rawLength;
+      this.fragment = fragment;
+      this.references = 0;
+    }
+  }
+
+  public FileManager(NodeInfo info, Metrics metrics) {
+    this(info, metrics, DATA_DIRECTORY);
+  }
+
+  /**
+   * @param dataDirectory directory that holds this node's data dir (e.g. a temp dir for benchmarks)
+   */
+  public FileManager(NodeInfo info, Metrics metrics, String dataDirectory) {
     nodeInfo = info;
-    pathToNodesDataDir = DATA_DIRECTORY + nodeInfo.ip + ":" +
+    this.metrics = metrics;
+    pathToNodesDataDir = dataDirectory + nodeInfo.ip + ":" +
       Integer.toString(nodeInfo.port) + "/";
   }
 
+  public String getDataDirectory() {
+    return pathToNodesDataDir;
+  }
+
   /************************************************************************************************
    * printAllFileVersions(): Used for debug printing
    ************************************************************************************************/
   public void printAllFileVersions() {
+    if (!Log.isEnabled(Log.Level.DEBUG)) { return; }
     String line = "============================================================";
     String line2 = "------------------------------------------------------------";
-    String allInfo =  line + "\n" +
+    StringBuilder allInfo = new StringBuilder(line + "\n" +
                       "[LIST OF FILES ON: " + nodeInfo.ip + ":" +
                         Integer.toString(nodeInfo.port) + "]\n" +
-                      line2 + "\n";
+                      line2 + "\n");
     for (String filename : fileVersions.keySet()) {
-      allInfo += "\t" + "[" + filename + "]:\tVERSION " +
-        Integer.toString(fileVersions.get(filename)) + "\n";
+      allInfo.append("\t").append("[").append(filename).append("]:\tVERSION ")
+        .append(Integer.toString(fileVersions.get(filename))).append("\n");
     }
-    allInfo += line + "\n";
-    System.out.println(allInfo);
+    allInfo.append(line).append("\n");
+    Log.debug("%s", allInfo.toString());
   }
 
   /************************************************************************************************
@@ -50,6 +118,48 @@ class FileManager {
     return fileInfo;
   }
 
+  /************************************************************************************************
+   * probeFile(): getFileInfo() + the contents (as stored) if at most inlineMaxSize bytes
+   ************************************************************************************************/
+  public FileProbe probeFile(String filename, int inlineMaxSize) {
+    FileProbe probe = new FileProbe();
+    probe.info = getFileInfo(filename);
+    if (!probe.info.exists || inlineMaxSize <= 0) {
+      return probe;
+    }
+    String hash = fileHashes.get(filename);
+    StoredObject object = (hash == null) ? null : objects.get(hash);
+    if (object == null || object.fragment != null || object.rawLength > inlineMaxSize) {
+      return probe;
+    }
+    BlobReadResult readResult = performReadBlob(filename, Compression.SUPPORTED);
+    if (readResult.response.acknowledgement == Acknowledgement.SUCCESS && !ErasureCoding.isFragment(readResult.blob)) {
+      // (the version the contents were read at, in case a write landed since getFileInfo())
+      probe.info.version = readResult.version;
+      probe.blob = readResult.blob;
+    }
+    return probe;
+  }
+
+  /************************************************************************************************
+   * getFileInfos()/probeFiles(): one result per filename, in order (batched version probes)
+   ************************************************************************************************/
+  public ArrayList<FileInfo> getFileInfos(List<String> filenames) {
+    ArrayList<FileInfo> fileInfos = new ArrayList<FileInfo>(filenames.size());
+    for (String filename : filenames) {
+      fileInfos.add(getFileInfo(filename));
+    }
+    return fileInfos;
+  }
+
+  public ArrayList<FileProbe> probeFiles(List<String> filenames, int inlineMaxSize) {
+    ArrayList<FileProbe> probes = new ArrayList<FileProbe>(filenames.size());
+    for (String filename : filenames) {
+      probes.add(probeFile(filename, inlineMaxSize));
+    }
+    return probes;
+  }
+
   /************************************************************************************************
    * getAllFileInfos(): Used to then write print/status method for client
    ************************************************************************************************/
@@ -62,61 +172,372 @@ class FileManager {
   }
 
   /************************************************************************************************
-   * performWrite(): physically writes contents to file and updates version
+   * performWrite(): compresses contents (with this node's default codec) and writes them
    ************************************************************************************************/
   public WriteResult performWrite(String filename, String contents, int version) {
+    return performWriteBlob(filename, Compression.compress(contents, Compression.DEFAULT_CODEC, Compression.DEFAULT_MIN_SIZE), version);
+  }
+
+  /************************************************************************************************
+   * performWriteBlob(): stores (already compressed) contents for a new version of the file
+   ************************************************************************************************/
+  public WriteResult performWriteBlob(String filename, Blob blob, int version) {
+    if (!Compression.isSupported(blob.codec)) {
+      return failedWrite("Rejected write. Codec " + blob.codec + " not supported on node '" +
+        nodeInfo.ip + ":" + Integer.toString(nodeInfo.port) + "'.");
+    }
+    String hash = Compression.hashOf(blob);
+    if (hash == null) {
+      return failedWrite("Rejected write. Could not decompress contents (codec " + blob.codec + ").");
+    }
+    return writeFile(filename, hash, blob, version);
+  }
+
+  /************************************************************************************************
+   * performWriteByHash(): new version of the file with contents this node already stores
+   * (MISSING_CONTENTS if it doesn't, no disk write if it does)
+   ************************************************************************************************/
+  public WriteResult performWriteByHash(String filename, String hash, int version) {
+    return writeFile(filename, hash, null, version);
+  }
+
+  private WriteResult writeFile(String filename, String hash, Blob blob, int version) {
     WriteResult writeResult = new WriteResult();
     writeResult.response = new Response();
 
-    // If file doesn't exist yet, add to file manager:
-    if (!fileVersions.containsKey(filename)) {
-      fileVersions.put(filename, -1);
-      fileLocks.put(filename, new Semaphore(1));
+    // If file doesn't exist yet, give it a lock (it only shows up in fileVersions once its
+    // contents are stored, a MISSING_CONTENTS write must not make it look like it exists)
+    fileLocks.putIfAbsent(filename, new Semaphore(1));
+
+    /******************* START CRITICAL SECTION (MUST LOCK INIDIVIDUAL FILE): ******************/
+    Semaphore fileSemaphore = fileLocks.get(filename);
+    long start = System.nanoTime();
+    try {
+      fileSemaphore.acquire();
+      metrics.record(Metrics.FILE_LOCK_WAIT, start);
+    } catch (InterruptedException ie) {
+      Log.error("[FileManager] On '%s:%d' unable to acquire lock for '%s'.", nodeInfo.ip, nodeInfo.port, filename);
     }
 
     // Reject request if somehow got request for earlier version than already saved
-    if (fileVersions.get(filename) > version) {
-      writeResult.response.acknowledgement = Acknowledgement.FAILURE;
+    // (checked under the file lock so concurrent pushes can't roll the file back)
+    Integer localVersion = fileVersions.get(filename);
+    if (localVersion != null && localVersion > version) {
+      writeResult.response.acknowledgement = Acknowledgement.SUPERSEDED;
       writeResult.response.message = "Rejected write. Local version (" +
-        Integer.toString(fileVersions.get(filename)) +
+        Integer.toString(localVersion) +
         ") greater than write request version (" +
         Integer.toString(version) + ").";
+      fileSemaphore.release();
       return writeResult;
     }
 
-    /******************* START CRITICAL SECTION (MUST LOCK INIDIVIDUAL FILE): ******************/
-    Semaphore fileSemaphore = fileLocks.get(filename);
-    try {
-      fileSemaphore.acquire();
-    } catch (InterruptedException ie) {
-      System.err.printf("[FileManager] On '" + nodeInfo.ip + ":" +
-        Integer.toString(nodeInfo.port) + "' unable to acquire lock for '" +
-        filename + "'.\n");
-    }
-
-    MyFileWriter writer = new MyFileWriter(pathToNodesDataDir + filename);
-    if (writer.openFile() && writer.writeLines(contents)) {
+    boolean stored = (blob == null) ? referenceObject(hash) : storeObject(hash, blob);
+    if (stored) {
+      String previousHash = fileHashes.put(filename, hash);
+      if (hash.equals(previousHash)) {
+        releaseObject(previousHash); // (same contents written again)
+      } else if (objects.get(hash).fragment != null) {
+        if (previousHash != null && !uncommittedStripes.contains(filename)) {
+          // Keep the last committed version until this stripe is committed
+          keepPrevious(filename, new PreviousVersion(previousHash, localVersion));
+        } else if (previousHash != null) {
+          releaseObject(previousHash); // (a stripe that was never committed)
+        }
+        uncommittedStripes.add(filename);
+      } else {
+        if (previousHash != null) {
+          releaseObject(previousHash);
+        }
+        keepPrevious(filename, null);
+        uncommittedStripes.remove(filename);
+      }
       fileVersions.put(filename, version);
       writeResult.response.acknowledgement = Acknowledgement.SUCCESS;
       writeResult.response.message = "";
+    } else if (blob == null) {
+      writeResult.response.acknowledgement = Acknowledgement.MISSING_CONTENTS;
+      writeResult.response.message = "Contents not stored on node '" + nodeInfo.ip + ":" +
+        Integer.toString(nodeInfo.port) + "', send them.";
     } else {
       writeResult.response.acknowledgement = Acknowledgement.FAILURE;
       writeResult.response.message = "Could not perform write to '" + filename +
         "' on node '" + nodeInfo.ip + ":" + Integer.toString(nodeInfo.port) +
         "' because unable to open file.";
-
     }
     fileSemaphore.release();
     /*********************************** END CRITICAL SECTION **********************************/
     return writeResult;
   }
 
+  // Replaces the file's kept previous version (caller holds the file's lock)
+  private void keepPrevious(String filename, PreviousVersion previous) {
+    PreviousVersion dropped = (previous == null) ? previousVersions.remove(filename) : previousVersions.put(filename, previous);
+    if (dropped != null) {
+      releaseObject(dropped.hash);
+    }
+  }
+
+  /************************************************************************************************
+   * commitStripe(): every fragment of the file's stripe of this version landed, the version kept
+   * from before it isn't needed anymore
+   ************************************************************************************************/
+  public Response commitStripe(String filename, int version) {
+    Response response = new Response();
+    response.acknowledgement = Acknowledgement.SUCCESS;
+    response.message = "";
+    Semaphore fileSemaphore = fileLocks.get(filename);
+    if (fileSemaphore == null) {
+      return response;
+    }
+    fileSemaphore.acquireUninterruptibly();
+    Integer localVersion = fileVersions.get(filename);
+    if (localVersion != null && localVersion >= version) {
+      if (localVersion == version) {
+        uncommittedStripes.remove(filename);
+      }
+      PreviousVersion previous = previousVersions.get(filename);
+      if (previous != null && previous.version < version) {
+        keepPrevious(filename, null);
+      }
+    }
+    fileSemaphore.release();
+    return response;
+  }
+
+  private static WriteResult failedWrite(String message) {
+    WriteResult writeResult = new WriteResult();
+    writeResult.response = new Response();
+    writeResult.response.acknowledgement = Acknowledgement.FAILURE;
+    writeResult.response.message = message;
+    return writeResult;
+  }
+
+  /************************************************************************************************
+   * CONTENT STORE: each distinct contents is stored once, as objects/<hash>, and counts how many
+   * files point at it. Objects are written outside objectsLock (to a temp file, then renamed, so
+   * two writers of the same contents can't corrupt it) and deleted under it. The codec is part
+   * of the name, so writers sending the same contents with different codecs don't clash.
+   ************************************************************************************************/
+  private String objectPath(String hash, Codec codec) {
+    return pathToNodesDataDir + OBJECTS_DIRECTORY + hash + "." + codec.name();
+  }
+
+  // Adds a reference to contents the node already has (false if it doesn't)
+  private boolean referenceObject(String hash) {
+    lockObjects();
+    StoredObject object = objects.get(hash);
+    if (object != null) {
+      object.references++;
+    }
+    objectsLock.release();
+    return object != null;
+  }
+
+  // Adds a reference to the contents, writing them to disk if the node doesn't have them yet
+  private boolean storeObject(String hash, Blob blob) {
+    boolean written = false;
+    if (!objects.containsKey(hash)) {
+      if (!writeObject(hash, blob)) {
+        return false;
+      }
+      written = true;
+    }
+    lockObjects();
+    StoredObject object = objects.get(hash);
+    if (object == null) {
+      // Deleted between the check and the lock (last reference went away), make sure it's on disk
+      if ((!written || !new File(objectPath(hash, blob.codec)).exists()) && !writeObject(hash, blob)) {
+        objectsLock.release();
+        return false;
+      }
+      object = new StoredObject(blob);
+      objects.put(hash, object);
+    } else if (written && object.codec != blob.codec) {
+      // Someone stored it first, with another codec: keep theirs
+      new File(objectPath(hash, blob.codec)).delete();
+    } else if (!written) {
+      Log.debug("[FileManager] On '%s:%d' contents %s already stored, not rewritten.", nodeInfo.ip, nodeInfo.port, hash);
+    }
+    object.references++;
+    objectsLock.release();
+    return true;
+  }
+
+  private void releaseObject(String hash) {
+    lockObjects();
+    StoredObject object = objects.get(hash);
+    if (object != null && --object.references == 0) {
+      // Delete BEFORE removing, so a writer that doesn't see the object anymore can't have its
+      // freshly written copy deleted
+      new File(objectPath(hash, object.codec)).delete();
+      objects.remove(hash);
+    }
+    objectsLock.release();
+  }
+
+  private boolean writeObject(String hash, Blob blob) {
+    try {
+      Path objectsDirectory = Paths.get(pathToNodesDataDir + OBJECTS_DIRECTORY);
+      Files.createDirectories(objectsDirectory);
+      Path temp = Files.createTempFile(objectsDirectory, hash, ".tmp");
+      // Straight from the received buffer (a slice of Thrift's frame): no copy of the contents
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        ByteBuffer data = blob.data.duplicate();
+        while (data.hasRemaining()) {
+          channel.write(data);
+        }
+      }
+      Files.move(temp, Paths.get(objectPath(hash, blob.codec)), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    } catch (IOException e) {
+      Log.error("[FileManager] On '%s:%d' unable to store contents %s: %s", nodeInfo.ip, nodeInfo.port, hash, e);
+      return false;
+    }
+  }
+
+  // Contents of a stored object, in a pooled buffer that lives until the response is sent
+  private ByteBuffer readObject(String hash, Codec codec) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(objectPath(hash, codec)), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Object " + hash + " too large (" + size + " bytes).");
+      }
+      ByteBuffer data = BufferPool.forRequest((int) size);
+      while (data.hasRemaining()) {
+        if (channel.read(data) < 0) {
+          throw new IOException("Object " + hash + " truncated.");
+        }
+      }
+      data.flip();
+      return data;
+    }
+  }
+
+  /************************************************************************************************
+   * SNAPSHOTS (see SnapshotTransfer): every file's version and contents hash, read together under
+   * the file's lock. Each listed object is pinned (one extra reference) so it can't be deleted
+   * while it's streamed; unpin() releases them. Erasure-coded fragments are left out:
+   * a copy of another node's fragment adds nothing to its stripe.
+   ************************************************************************************************/
+  public SnapshotManifest snapshotManifest() {
+    SnapshotManifest manifest = new SnapshotManifest();
+    manifest.objects = new ArrayList<SnapshotObject>();
+    manifest.entries = new ArrayList<SnapshotEntry>();
+    manifest.totalBytes = 0;
+    HashSet<String> pinned = new HashSet<String>();
+
+    for (String filename : fileVersions.keySet()) {
+      Semaphore fileSemaphore = fileLocks.get(filename);
+      fileSemaphore.acquireUninterruptibly();
+      String hash = fileHashes.get(filename);
+      Integer version = fileVersions.get(filename);
+      if (hash != null && version != null && version >= 0) {
+        lockObjects();
+        StoredObject object = objects.get(hash);
+        if (object != null && object.fragment == null) {
+          if (pinned.add(hash)) {
+            object.references++;
+            SnapshotObject snapshotObject = new SnapshotObject();
+            snapshotObject.hash = hash;
+            snapshotObject.codec = object.codec;
+            snapshotObject.rawLength = object.rawLength;
+            snapshotObject.size = new File(objectPath(hash, object.codec)).length();
+            manifest.objects.add(snapshotObject);
+            manifest.totalBytes += snapshotObject.size;
+          }
+          SnapshotEntry entry = new SnapshotEntry();
+          entry.filename = filename;
+          entry.version = version;
+          entry.hash = hash;
+          manifest.entries.add(entry);
+        }
+        objectsLock.release();
+      }
+      fileSemaphore.release();
+    }
+    return manifest;
+  }
+
+  public void unpin(SnapshotObject snapshotObject) {
+    releaseObject(snapshotObject.hash);
+  }
+
+  // Where a snapshot's object is read from (sender) / received into (receiver)
+  public Path objectFile(SnapshotObject snapshotObject) {
+    return Paths.get(objectPath(snapshotObject.hash, snapshotObject.codec));
+  }
+
+  public Path createReceiveFile(SnapshotObject snapshotObject) throws IOException {
+    Path objectsDirectory = Paths.get(pathToNodesDataDir + OBJECTS_DIRECTORY);
+    Files.createDirectories(objectsDirectory);
+    return Files.createTempFile(objectsDirectory, snapshotObject.hash, ".tmp");
+  }
+
+  /************************************************************************************************
+   * installObject(): adds a received snapshot object to the store, pinned until the snapshot's
+   * entries are installed (then call unpin())
+   ************************************************************************************************/
+  public boolean installObject(SnapshotObject snapshotObject, Path received) {
+    lockObjects();
+    try {
+      StoredObject object = objects.get(snapshotObject.hash);
+      if (object == null) {
+        Files.move(received, objectFile(snapshotObject), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        object = new StoredObject(snapshotObject.codec, snapshotObject.rawLength, null);
+        objects.put(snapshotObject.hash, object);
+      } else {
+        Files.deleteIfExists(received); // (already stored)
+      }
+      object.references++;
+      return true;
+    } catch (IOException e) {
+      Log.error("[FileManager] On '%s:%d' unable to install contents %s: %s", nodeInfo.ip, nodeInfo.port, snapshotObject.hash, e);
+      return false;
+    } finally {
+      objectsLock.release();
+    }
+  }
+
+  // Points the file at an installed object (SUPERSEDED if this node already has a newer version)
+  public WriteResult installEntry(SnapshotEntry entry) {
+    return writeFile(entry.filename, entry.hash, null, entry.version);
+  }
+
+  private void lockObjects() {
+    objectsLock.acquireUninterruptibly();
+  }
+
   /************************************************************************************************
-   * performRead(): physically read from file
+   * performRead(): physically read from file (decompressed)
    ************************************************************************************************/
   public ReadResult performRead(String filename) {
-    ReadResult readResult = new ReadResult();
+    return Compression.toReadResult(performReadBlob(filename, Compression.SUPPORTED));
+  }
+
+  /************************************************************************************************
+   * performReadBlobIfNewer(): performReadBlob(), unless the caller already has this version
+   ************************************************************************************************/
+  public BlobReadResult performReadBlobIfNewer(String filename, List<Codec> acceptedCodecs, int knownVersion) {
+    Integer version = fileVersions.get(filename);
+    if (version != null && version <= knownVersion) {
+      BlobReadResult readResult = new BlobReadResult();
+      readResult.response = new Response();
+      readResult.response.acknowledgement = Acknowledgement.NOT_MODIFIED;
+      readResult.response.message = "";
+      readResult.version = version;
+      return readResult;
+    }
+    return performReadBlob(filename, acceptedCodecs);
+  }
+
+  /************************************************************************************************
+   * performReadBlob(): physically read from file, as stored if the caller accepts its codec
+   ************************************************************************************************/
+  public BlobReadResult performReadBlob(String filename, List<Codec> acceptedCodecs) {
+    BlobReadResult readResult = new BlobReadResult();
     readResult.response = new Response();
+    readResult.version = -1;
 
     // If file doesn't exist yet, immediately reject:
     if (!fileVersions.containsKey(filename)) {
@@ -124,43 +545,104 @@ class FileManager {
       readResult.response.message = "Could not perform read '" + filename +
         "' on node '" + nodeInfo.ip + ":" + Integer.toString(nodeInfo.port) +
         "' because file not found.";
-      readResult.contents = "";
-      readResult.version = -1;
       return readResult;
-    } else {
-      /******************* START CRITICAL SECTION (MUST LOCK INIDIVIDUAL FILE): ******************/
-      Semaphore fileSemaphore = fileLocks.get(filename);
+    }
+
+    /******************* START CRITICAL SECTION (MUST LOCK INIDIVIDUAL FILE): ******************/
+    Semaphore fileSemaphore = fileLocks.get(filename);
+    long start = System.nanoTime();
+    try {
+      fileSemaphore.acquire();
+      metrics.record(Metrics.FILE_LOCK_WAIT, start);
+    } catch (InterruptedException ie) {
+      Log.error("[FileManager] On '%s:%d' unable to acquire lock for '%s'.", nodeInfo.ip, nodeInfo.port, filename);
+      readResult.response.acknowledgement = Acknowledgement.FAILURE;
+      readResult.response.message = "FileManager unable to acquire lock for file.";
+      return readResult;
+    }
+
+    Blob stored = null;
+    String hash = fileHashes.get(filename);
+    StoredObject object = (hash == null) ? null : objects.get(hash);
+    if (object != null) {
       try {
-        fileSemaphore.acquire();
-      } catch (InterruptedException ie) {
-        System.err.printf("[FileManager] On '" + nodeInfo.ip + ":" +
-          Integer.toString(nodeInfo.port) + "' unable to acquire lock for '" +
-          filename + "'.\n");
-        readResult.response.acknowledgement = Acknowledgement.FAILURE;
-        readResult.response.message = "FileManager unable to acquire lock for file.";
-        readResult.contents = "";
-        readResult.version = -1;
+        stored = storedBlob(hash, object);
+        readResult.version = fileVersions.get(filename);
+      } catch (IOException e) {
+        stored = null;
       }
+    }
+    fileSemaphore.release();
+    /*********************************** END CRITICAL SECTION **********************************/
 
-      MyFileReader reader = new MyFileReader(pathToNodesDataDir + filename);
-      if (reader.openFile()) {
-        reader.readWholeFile();
-        readResult.contents = reader.getFileContentsAsString();
-        readResult.response.acknowledgement = Acknowledgement.SUCCESS;
-        readResult.response.message = "";
-        readResult.version = fileVersions.get(filename);
-      } else {
-        readResult.contents = "";
-        readResult.response.acknowledgement = Acknowledgement.FAILURE;
-        readResult.response.message = "Could not perform read '" + filename +
-          "' on node '" + nodeInfo.ip + ":" + Integer.toString(nodeInfo.port) +
-          "' because unable to open file.";
-        readResult.version = -1;
+    // Recompress (if needed) outside the lock
+    Blob blob = (stored == null) ? null : Compression.recode(stored, acceptedCodecs);
+    if (blob != null) {
+      readResult.blob = blob;
+      readResult.response.acknowledgement = Acknowledgement.SUCCESS;
+      readResult.response.message = "";
+    } else {
+      readResult.response.acknowledgement = Acknowledgement.FAILURE;
+      readResult.response.message = "Could not perform read '" + filename +
+        "' on node '" + nodeInfo.ip + ":" + Integer.toString(nodeInfo.port) +
+        "' because unable to " + ((stored == null) ? "open" : "decompress") + " file.";
+      readResult.version = -1;
+    }
+    return readResult;
+  }
+
+  // Blob of a stored object (caller holds the lock of a file pointing at it)
+  private Blob storedBlob(String hash, StoredObject object) throws IOException {
+    Blob stored = new Blob();
+    stored.data = readObject(hash, object.codec);
+    stored.codec = object.codec;
+    stored.rawLength = object.rawLength;
+    stored.fragment = object.fragment;
+    stored.hash = hash;
+    return stored;
+  }
+
+  /************************************************************************************************
+   * performReadFragments(): performReadBlob() and, while the stripe of the file's current version
+   * isn't committed, the version kept from before it (only the ones that could be read)
+   ************************************************************************************************/
+  public List<BlobReadResult> performReadFragments(String filename, List<Codec> acceptedCodecs) {
+    ArrayList<BlobReadResult> readResults = new ArrayList<BlobReadResult>(2);
+    BlobReadResult current = performReadBlob(filename, acceptedCodecs);
+    if (current.response.acknowledgement == Acknowledgement.SUCCESS) {
+      readResults.add(current);
+    }
+
+    Semaphore fileSemaphore = fileLocks.get(filename);
+    if (fileSemaphore == null) {
+      return readResults;
+    }
+    Blob stored = null;
+    int version = -1;
+    fileSemaphore.acquireUninterruptibly();
+    PreviousVersion previous = previousVersions.get(filename);
+    StoredObject object = (previous == null) ? null : objects.get(previous.hash);
+    if (object != null) {
+      try {
+        stored = storedBlob(previous.hash, object);
+        version = previous.version;
+      } catch (IOException e) {
+        stored = null;
       }
-      fileSemaphore.release();
-      /*********************************** END CRITICAL SECTION **********************************/
-      return readResult;
     }
+    fileSemaphore.release();
+
+    Blob blob = (stored == null) ? null : Compression.recode(stored, acceptedCodecs);
+    if (blob != null) {
+      BlobReadResult readResult = new BlobReadResult();
+      readResult.response = new Response();
+      readResult.response.acknowledgement = Acknowledgement.SUCCESS;
+      readResult.response.message = "";
+      readResult.blob = blob;
+      readResult.version = version;
+      readResults.add(readResult);
+    }
+    return readResults;
   }
 
   /************************************************************************************************
@@ -0,0 +1,140 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram is a fixed-size, lock-free, HDR-style histogram of latencies
+ * (recorded in microseconds).
+ *
+ * Values below 2^SUB_BUCKET_BITS+1 get a bucket each. Above that every power of
+ * two is split into 2^SUB_BUCKET_BITS linear sub-buckets, so any value is off by
+ * at most ~3% while the whole range (1us to days) fits in a few hundred longs.
+ * record() is a couple of shifts and one atomic increment.
+ */
+class LatencyHistogram implements LatencyHistogramMXBean {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;           // 32
+  private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;                // 64us, 1 bucket per us below
+  private static final int FIRST_EXPONENT = SUB_BUCKET_BITS + 1;          // 2^6 == LINEAR_LIMIT
+  private static final int MAX_EXPONENT = 40;                             // 2^40us ~ 12 days
+  private static final int NUM_BUCKETS = LINEAR_LIMIT + (MAX_EXPONENT - FIRST_EXPONENT + 1) * SUB_BUCKETS;
+
+  private final String name;
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong totalCount = new AtomicLong(0);
+  private final AtomicLong totalMicros = new AtomicLong(0);
+  private final AtomicLong maxMicros = new AtomicLong(0);
+
+  public LatencyHistogram(String name) {
+    this.name = name;
+  }
+
+  /************************************************************************************************
+   BUCKETING
+   ************************************************************************************************/
+  private static int bucketFor(long micros) {
+    if (micros < LINEAR_LIMIT) {
+      return (int) Math.max(0, micros);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent > MAX_EXPONENT) {
+      return NUM_BUCKETS - 1;
+    }
+    int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_LIMIT + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Middle of the range of values that land in 'bucket'
+   */
+  private static long valueOf(int bucket) {
+    if (bucket < LINEAR_LIMIT) {
+      return bucket;
+    }
+    int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + FIRST_EXPONENT;
+    int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    long lowest = (1L << exponent) + subBucket * width;
+    return lowest + width / 2;
+  }
+
+  /************************************************************************************************
+   RECORDING
+   ************************************************************************************************/
+  public void recordMicros(long micros) {
+    counts.incrementAndGet(bucketFor(micros));
+    totalCount.incrementAndGet();
+    totalMicros.addAndGet(micros);
+    long max = maxMicros.get();
+    while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+      max = maxMicros.get();
+    }
+  }
+
+  public void recordSince(long startNanos) {
+    recordMicros((System.nanoTime() - startNanos) / 1000);
+  }
+
+  /************************************************************************************************
+   READING (approximate while requests are still being recorded)
+   ************************************************************************************************/
+  public long percentileMicros(double percentile) {
+    long total = totalCount.get();
+    if (total == 0) {
+      return 0;
+    }
+    long target = (long) Math.ceil(total * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= Math.max(1, target)) {
+        return Math.min(valueOf(i), maxMicros.get());
+      }
+    }
+    return maxMicros.get();
+  }
+
+  public LatencySummary summarize() {
+    LatencySummary summary = new LatencySummary();
+    summary.name = name;
+    summary.count = getCount();
+    summary.meanMillis = getMeanMillis();
+    summary.p50Millis = getP50Millis();
+    summary.p90Millis = getP90Millis();
+    summary.p99Millis = getP99Millis();
+    summary.p999Millis = getP999Millis();
+    summary.maxMillis = getMaxMillis();
+    return summary;
+  }
+
+  /************************************************************************************************
+   JMX
+   ************************************************************************************************/
+  @Override
+  public String getName() { return name; }
+
+  @Override
+  public long getCount() { return totalCount.get(); }
+
+  @Override
+  public double getMeanMillis() {
+    long count = totalCount.get();
+    return (count == 0) ? 0 : totalMicros.get() / 1000.0 / count;
+  }
+
+  @Override
+  public double getP50Millis() { return percentileMicros(50) / 1000.0; }
+
+  @Override
+  public double getP90Millis() { return percentileMicros(90) / 1000.0; }
+
+  @Override
+  public double getP99Millis() { return percentileMicros(99) / 1000.0; }
+
+  @Override
+  public double getP999Millis() { return percentileMicros(99.9) / 1000.0; }
+
+  @Override
+  public double getMaxMillis() { return maxMicros.get() / 1000.0; }
+
+}
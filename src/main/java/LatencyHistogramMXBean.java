@@ -0,0 +1,23 @@
+/**
+ * What each LatencyHistogram shows over JMX (e.g. in jconsole, under "simpledfs").
+ * JMX needs this interface to be public, so it lives in its own file.
+ */
+public interface LatencyHistogramMXBean {
+
+  String getName();
+
+  long getCount();
+
+  double getMeanMillis();
+
+  double getP50Millis();
+
+  double getP90Millis();
+
+  double getP99Millis();
+
+  double getP999Millis();
+
+  double getMaxMillis();
+
+}
@@ -0,0 +1,149 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * LeaseManager runs on the COORDINATOR and keeps track of the read leases it
+ * handed out. A client holding a lease on a file serves reads of it from its
+ * own cache until the lease runs out.
+ *
+ * Clients have no endpoint to call back, so leases are revoked by letting them
+ * expire: a write to a leased file only sends its new version to a replica once
+ * every lease on it has run out (it waits for that before it is admitted, so
+ * without holding a slot or any lock). No lease is granted while a write to
+ * the file is in flight, or if one started or finished while the read asking
+ * for it was running. So while anyone may still serve the old version from a
+ * lease, no replica has the new one yet.
+ *
+ * That wait is the cost: off by default (lease_duration=0), meant for hot,
+ * mostly unchanging files.
+ */
+class LeaseManager {
+
+  private static class FileLeases {
+    int pendingWrites = 0;
+    long lastChange = 0; // stamp of the last write that started or finished
+    long expiresAtMillis = 0; // latest expiry of any lease on the file
+  }
+
+  private final int leaseMillis;
+
+  private Semaphore leasesLock = new Semaphore(1);
+  private HashMap<String, FileLeases> leases = new HashMap<String, FileLeases>();
+  private long stamp = 0;
+  private long evictedUpTo = 0; // newest lastChange of any entry dropped from 'leases'
+  private long nextEvictionMillis = 0;
+
+  public LeaseManager(int leaseMillis) {
+    this.leaseMillis = Math.max(0, leaseMillis);
+  }
+
+  public boolean isEnabled() {
+    return leaseMillis > 0;
+  }
+
+  /************************************************************************************************
+   beginRead(): stamp to pass to grant() once the read is done
+   ************************************************************************************************/
+  public long beginRead() {
+    leasesLock.acquireUninterruptibly();
+    long readStamp = stamp;
+    leasesLock.release();
+    return readStamp;
+  }
+
+  /************************************************************************************************
+   grant(): lease (ms) on what a read that began at readStamp returned (0 == don't cache it)
+   ************************************************************************************************/
+  public int grant(String filename, long readStamp) {
+    if (!isEnabled()) {
+      return 0;
+    }
+    leasesLock.acquireUninterruptibly();
+    try {
+      evictExpired();
+      FileLeases fileLeases = leases.get(filename);
+      if (fileLeases == null) {
+        if (evictedUpTo > readStamp) {
+          return 0;
+        }
+        fileLeases = new FileLeases();
+        leases.put(filename, fileLeases);
+      } else if (fileLeases.pendingWrites > 0 || fileLeases.lastChange > readStamp) {
+        return 0;
+      }
+      fileLeases.expiresAtMillis = Math.max(fileLeases.expiresAtMillis, System.currentTimeMillis() + leaseMillis);
+      return leaseMillis;
+    } finally {
+      leasesLock.release();
+    }
+  }
+
+  // Drops the entries of files whose leases all ran out and no write is waiting on (at most once
+  // per lease duration, caller holds leasesLock), so 'leases' doesn't keep every file ever read
+  private void evictExpired() {
+    long now = System.currentTimeMillis();
+    if (now < nextEvictionMillis) {
+      return;
+    }
+    nextEvictionMillis = now + leaseMillis;
+    Iterator<FileLeases> iterator = leases.values().iterator();
+    while (iterator.hasNext()) {
+      FileLeases fileLeases = iterator.next();
+      if (fileLeases.pendingWrites == 0 && fileLeases.expiresAtMillis <= now) {
+        evictedUpTo = Math.max(evictedUpTo, fileLeases.lastChange);
+        iterator.remove();
+      }
+    }
+  }
+
+  /************************************************************************************************
+   beginWrite(): (before any replica gets the new version) stops new leases on the file, returns
+   right away with when the leases already granted on it run out (wait with awaitExpiry())
+   ************************************************************************************************/
+  public long beginWrite(String filename) {
+    leasesLock.acquireUninterruptibly();
+    FileLeases fileLeases = leases.get(filename);
+    if (fileLeases == null) {
+      fileLeases = new FileLeases();
+      leases.put(filename, fileLeases);
+    }
+    fileLeases.pendingWrites++;
+    fileLeases.lastChange = ++stamp;
+    long expiresAtMillis = fileLeases.expiresAtMillis;
+    leasesLock.release();
+    return expiresAtMillis;
+  }
+
+  public void endWrite(String filename) {
+    leasesLock.acquireUninterruptibly();
+    FileLeases fileLeases = leases.get(filename);
+    fileLeases.pendingWrites--;
+    fileLeases.lastChange = ++stamp;
+    if (fileLeases.pendingWrites == 0 && fileLeases.expiresAtMillis <= System.currentTimeMillis()) {
+      leases.remove(filename);
+      evictedUpTo = fileLeases.lastChange;
+    }
+    leasesLock.release();
+  }
+
+  /************************************************************************************************
+   awaitExpiry(): blocks until expiresAtMillis (what beginWrite() returned) has passed, false
+   (right away) if that is after the deadline
+   ************************************************************************************************/
+  public static boolean awaitExpiry(long expiresAtMillis, Deadline deadline) {
+    long remaining = expiresAtMillis - System.currentTimeMillis();
+    if (remaining > deadline.remainingMillis()) {
+      return false;
+    }
+    while (remaining > 0) {
+      try {
+        Thread.sleep(remaining);
+      } catch (InterruptedException ie) {
+        Log.error("[LeaseManager] InterruptedException while waiting for leases to expire.");
+      }
+      remaining = expiresAtMillis - System.currentTimeMillis();
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,432 @@
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LoadGenerator drives a running DFS from many threads and reports throughput,
+ * latency percentiles and error rates per operation.
+ *
+ * Usage: LoadGenerator [key=value ...]
+ *
+ *   node=ip:port    DFS Node to send requests to (default: each connection asks the coordinator for one)
+ *   cluster=7       instead, start an in-process LocalCluster of this many nodes and load that
+ *   mode=closed     closed: each thread sends its next request as soon as the last one returns
+ *                   open:   requests are sent at a fixed total rate, whether or not earlier ones have returned
+ *   rate=100        requests per second across all threads (open mode only)
+ *   threads=8       client threads, each with its own connection
+ *   duration=30     seconds to run for
+ *   file=           replay a file of requests (e.g. input_data/READ_HEAVY.txt) in a loop instead of a synthetic mix
+ *   read_ratio=0.5  synthetic mix: fraction of requests that are reads
+ *   keys=100        synthetic mix: number of distinct files
+ *   zipf=0.99       synthetic mix: key popularity skew (0 == uniform)
+ *   payload=1024    synthetic mix: bytes written per write
+ *   preload=true    synthetic mix: write every key once before measuring, so reads don't fail
+ *   timeout=10000   budget (ms) given to the DFS for each request
+ *   rebalance=0     seconds after which a connection asks the coordinator for a node again (0 == never)
+ *   lease=false     true: reads use leasedRead() and each thread serves them from its own ReadCache
+ *
+ * In open mode latency is measured from when each request was SUPPOSED to be
+ * sent, so a slow DFS that makes the threads fall behind schedule shows up in
+ * the percentiles (no coordinated omission). Service time (from when it was
+ * actually sent) is reported alongside it.
+ */
+public class LoadGenerator {
+
+  private static final String PATH_TO_ROOT = "../../../";
+
+  private static final int SOCKET_TIMEOUT_SLACK_MILLIS = 1000;
+  private static final String KEY_PREFIX = "load";
+
+  enum Mode { OPEN, CLOSED }
+
+  enum OperationType { READ, WRITE }
+
+  private static class Operation {
+    final OperationType type;
+    final String filename;
+    final String contents;
+
+    Operation(OperationType type, String filename, String contents) {
+      this.type = type;
+      this.filename = filename;
+      this.contents = contents;
+    }
+  }
+
+  private static class OperationStats {
+    final LatencyHistogram responseTime;
+    final LatencyHistogram serviceTime;
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong timeouts = new AtomicLong();
+    final AtomicLong overloaded = new AtomicLong(); // turned away by the coordinator's admission control
+    final AtomicLong errors = new AtomicLong(); // lost connection / transport errors
+
+    OperationStats(OperationType type) {
+      responseTime = new LatencyHistogram(type.name() + ".response");
+      serviceTime = new LatencyHistogram(type.name() + ".service");
+    }
+  }
+
+  private static NodeInfo entryNode; // null: each connection asks coordinatorInfo for a node
+  private static NodeInfo coordinatorInfo;
+  private static long rebalanceNanos;
+  private static Mode mode;
+  private static int rate;
+  private static int threads;
+  private static int duration;
+  private static int timeout;
+  private static boolean leases;
+
+  // Replay
+  private static List<Operation> replayOperations;
+
+  // Synthetic mix
+  private static double readRatio;
+  private static int keys;
+  private static ZipfianGenerator zipfian;
+  private static String payload;
+
+  private static final Map<OperationType, OperationStats> stats = new EnumMap<OperationType, OperationStats>(OperationType.class);
+
+  /************************************************************************************************
+   WORKLOAD
+   ************************************************************************************************/
+  private static List<Operation> parseRequestFile(String filename) {
+    MyFileReader reader = new MyFileReader(PATH_TO_ROOT + filename);
+    if (!reader.openFile()) {
+      return null;
+    }
+    reader.readWholeFile();
+    ArrayList<String> lines = reader.getFileContentsByLine();
+    reader.closeFile();
+
+    List<Operation> operations = new ArrayList<Operation>();
+    for (String line : lines) {
+      String[] split = line.split(",", 3);
+      String command = split[0].trim().toLowerCase();
+      if (command.equals("write") && split.length == 3) {
+        operations.add(new Operation(OperationType.WRITE, split[1].trim(), split[2].trim()));
+      } else if (command.equals("read") && split.length >= 2) {
+        operations.add(new Operation(OperationType.READ, split[1].trim(), null));
+      }
+    }
+    return operations;
+  }
+
+  private static String keyName(int rank) {
+    return KEY_PREFIX + Integer.toString(rank) + ".txt";
+  }
+
+  // Each thread walks the replay file from its own offset, or draws from the synthetic mix
+  private static Operation nextOperation(Random random, int[] replayPosition) {
+    if (replayOperations != null) {
+      Operation operation = replayOperations.get(replayPosition[0]);
+      replayPosition[0] = (replayPosition[0] + 1) % replayOperations.size();
+      return operation;
+    }
+    String filename = keyName(zipfian.next(random));
+    if (random.nextDouble() < readRatio) {
+      return new Operation(OperationType.READ, filename, null);
+    }
+    return new Operation(OperationType.WRITE, filename, payload);
+  }
+
+  /************************************************************************************************
+   CONNECTIONS & REQUESTS
+   ************************************************************************************************/
+  private static class Connection {
+    TTransport transport;
+    DFSNode.Client client;
+    ReadCache cache = new ReadCache();
+    long openedAt;
+
+    boolean open() {
+      NodeInfo node = entryNode;
+      if (node == null) {
+        node = Client.requestEntryNode(coordinatorInfo);
+        if (node == null) {
+          node = coordinatorInfo;
+        }
+      }
+      openedAt = System.nanoTime();
+      try {
+        transport = new TSocket(node.ip, node.port, timeout + SOCKET_TIMEOUT_SLACK_MILLIS);
+        TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+        client = new DFSNode.Client(protocol);
+        transport.open();
+        return true;
+      } catch (TException e) {
+        client = null;
+        return false;
+      }
+    }
+
+    void close() {
+      if (transport != null) {
+        transport.close();
+      }
+      client = null;
+    }
+  }
+
+  // Returns the acknowledgement, or null if the connection was lost (and reopens it)
+  private static Acknowledgement perform(Connection connection, Operation operation) {
+    if (rebalanceNanos > 0 && connection.client != null && System.nanoTime() - connection.openedAt >= rebalanceNanos) {
+      connection.close();
+    }
+    if (connection.client == null && !connection.open()) {
+      return null;
+    }
+    try {
+      if (operation.type == OperationType.WRITE) {
+        connection.cache.invalidate(operation.filename);
+        return connection.client.write(operation.filename, operation.contents, timeout).response.acknowledgement;
+      } else if (leases) {
+        ReadResult readResult = connection.cache.get(operation.filename);
+        if (readResult == null) {
+          long sentAt = System.nanoTime();
+          readResult = connection.client.leasedRead(operation.filename, connection.cache.knownVersion(operation.filename), timeout);
+          readResult = connection.cache.put(operation.filename, readResult, sentAt);
+        }
+        return readResult.response.acknowledgement;
+      } else {
+        return connection.client.read(operation.filename, timeout).response.acknowledgement;
+      }
+    } catch (TException e) {
+      connection.close();
+      connection.open();
+      return null;
+    }
+  }
+
+  private static void record(Operation operation, Acknowledgement acknowledgement, long intendedStart, long actualStart) {
+    long end = System.nanoTime();
+    OperationStats operationStats = stats.get(operation.type);
+    operationStats.responseTime.recordMicros((end - intendedStart) / 1000);
+    operationStats.serviceTime.recordMicros((end - actualStart) / 1000);
+    if (acknowledgement == null) {
+      operationStats.errors.incrementAndGet();
+    } else if (acknowledgement == Acknowledgement.TIMEOUT) {
+      operationStats.timeouts.incrementAndGet();
+    } else if (acknowledgement == Acknowledgement.OVERLOADED) {
+      operationStats.overloaded.incrementAndGet();
+    } else if (acknowledgement != Acknowledgement.SUCCESS) {
+      operationStats.failures.incrementAndGet();
+    }
+  }
+
+  private static void preload() {
+    System.out.printf("[LoadGenerator] Preloading %d files of %d bytes.\n", keys, payload.length());
+    Connection connection = new Connection();
+    int failed = 0;
+    for (int rank = 0; rank < keys; rank++) {
+      Acknowledgement acknowledgement = perform(connection, new Operation(OperationType.WRITE, keyName(rank), payload));
+      if (acknowledgement != Acknowledgement.SUCCESS) {
+        failed++;
+      }
+    }
+    connection.close();
+    if (failed > 0) {
+      System.err.printf("[LoadGenerator] %d of %d preload writes failed.\n", failed, keys);
+    }
+  }
+
+  /************************************************************************************************
+   WORKERS
+   ************************************************************************************************/
+  private static Thread startWorker(final int index, final long startNanos, final long endNanos) {
+    Thread worker = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Random random = new Random();
+        int[] replayPosition = new int[] { (replayOperations == null) ? 0 : (index * replayOperations.size()) / threads };
+        Connection connection = new Connection();
+        connection.open();
+
+        // Open loop: every thread owns an equal share of the total rate, staggered so they don't fire together
+        long intervalNanos = (mode == Mode.OPEN) ? (TimeUnit.SECONDS.toNanos(1) * threads) / rate : 0;
+        long intendedStart = startNanos + (intervalNanos * index) / threads;
+
+        while (true) {
+          long now = System.nanoTime();
+          if (mode == Mode.OPEN) {
+            if (intendedStart >= endNanos) {
+              break;
+            }
+            while (now < intendedStart) {
+              LockSupport.parkNanos(intendedStart - now);
+              now = System.nanoTime();
+            }
+          } else {
+            if (now >= endNanos) {
+              break;
+            }
+            intendedStart = now;
+          }
+
+          Operation operation = nextOperation(random, replayPosition);
+          long actualStart = System.nanoTime();
+          Acknowledgement acknowledgement = perform(connection, operation);
+          record(operation, acknowledgement, intendedStart, actualStart);
+
+          intendedStart += intervalNanos;
+        }
+        connection.close();
+      }
+    }, "load-" + Integer.toString(index));
+    worker.start();
+    return worker;
+  }
+
+  /************************************************************************************************
+   REPORT
+   ************************************************************************************************/
+  private static String formatPercentiles(LatencyHistogram histogram) {
+    return String.format("p50 %8.2f  p90 %8.2f  p99 %8.2f  p99.9 %8.2f  max %8.2f ms",
+      histogram.getP50Millis(), histogram.getP90Millis(), histogram.getP99Millis(),
+      histogram.getP999Millis(), histogram.getMaxMillis());
+  }
+
+  private static void printReport(double elapsedSeconds) {
+    String line = "===================================================================================================";
+    StringBuilder report = new StringBuilder();
+    report.append("\n").append(line).append("\n");
+    report.append(String.format("[LoadGenerator] %s loop, %d threads, %.1f seconds", mode.name(), threads, elapsedSeconds));
+    if (mode == Mode.OPEN) {
+      report.append(String.format(", target %d req/s", rate));
+    }
+    report.append("\n").append(line).append("\n");
+
+    long totalCount = 0;
+    for (OperationType type : OperationType.values()) {
+      OperationStats operationStats = stats.get(type);
+      long count = operationStats.responseTime.getCount();
+      totalCount += count;
+      if (count == 0) {
+        continue;
+      }
+      long failures = operationStats.failures.get();
+      long timeouts = operationStats.timeouts.get();
+      long overloaded = operationStats.overloaded.get();
+      long errors = operationStats.errors.get();
+      double errorRate = (100.0 * (failures + timeouts + overloaded + errors)) / count;
+      report.append(String.format("  %-5s  %8d requests  %10.1f req/s  %6.2f%% failed (%d FAILURE, %d TIMEOUT, %d OVERLOADED, %d lost connection)\n",
+        type.name(), count, count / elapsedSeconds, errorRate, failures, timeouts, overloaded, errors));
+      if (mode == Mode.OPEN) {
+        report.append("         response: ").append(formatPercentiles(operationStats.responseTime)).append("\n");
+        report.append("         service:  ").append(formatPercentiles(operationStats.serviceTime)).append("\n");
+      } else {
+        report.append("         latency:  ").append(formatPercentiles(operationStats.responseTime)).append("\n");
+      }
+    }
+    report.append(String.format("  TOTAL  %8d requests  %10.1f req/s\n", totalCount, totalCount / elapsedSeconds));
+    report.append(line);
+    System.out.println(report.toString());
+  }
+
+  /************************************************************************************************
+   MAIN
+   ************************************************************************************************/
+  private static Properties parseArgs(String[] args) {
+    Properties properties = new Properties();
+    for (String arg : args) {
+      String[] keyAndValue = arg.split("=", 2);
+      if (keyAndValue.length != 2) {
+        System.err.printf("[LoadGenerator] Ignoring argument '%s' (expecting key=value).\n", arg);
+        continue;
+      }
+      properties.setProperty(keyAndValue[0].trim(), keyAndValue[1].trim());
+    }
+    return properties;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Properties properties = parseArgs(args);
+    try {
+      mode = Mode.valueOf(properties.getProperty("mode", "closed").toUpperCase());
+      rate = Integer.valueOf(properties.getProperty("rate", "100"));
+      threads = Integer.valueOf(properties.getProperty("threads", "8"));
+      duration = Integer.valueOf(properties.getProperty("duration", "30"));
+      timeout = Integer.valueOf(properties.getProperty("timeout", Integer.toString(Deadline.DEFAULT_BUDGET_MILLIS)));
+      readRatio = Double.valueOf(properties.getProperty("read_ratio", "0.5"));
+      leases = properties.getProperty("lease", "false").equals("true");
+      rebalanceNanos = TimeUnit.SECONDS.toNanos(Integer.valueOf(properties.getProperty("rebalance", "0")));
+      keys = Integer.valueOf(properties.getProperty("keys", "100"));
+      double zipf = Double.valueOf(properties.getProperty("zipf", "0.99"));
+      int payloadSize = Integer.valueOf(properties.getProperty("payload", "1024"));
+      if (rate <= 0 || threads <= 0 || duration <= 0 || keys <= 0 || payloadSize < 0 || zipf == 1.0) {
+        throw new IllegalArgumentException();
+      }
+      zipfian = new ZipfianGenerator(keys, zipf);
+      char[] payloadChars = new char[payloadSize];
+      Arrays.fill(payloadChars, 'x');
+      payload = new String(payloadChars);
+    } catch (IllegalArgumentException e) {
+      System.err.printf("[LoadGenerator] Invalid arguments. See the usage at the top of LoadGenerator.java.\n");
+      System.exit(1);
+    }
+
+    String file = properties.getProperty("file");
+    if (file != null) {
+      replayOperations = parseRequestFile(file);
+      if (replayOperations == null || replayOperations.isEmpty()) {
+        System.err.printf("[LoadGenerator] No requests found in '%s'.\n", file);
+        System.exit(1);
+      }
+    }
+
+    LocalCluster cluster = null;
+    String node = properties.getProperty("node");
+    if (properties.getProperty("cluster") != null) {
+      Log.setLevel(Log.Level.WARN);
+      cluster = new LocalCluster(Integer.valueOf(properties.getProperty("cluster")));
+      cluster.start();
+      coordinatorInfo = cluster.getCoordinatorInfo();
+    } else if (node != null) {
+      entryNode = new NodeInfo();
+      String[] nodeIpAndPort = node.split(":");
+      entryNode.ip = nodeIpAndPort[0];
+      entryNode.port = Integer.valueOf(nodeIpAndPort[1]);
+    } else {
+      coordinatorInfo = Client.readCoordinatorConfigsFromFile();
+    }
+    if (entryNode != null) {
+      System.out.printf("[LoadGenerator] Sending requests to DFS Node '%s:%d'\n", entryNode.ip, entryNode.port);
+    } else {
+      System.out.printf("[LoadGenerator] Each connection gets its DFS Node from coordinator '%s:%d'\n", coordinatorInfo.ip, coordinatorInfo.port);
+    }
+
+    for (OperationType type : OperationType.values()) {
+      stats.put(type, new OperationStats(type));
+    }
+
+    if (replayOperations == null && properties.getProperty("preload", "true").equals("true")) {
+      preload();
+    }
+
+    System.out.printf("[LoadGenerator] Running %s loop with %d threads for %d seconds.\n", mode.name(), threads, duration);
+    long startNanos = System.nanoTime();
+    long endNanos = startNanos + TimeUnit.SECONDS.toNanos(duration);
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int i = 0; i < threads; i++) {
+      workers.add(startWorker(i, startNanos, endNanos));
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    printReport((System.nanoTime() - startNanos) / 1e9);
+
+    if (cluster != null) {
+      cluster.stop();
+    }
+  }
+
+}
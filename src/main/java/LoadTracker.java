@@ -0,0 +1,61 @@
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.server.ServerContext;
+import org.apache.thrift.server.TServerEventHandler;
+import org.apache.thrift.transport.TTransport;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LoadTracker counts how busy a node is: open connections (as the node's
+ * server event handler) and RPCs being served (see Metrics.instrument()).
+ * Sent to the coordinator with every heartbeat as a NodeLoad.
+ */
+class LoadTracker implements TServerEventHandler {
+
+  private AtomicInteger connections = new AtomicInteger();
+  private AtomicInteger inFlightRequests = new AtomicInteger();
+
+  private static final OperatingSystemMXBean OS = ManagementFactory.getOperatingSystemMXBean();
+
+  public void requestStarted() {
+    inFlightRequests.incrementAndGet();
+  }
+
+  public void requestFinished() {
+    inFlightRequests.decrementAndGet();
+  }
+
+  public NodeLoad getLoad() {
+    NodeLoad load = new NodeLoad();
+    load.connections = connections.get();
+    load.inFlightRequests = inFlightRequests.get();
+    double loadAverage = OS.getSystemLoadAverage(); // negative if the platform doesn't have one
+    load.cpuLoad = (loadAverage < 0) ? 0 : loadAverage / OS.getAvailableProcessors();
+    return load;
+  }
+
+  /************************************************************************************************
+   TServerEventHandler: one context per connection, all calls on the thread serving it
+   ************************************************************************************************/
+  @Override
+  public void preServe() {
+  }
+
+  @Override
+  public ServerContext createContext(TProtocol input, TProtocol output) {
+    connections.incrementAndGet();
+    return null;
+  }
+
+  @Override
+  public void deleteContext(ServerContext serverContext, TProtocol input, TProtocol output) {
+    connections.decrementAndGet();
+  }
+
+  @Override
+  public void processContext(ServerContext serverContext, TTransport inputTransport, TTransport outputTransport) {
+  }
+
+}
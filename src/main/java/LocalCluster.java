@@ -0,0 +1,209 @@
+import org.apache.thrift.TException;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TTransportException;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * LocalCluster runs a whole DFS (coordinator + N-1 nodes) inside one JVM, for
+ * tests, benchmarks and the load generator.
+ *
+ * Every node listens on an ephemeral loopback port and keeps its files in its
+ * own temp directory. Nodes join and heartbeat by calling the coordinator's
+ * handler directly, so there's no dfs.properties handshake and nothing to
+ * clean up with kill-dfs-nodes. Reads and writes still go over Thrift between
+ * nodes, exactly like a real DFS. Periodic update() syncs are not run.
+ *
+ *   LocalCluster cluster = new LocalCluster(7);
+ *   cluster.start();
+ *   ... connect to cluster.getCoordinatorInfo() (or any of cluster.getNodeInfos()) ...
+ *   cluster.stop();
+ */
+public class LocalCluster {
+
+  private static final String LOOPBACK = "127.0.0.1";
+
+  private final CoordinatorConfiguration config;
+
+  private File dataDirectory;
+  private final List<NodeInfo> nodeInfos = new ArrayList<NodeInfo>();
+  private final List<DFSNodeHandler> handlers = new ArrayList<DFSNodeHandler>();
+  private final List<TServer> servers = new ArrayList<TServer>();
+  private final Set<NodeInfo> stoppedNodes = Collections.synchronizedSet(new HashSet<NodeInfo>());
+  private Thread heartbeats;
+  private volatile boolean running;
+
+  public LocalCluster(int n) {
+    this(defaultConfiguration(n));
+  }
+
+  public LocalCluster(CoordinatorConfiguration config) {
+    this.config = config;
+  }
+
+  /************************************************************************************************
+   defaultConfiguration(): majority quorums (Nw = N/2 + 1, Nr = N - Nw + 1) so runs are
+   repeatable (RANDOM would pick different quorum sizes every time), and the DFS may shrink
+   down to a single node so tests can stop nodes.
+   ************************************************************************************************/
+  public static CoordinatorConfiguration defaultConfiguration(int n) {
+    CoordinatorConfiguration config = new CoordinatorConfiguration();
+    config.quorumSelection = QuorumSelection.USER_CONFIG;
+    config.n = n;
+    config.nw = (n / 2) + 1;
+    config.nr = n - config.nw + 1;
+    config.minimumN = 1;
+    return config;
+  }
+
+  /************************************************************************************************
+   START / STOP
+   ************************************************************************************************/
+  public void start() throws IOException, TException {
+    dataDirectory = Files.createTempDirectory("dfs-cluster").toFile();
+    String dataDirectoryPath = dataDirectory.getPath() + "/";
+    running = true;
+
+    NodeInfo coordinatorInfo = null;
+    for (int i = 0; i < config.n; i++) {
+      // Bind first so the node is constructed knowing its real port
+      TServerSocket transport = new TServerSocket(new ServerSocket(0, 50, InetAddress.getByName(LOOPBACK)));
+      NodeInfo info = new NodeInfo();
+      info.ip = LOOPBACK;
+      info.port = transport.getServerSocket().getLocalPort();
+      info.isCoordinator = (i == 0);
+
+      DFSNodeHandler handler;
+      if (info.isCoordinator) {
+        coordinatorInfo = info;
+        handler = new DFSNodeHandler(info, config, dataDirectoryPath);
+      } else {
+        handler = new DFSNodeHandler(info, coordinatorInfo, dataDirectoryPath);
+      }
+      new File(dataDirectoryPath + info.ip + ":" + Integer.toString(info.port)).mkdirs();
+
+      TThreadPoolServer.Args args = new TThreadPoolServer.Args(transport);
+      args.processor(new DFSNode.Processor(handler.getMetricsRegistry().instrument(handler)));
+      args.transportFactory(new TFramedTransport.Factory());
+      final TServer server = new TThreadPoolServer(args);
+      server.setServerEventHandler(new RequestBuffers(handler.getMetricsRegistry().getLoadTracker()));
+      Thread serving = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          server.serve();
+        }
+      }, "local-node-" + Integer.toString(info.port));
+      serving.setDaemon(true);
+      serving.start();
+
+      nodeInfos.add(info);
+      handlers.add(handler);
+      servers.add(server);
+    }
+
+    // Join in order, the DFS becomes ready once the last one has joined
+    DFSNodeHandler coordinator = handlers.get(0);
+    for (int i = 1; i < nodeInfos.size(); i++) {
+      Response joinResponse = coordinator.joinDFS(nodeInfos.get(i));
+      if (joinResponse.acknowledgement != Acknowledgement.SUCCESS) {
+        stop();
+        throw new TException("Node " + nodeInfos.get(i).port + " failed to join: " + joinResponse.message);
+      }
+    }
+
+    heartbeats = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (running) {
+          try {
+            Thread.sleep(config.heartbeatInterval);
+          } catch (InterruptedException ie) {
+            return;
+          }
+          for (int i = 1; i < nodeInfos.size(); i++) {
+            if (!stoppedNodes.contains(nodeInfos.get(i))) {
+              try {
+                handlers.get(0).heartbeat(nodeInfos.get(i), handlers.get(i).getMetricsRegistry().getLoadTracker().getLoad());
+              } catch (TException e) {
+                Log.warn("[LocalCluster] Heartbeat from '%s:%d' failed: %s", nodeInfos.get(i).ip, nodeInfos.get(i).port, e);
+              }
+            }
+          }
+        }
+      }
+    }, "local-heartbeats");
+    heartbeats.setDaemon(true);
+    heartbeats.start();
+
+    Log.info("[LocalCluster] Started %d nodes, coordinator on '%s:%d'", config.n, coordinatorInfo.ip, coordinatorInfo.port);
+  }
+
+  /**
+   * Stops one node's server and its heartbeats, as if it had crashed (it does
+   * not LEAVE the DFS). Index 0 is the coordinator. Its handler's threads keep
+   * running until stop().
+   */
+  public void stopNode(int index) {
+    stoppedNodes.add(nodeInfos.get(index));
+    servers.get(index).stop();
+  }
+
+  public void stop() {
+    running = false;
+    if (heartbeats != null) {
+      heartbeats.interrupt();
+    }
+    for (int i = 0; i < servers.size(); i++) {
+      if (!stoppedNodes.contains(nodeInfos.get(i))) {
+        servers.get(i).stop();
+      }
+    }
+    // Coordinator threads and JMX beans outlive the servers otherwise
+    for (DFSNodeHandler handler : handlers) {
+      handler.shutdown();
+    }
+    if (dataDirectory != null) {
+      deleteRecursively(dataDirectory);
+    }
+    Log.info("[LocalCluster] Stopped %d nodes", servers.size());
+  }
+
+  private static void deleteRecursively(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    f.delete();
+  }
+
+  /************************************************************************************************
+   GETTERS
+   ************************************************************************************************/
+  public int size() {
+    return nodeInfos.size();
+  }
+
+  public NodeInfo getCoordinatorInfo() {
+    return nodeInfos.get(0);
+  }
+
+  // All nodes, coordinator first
+  public List<NodeInfo> getNodeInfos() {
+    return Collections.unmodifiableList(nodeInfos);
+  }
+
+  public DFSNodeHandler getHandler(int index) {
+    return handlers.get(index);
+  }
+
+}
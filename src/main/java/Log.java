@@ -0,0 +1,164 @@
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log is a small level-gated, asynchronous logger for the request path.
+ *
+ * Callers only pay for a level check and a queue offer: the format string and
+ * its arguments are put in a bounded ring buffer and turned into text by one
+ * background thread, which writes whole batches to stdout/stderr at a time.
+ * If the buffer is full the message is dropped (and counted) rather than
+ * making the request wait for the console.
+ *
+ * Arguments are formatted later, on the logging thread, so only pass values
+ * that won't change afterwards (strings, numbers, ...). Anything expensive to
+ * build should be guarded with isEnabled().
+ */
+class Log {
+
+  enum Level { DEBUG, INFO, WARN, ERROR }
+
+  private static final int BUFFER_SIZE = 8192;
+  private static final int MAX_BATCH = 256;
+
+  private static volatile Level level = Level.INFO;
+
+  private static final BlockingQueue<Event> buffer = new ArrayBlockingQueue<Event>(BUFFER_SIZE);
+  private static final AtomicLong dropped = new AtomicLong(0);
+
+  // Keep the real streams, in case anything swaps System.out/err later
+  private static final PrintStream out = System.out;
+  private static final PrintStream err = System.err;
+
+  /**
+   * One message waiting to be written
+   */
+  private static class Event {
+    final Level level;
+    final String format;
+    final Object[] args;
+
+    Event(Level level, String format, Object[] args) {
+      this.level = level;
+      this.format = format;
+      this.args = args;
+    }
+
+    String render() {
+      return (args == null || args.length == 0) ? format : String.format(format, args);
+    }
+  }
+
+  static {
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    }, "log-writer");
+    writer.setDaemon(true);
+    writer.start();
+
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }));
+  }
+
+  /************************************************************************************************
+   LEVELS
+   ************************************************************************************************/
+  public static void setLevel(Level newLevel) {
+    level = newLevel;
+  }
+
+  public static boolean isEnabled(Level l) {
+    return l.ordinal() >= level.ordinal();
+  }
+
+  /************************************************************************************************
+   LOGGING
+   ************************************************************************************************/
+  public static void debug(String format, Object... args) { log(Level.DEBUG, format, args); }
+
+  public static void info(String format, Object... args) { log(Level.INFO, format, args); }
+
+  public static void warn(String format, Object... args) { log(Level.WARN, format, args); }
+
+  public static void error(String format, Object... args) { log(Level.ERROR, format, args); }
+
+  private static void log(Level l, String format, Object[] args) {
+    if (isEnabled(l)) {
+      enqueue(new Event(l, format, args));
+    }
+  }
+
+  private static void enqueue(Event event) {
+    if (!buffer.offer(event)) {
+      dropped.incrementAndGet();
+    }
+  }
+
+  /************************************************************************************************
+   WRITER THREAD
+   ************************************************************************************************/
+  private static void writeLoop() {
+    ArrayList<Event> batch = new ArrayList<Event>(MAX_BATCH);
+    while (true) {
+      try {
+        Event first = buffer.poll(1, TimeUnit.SECONDS);
+        if (first != null) {
+          batch.add(first);
+          buffer.drainTo(batch, MAX_BATCH - 1);
+        }
+      } catch (InterruptedException ie) {
+        return;
+      }
+      write(batch);
+      batch.clear();
+    }
+  }
+
+  /**
+   * Writes everything still buffered (called on shutdown)
+   */
+  public static void flush() {
+    ArrayList<Event> batch = new ArrayList<Event>();
+    buffer.drainTo(batch);
+    write(batch);
+  }
+
+  private static synchronized void write(List<Event> batch) {
+    StringBuilder outText = new StringBuilder();
+    StringBuilder errText = new StringBuilder();
+    for (Event event : batch) {
+      String text;
+      try {
+        text = event.render();
+      } catch (RuntimeException e) {
+        text = "[Log] Could not format '" + event.format + "': " + e;
+      }
+      StringBuilder target = (event.level.ordinal() >= Level.WARN.ordinal()) ? errText : outText;
+      target.append(text).append('\n');
+    }
+    long lost = dropped.getAndSet(0);
+    if (lost > 0) {
+      errText.append("[Log] Dropped ").append(lost).append(" message(s), log buffer was full.\n");
+    }
+    if (outText.length() > 0) {
+      out.print(outText);
+      out.flush();
+    }
+    if (errText.length() > 0) {
+      err.print(errText);
+      err.flush();
+    }
+  }
+
+}
@@ -0,0 +1,145 @@
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Metrics holds one LatencyHistogram per named operation on a node:
+ *
+ *    rpc.<method>                  every DFSNode.Iface call this node served
+ *    coordinator.lockWait          waiting for the coordinator's lock on a file
+ *    coordinator.versionProbe      getFileInfo()/probeFile() fan-out to a read/write quorum (batched or not)
+ *    coordinator.quorumWrite       performWrite() fan-out to the write quorum
+ *    coordinator.quorumRead        performRead() from the chosen reader
+ *    coordinator.fragmentRead      collecting erasure-coded fragments from other nodes
+ *    replication.push              background push to a replica outside the quorum
+ *    fileManager.lockWait          waiting for a replica's lock on a file
+ *
+ * They are served by the getMetrics() RPC and registered with JMX as
+ * simpledfs:type=Latency,node=<ip:port>,name=<operation>.
+ */
+class Metrics {
+
+  public static final String LOCK_WAIT = "coordinator.lockWait";
+  public static final String VERSION_PROBE = "coordinator.versionProbe";
+  public static final String QUORUM_WRITE = "coordinator.quorumWrite";
+  public static final String QUORUM_READ = "coordinator.quorumRead";
+  public static final String FRAGMENT_READ = "coordinator.fragmentRead";
+  public static final String REPLICATION_PUSH = "replication.push";
+  public static final String FILE_LOCK_WAIT = "fileManager.lockWait";
+
+  private String nodeName;
+  // Connections and in-flight RPCs (reported to the coordinator with heartbeats)
+  private LoadTracker loadTracker = new LoadTracker();
+  private ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+  // Looked up by Method so timing an RPC doesn't build a name string per call
+  private ConcurrentHashMap<Method, LatencyHistogram> rpcHistograms = new ConcurrentHashMap<Method, LatencyHistogram>();
+
+  public Metrics(NodeInfo info) {
+    nodeName = info.ip + ":" + Integer.toString(info.port);
+  }
+
+  public LoadTracker getLoadTracker() {
+    return loadTracker;
+  }
+
+  public LatencyHistogram histogram(String name) {
+    LatencyHistogram histogram = histograms.get(name);
+    if (histogram == null) {
+      LatencyHistogram newHistogram = new LatencyHistogram(name);
+      histogram = histograms.putIfAbsent(name, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+        registerWithJMX(newHistogram);
+      }
+    }
+    return histogram;
+  }
+
+  public void record(String name, long startNanos) {
+    histogram(name).recordSince(startNanos);
+  }
+
+  /************************************************************************************************
+   getSummaries(): sorted by name, for the getMetrics() RPC
+   ************************************************************************************************/
+  public List<LatencySummary> getSummaries() {
+    List<LatencySummary> summaries = new ArrayList<LatencySummary>(histograms.size());
+    for (String name : new TreeSet<String>(histograms.keySet())) {
+      summaries.add(histograms.get(name).summarize());
+    }
+    return summaries;
+  }
+
+  private ObjectName jmxName(LatencyHistogram histogram) throws Exception {
+    return new ObjectName("simpledfs:type=Latency,node=" + ObjectName.quote(nodeName) +
+      ",name=" + ObjectName.quote(histogram.getName()));
+  }
+
+  private void registerWithJMX(LatencyHistogram histogram) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = jmxName(histogram);
+      if (!server.isRegistered(objectName)) {
+        server.registerMBean(histogram, objectName);
+      }
+    } catch (Exception e) {
+      Log.warn("[Metrics] Failed to register '%s' with JMX: %s", histogram.getName(), e);
+    }
+  }
+
+  /************************************************************************************************
+   unregisterFromJMX(): drops this node's histograms from JMX (the node is shutting down, and
+   another node of a LocalCluster may reuse its port)
+   ************************************************************************************************/
+  public void unregisterFromJMX() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (LatencyHistogram histogram : histograms.values()) {
+      try {
+        ObjectName objectName = jmxName(histogram);
+        if (server.isRegistered(objectName)) {
+          server.unregisterMBean(objectName);
+        }
+      } catch (Exception e) {
+        Log.warn("[Metrics] Failed to unregister '%s' from JMX: %s", histogram.getName(), e);
+      }
+    }
+  }
+
+  /************************************************************************************************
+   instrument(): wraps a handler so every DFSNode.Iface call is timed as 'rpc.<method>' (and
+   counted as in flight while it runs)
+   ************************************************************************************************/
+  public DFSNode.Iface instrument(final DFSNode.Iface handler) {
+    return (DFSNode.Iface) Proxy.newProxyInstance(DFSNode.Iface.class.getClassLoader(),
+      new Class<?>[] { DFSNode.Iface.class },
+      new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          long start = System.nanoTime();
+          loadTracker.requestStarted();
+          try {
+            return method.invoke(handler, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          } finally {
+            loadTracker.requestFinished();
+            LatencyHistogram histogram = rpcHistograms.get(method);
+            if (histogram == null) {
+              histogram = histogram("rpc." + method.getName());
+              rpcHistograms.put(method, histogram);
+            }
+            histogram.recordSince(start);
+          }
+        }
+      });
+  }
+
+}
@@ -49,11 +49,11 @@ class MyFileReader {
   }
 
   public String getFileContentsAsString() {
-    String contents = "";
+    StringBuilder contents = new StringBuilder();
     for (String line : this.fileContentsByLine) {
-      contents += line + "\n";
+      contents.append(line).append("\n");
     }
-    return contents;
+    return contents.toString();
   }
 
   public int getCurrentLineNumber() {
@@ -0,0 +1,202 @@
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * ProbeBatcher runs on the COORDINATOR and sends the version probes of
+ * concurrent reads/writes (getFileProbes()) to each node in batches: one
+ * getFileInfos()/probeFiles() call for all the files waiting on that node,
+ * instead of one getFileInfo()/probeFile() call per file.
+ *
+ * Each node has at most one batch on the wire. A probe for an idle node is
+ * sent right away; probes that arrive while a batch is on the wire wait for it
+ * and go out together in the next one. So the batching window is one round
+ * trip, and only opens under load. A probe is only ever sent after it was
+ * queued, so it always sees writes acknowledged before it was asked for.
+ */
+class ProbeBatcher {
+
+  private static class Probe {
+    final String filename;
+    final Deadline deadline;
+    FileProbe result; // null if the node didn't answer (in time)
+    final CountDownLatch done = new CountDownLatch(1);
+
+    Probe(String filename, Deadline deadline) {
+      this.filename = filename;
+      this.deadline = deadline;
+    }
+  }
+
+  // Probes for one node (and one inlineMaxSize: 0 for writes, inline_max_size for reads)
+  private static class NodeQueue {
+    final NodeInfo node;
+    final int inlineMaxSize;
+    ArrayList<Probe> pending = new ArrayList<Probe>();
+    boolean sending = false;
+
+    NodeQueue(NodeInfo node, int inlineMaxSize) {
+      this.node = node;
+      this.inlineMaxSize = inlineMaxSize;
+    }
+  }
+
+  private DFSCoordinator coordinator;
+  private final int maxBatchSize;
+
+  private HashMap<String, NodeQueue> queues = new HashMap<String, NodeQueue>();
+
+  private ExecutorService senders = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "probe-sender");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  public ProbeBatcher(DFSCoordinator coordinator, int maxBatchSize) {
+    this.coordinator = coordinator;
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+  }
+
+  // Batches still being sent are interrupted, their probes time out with their deadline
+  public void shutdown() {
+    senders.shutdownNow();
+  }
+
+  /************************************************************************************************
+   probe(): file info (and inlined contents) of filename from every node of the quorum that
+   answers before the deadline, in quorum order
+   ************************************************************************************************/
+  public ArrayList<FileProbe> probe(ArrayList<NodeInfo> quorum, String filename, int inlineMaxSize, Deadline deadline) {
+    ArrayList<Probe> probes = new ArrayList<Probe>(quorum.size());
+    for (NodeInfo n : quorum) {
+      Probe probe = new Probe(filename, deadline);
+      probes.add(probe);
+      enqueue(n, inlineMaxSize, probe);
+    }
+    ArrayList<FileProbe> results = new ArrayList<FileProbe>(quorum.size());
+    for (Probe probe : probes) {
+      try {
+        if (probe.done.await(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS) && probe.result != null) {
+          results.add(probe.result);
+        }
+      } catch (InterruptedException ie) {
+        Log.error("[ProbeBatcher] InterruptedException while waiting for a version probe.");
+      }
+    }
+    return results;
+  }
+
+  private void enqueue(NodeInfo n, int inlineMaxSize, Probe probe) {
+    final NodeQueue queue;
+    synchronized (this) {
+      String key = n.ip + ":" + Integer.toString(n.port) + "/" + Integer.toString(inlineMaxSize);
+      NodeQueue existing = queues.get(key);
+      if (existing == null) {
+        existing = new NodeQueue(n, inlineMaxSize);
+        queues.put(key, existing);
+      }
+      queue = existing;
+      queue.pending.add(probe);
+      if (queue.sending) {
+        return; // goes out with the next batch
+      }
+      queue.sending = true;
+    }
+    senders.execute(new Runnable() {
+      @Override
+      public void run() {
+        drain(queue);
+      }
+    });
+  }
+
+  // Sends batches to the queue's node until nothing is waiting for it
+  private void drain(NodeQueue queue) {
+    while (true) {
+      ArrayList<Probe> batch;
+      synchronized (this) {
+        if (queue.pending.isEmpty()) {
+          queue.sending = false;
+          return;
+        }
+        List<Probe> next = queue.pending.subList(0, Math.min(maxBatchSize, queue.pending.size()));
+        batch = new ArrayList<Probe>(next);
+        next.clear();
+      }
+      send(queue, batch);
+    }
+  }
+
+  /************************************************************************************************
+   send(): one getFileInfos()/probeFiles() call for a batch (expired probes are dropped)
+   ************************************************************************************************/
+  private void send(NodeQueue queue, ArrayList<Probe> batch) {
+    NodeInfo n = queue.node;
+    ArrayList<Probe> live = new ArrayList<Probe>(batch.size());
+    ArrayList<String> filenames = new ArrayList<String>(batch.size());
+    Deadline latest = null;
+    for (Probe probe : batch) {
+      if (probe.deadline.isExpired()) {
+        probe.done.countDown();
+        continue;
+      }
+      live.add(probe);
+      filenames.add(probe.filename);
+      if (latest == null || probe.deadline.remainingMillis() > latest.remainingMillis()) {
+        latest = probe.deadline;
+      }
+    }
+    if (live.isEmpty()) {
+      return;
+    }
+
+    try {
+      TTransport transport = new TSocket(n.ip, n.port, latest.socketTimeout());
+      TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+      DFSNode.Client client = new DFSNode.Client(protocol);
+      transport.open();
+      if (queue.inlineMaxSize > 0) {
+        List<FileProbe> results = client.probeFiles(filenames, queue.inlineMaxSize);
+        if (results.size() != live.size()) {
+          throw new TException("Expected " + live.size() + " probes, got " + results.size() + ".");
+        }
+        for (int i = 0; i < live.size(); i++) {
+          live.get(i).result = results.get(i);
+        }
+      } else {
+        List<FileInfo> results = client.getFileInfos(filenames);
+        if (results.size() != live.size()) {
+          throw new TException("Expected " + live.size() + " file infos, got " + results.size() + ".");
+        }
+        for (int i = 0; i < live.size(); i++) {
+          FileProbe probe = new FileProbe();
+          probe.info = results.get(i);
+          live.get(i).result = probe;
+        }
+      }
+      transport.close();
+      coordinator.recordSuccess(n);
+      if (live.size() > 1) {
+        Log.debug("[ProbeBatcher] Probed %d files on %s:%d in one call.", live.size(), n.ip, n.port);
+      }
+
+    } catch(TException e) {
+      Log.warn("[ProbeBatcher] Failed to probe %d files on %s:%d.", live.size(), n.ip, n.port);
+      coordinator.recordFailure(n);
+    } finally {
+      for (Probe probe : live) {
+        probe.done.countDown();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,161 @@
+import java.util.concurrent.*;
+
+/**
+ * QuorumTuner is used by the COORDINATOR when QuorumSelection is ADAPTIVE.
+ *
+ * It keeps a sliding window (ring of time buckets) of completed reads/writes
+ * and their latency per replica contacted, and periodically picks the valid
+ * (Nr, Nw) pair with the lowest expected cost for the observed mix:
+ *
+ *    cost(Nr, Nw) = reads * readLatencyPerReplica * Nr + writes * writeLatencyPerReplica * Nw
+ *
+ * The coordinator is the one that actually applies the change (see
+ * DFSCoordinator.reconfigureQuorums()), so that it stays safe for requests
+ * that are already in flight.
+ */
+class QuorumTuner {
+
+  private static final int NUM_BUCKETS = 10;
+  private static final int MIN_SAMPLES = 20;        // don't tune on a handful of requests
+  private static final double MIN_GAIN = 0.10;      // only move if expected cost drops 10%+
+
+  private DFSCoordinator coordinator;
+  private long windowMillis;
+  private long intervalMillis;
+  private long bucketMillis;
+
+  // Ring of buckets, each covers 'bucketMillis' of time
+  private long[] bucketStart = new long[NUM_BUCKETS];
+  private long[] reads = new long[NUM_BUCKETS];
+  private long[] writes = new long[NUM_BUCKETS];
+  private double[] readMillisPerReplica = new double[NUM_BUCKETS];
+  private double[] writeMillisPerReplica = new double[NUM_BUCKETS];
+
+  private ScheduledExecutorService scheduler;
+
+  public QuorumTuner(DFSCoordinator coordinator, long windowMillis, long intervalMillis) {
+    this.coordinator = coordinator;
+    this.windowMillis = windowMillis;
+    this.intervalMillis = intervalMillis;
+    this.bucketMillis = Math.max(1, windowMillis / NUM_BUCKETS);
+  }
+
+  public void start() {
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "quorum-tuner");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        tune();
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void shutdown() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /************************************************************************************************
+   SLIDING WINDOW
+   ************************************************************************************************/
+  private int bucketFor(long now) {
+    long start = now - (now % bucketMillis);
+    int idx = (int) ((now / bucketMillis) % NUM_BUCKETS);
+    if (bucketStart[idx] != start) {
+      // Bucket is from an older lap around the ring, reset it
+      bucketStart[idx] = start;
+      reads[idx] = 0;
+      writes[idx] = 0;
+      readMillisPerReplica[idx] = 0;
+      writeMillisPerReplica[idx] = 0;
+    }
+    return idx;
+  }
+
+  public synchronized void recordRead(long latencyMillis, int quorumSize) {
+    int idx = bucketFor(System.currentTimeMillis());
+    reads[idx]++;
+    readMillisPerReplica[idx] += (double) latencyMillis / Math.max(1, quorumSize);
+  }
+
+  public synchronized void recordWrite(long latencyMillis, int quorumSize) {
+    int idx = bucketFor(System.currentTimeMillis());
+    writes[idx]++;
+    writeMillisPerReplica[idx] += (double) latencyMillis / Math.max(1, quorumSize);
+  }
+
+  /************************************************************************************************
+   chooseQuorums(): returns {nr, nw} to move to, or null to stay put
+   ************************************************************************************************/
+  public synchronized int[] chooseQuorums(int n, int currentNr, int currentNw) {
+    long now = System.currentTimeMillis();
+    long totalReads = 0;
+    long totalWrites = 0;
+    double readMillis = 0;
+    double writeMillis = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      if (now - bucketStart[i] < windowMillis) {
+        totalReads += reads[i];
+        totalWrites += writes[i];
+        readMillis += readMillisPerReplica[i];
+        writeMillis += writeMillisPerReplica[i];
+      }
+    }
+    if (totalReads + totalWrites < MIN_SAMPLES) {
+      return null;
+    }
+
+    // Per-replica cost estimates (fall back to 1 if we've only seen one kind of request)
+    double readCost = (totalReads > 0) ? readMillis / totalReads : 1.0;
+    double writeCost = (totalWrites > 0) ? writeMillis / totalWrites : 1.0;
+    readCost = Math.max(readCost, 0.001);
+    writeCost = Math.max(writeCost, 0.001);
+
+    double currentCost = totalReads * readCost * currentNr + totalWrites * writeCost * currentNw;
+
+    // Only need to consider smallest valid Nr for each valid Nw (Nw > N/2, Nr + Nw > N)
+    int bestNr = currentNr;
+    int bestNw = currentNw;
+    double bestCost = currentCost;
+    for (int nw = (n / 2) + 1; nw <= n; nw++) {
+      int nr = n - nw + 1;
+      double cost = totalReads * readCost * nr + totalWrites * writeCost * nw;
+      if (cost < bestCost) {
+        bestCost = cost;
+        bestNr = nr;
+        bestNw = nw;
+      }
+    }
+
+    if ((bestNr == currentNr && bestNw == currentNw) || bestCost > currentCost * (1 - MIN_GAIN)) {
+      return null;
+    }
+    Log.info("[QuorumTuner] Window: %d reads, %d writes (%.2f / %.2f ms per replica). Nr/Nw %d/%d --> %d/%d",
+      totalReads, totalWrites, readCost, writeCost, currentNr, currentNw, bestNr, bestNw);
+    return new int[] { bestNr, bestNw };
+  }
+
+  private void tune() {
+    if (!coordinator.isReady()) {
+      return;
+    }
+    try {
+      CoordinatorConfiguration config = coordinator.getCoordinatorConfiguration();
+      int[] target = chooseQuorums(config.n, config.nr, config.nw);
+      if (target != null) {
+        coordinator.reconfigureQuorums(target[0], target[1]);
+      }
+    } catch (Exception e) {
+      Log.warn("[QuorumTuner] Failed to tune quorums: %s", e);
+    }
+  }
+
+}
@@ -0,0 +1,38 @@
+/**
+ * RateLimiter is a simple token bucket used to cap background data transfer
+ * (e.g. rebalancing data onto a new node) to a number of bytes per second.
+ * Callers may go into "debt" for one large item; the next caller waits it off.
+ */
+class RateLimiter {
+
+  private final double bytesPerMilli;
+  private final double maxBurst;
+  private double available;
+  private long lastRefill;
+
+  public RateLimiter(long bytesPerSecond) {
+    bytesPerMilli = Math.max(1, bytesPerSecond) / 1000.0;
+    maxBurst = Math.max(1, bytesPerSecond);
+    available = maxBurst;
+    lastRefill = System.currentTimeMillis();
+  }
+
+  /**
+   * Blocks until 'bytes' may be sent
+   * @param bytes number of bytes about to be transferred
+   */
+  public void acquire(long bytes) throws InterruptedException {
+    long waitMillis;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      available = Math.min(maxBurst, available + (now - lastRefill) * bytesPerMilli);
+      lastRefill = now;
+      available -= bytes;
+      waitMillis = (available < 0) ? (long) Math.ceil(-available / bytesPerMilli) : 0;
+    }
+    if (waitMillis > 0) {
+      Thread.sleep(waitMillis);
+    }
+  }
+
+}
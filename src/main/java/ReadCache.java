@@ -0,0 +1,80 @@
+import java.util.*;
+
+/**
+ * ReadCache is a CLIENT's cache of leased reads (see leasedRead()). An entry is
+ * served until its lease runs out; the coordinator holds back writes to the
+ * file until then, so a cached read is never older than an acknowledged write.
+ *
+ * Lease time is counted from when the request was SENT, so the client's copy
+ * always expires before the coordinator's. Expired entries are kept: their
+ * version is sent as knownVersion, and a NOT_MODIFIED answer renews them
+ * without the contents being sent again. Not thread safe: one per connection.
+ */
+class ReadCache {
+
+  private static class Entry {
+    final ReadResult readResult;
+    final long expiresAtNanos;
+
+    Entry(ReadResult readResult, long expiresAtNanos) {
+      this.readResult = readResult;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+  }
+
+  private HashMap<String, Entry> entries = new HashMap<String, Entry>();
+  private long hits = 0;
+  private long misses = 0;
+
+  /************************************************************************************************
+   get(): cached result of a read of filename (null if there is none or its lease ran out)
+   ************************************************************************************************/
+  public ReadResult get(String filename) {
+    Entry entry = entries.get(filename);
+    if (entry != null && entry.expiresAtNanos - System.nanoTime() > 0) {
+      hits++;
+      return entry.readResult;
+    }
+    misses++;
+    return null;
+  }
+
+  // Version to pass as leasedRead()'s knownVersion (-1 if nothing is cached)
+  public int knownVersion(String filename) {
+    Entry entry = entries.get(filename);
+    return (entry == null) ? -1 : entry.readResult.version;
+  }
+
+  /************************************************************************************************
+   put(): caches a leasedRead() result (sentAtNanos: System.nanoTime() before it was sent) and
+   returns what the read should answer (the cached contents if it was NOT_MODIFIED)
+   ************************************************************************************************/
+  public ReadResult put(String filename, ReadResult readResult, long sentAtNanos) {
+    Entry entry = entries.get(filename);
+    if (readResult.response.acknowledgement == Acknowledgement.NOT_MODIFIED && entry != null) {
+      ReadResult cached = entry.readResult;
+      cached.leaseMillis = readResult.leaseMillis;
+      readResult = cached;
+    } else if (readResult.response.acknowledgement != Acknowledgement.SUCCESS) {
+      entries.remove(filename);
+      return readResult;
+    }
+    // (no lease: kept expired, only to revalidate with)
+    entries.put(filename, new Entry(readResult, sentAtNanos + Math.max(0, readResult.leaseMillis) * 1000000L));
+    return readResult;
+  }
+
+  // Our own write makes the cached contents stale (even before the lease runs out)
+  public void invalidate(String filename) {
+    entries.remove(filename);
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+}
@@ -0,0 +1,167 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * ReadCoalescer runs on the COORDINATOR (read_coalescing=true) and lets
+ * concurrent reads of the same file share one quorum read (version probe +
+ * fetch), so read fan-out grows with the number of hot files rather than with
+ * the number of clients.
+ *
+ * A read only ever shares a quorum read that STARTED after it arrived, so it
+ * can't miss a write acknowledged before it was sent: while a quorum read of a
+ * file is in progress, later reads of it join a pending flight, which starts
+ * as soon as the one in progress finishes (reads of a file were serialized on
+ * its lock anyway). A flight reads with the lowest knownVersion of its
+ * readers, and each reader gets NOT_MODIFIED or the contents according to its
+ * own knownVersion.
+ */
+class ReadCoalescer {
+
+  // Does the actual quorum read
+  interface Reader {
+    BlobReadResult read(String filename, int knownVersion, Deadline deadline);
+  }
+
+  private static class Flight {
+    int knownVersion = Integer.MAX_VALUE; // the lowest of its readers' (-1 == someone needs the contents)
+    Deadline deadline; // the latest of its readers' deadlines
+    int readers = 0;
+    BlobReadResult result;
+    CountDownLatch started = new CountDownLatch(1); // flight's turn to read
+    CountDownLatch done = new CountDownLatch(1);
+  }
+
+  private static class FileState {
+    Flight pending = null;
+  }
+
+  private final Reader reader;
+  private HashMap<String, FileState> files = new HashMap<String, FileState>();
+
+  public ReadCoalescer(Reader reader) {
+    this.reader = reader;
+  }
+
+  /************************************************************************************************
+   read(): quorum read of filename, possibly shared with other reads of the same file
+   ************************************************************************************************/
+  public BlobReadResult read(String filename, int knownVersion, Deadline deadline) {
+    Flight flight;
+    boolean leader;
+    synchronized (this) {
+      FileState state = files.get(filename);
+      if (state == null) {
+        files.put(filename, new FileState());
+        flight = null;
+        leader = true;
+      } else {
+        if (state.pending == null) {
+          state.pending = new Flight();
+        }
+        flight = state.pending;
+        leader = (flight.readers == 0);
+        flight.readers++;
+        flight.knownVersion = Math.min(flight.knownVersion, knownVersion);
+        if (flight.deadline == null || deadline.remainingMillis() > flight.deadline.remainingMillis()) {
+          flight.deadline = deadline;
+        }
+      }
+    }
+
+    if (flight == null) {
+      return readAndHandOff(filename, knownVersion, deadline, null);
+    }
+
+    if (leader) {
+      // (not bounded by our deadline: the read in progress is, and then the flight must be read)
+      try {
+        flight.started.await();
+      } catch (InterruptedException ie) {
+        Log.error("[ReadCoalescer] InterruptedException while waiting for the read in progress.");
+      }
+      int flightKnownVersion;
+      Deadline flightDeadline;
+      int readers;
+      synchronized (this) {
+        flightKnownVersion = flight.knownVersion;
+        flightDeadline = flight.deadline;
+        readers = flight.readers;
+      }
+      Log.debug("[ReadCoalescer] Reading %s once for %d reader(s).", filename, readers);
+      return share(readAndHandOff(filename, flightKnownVersion, flightDeadline, flight), knownVersion);
+    }
+
+    try {
+      if (flight.done.await(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS)) {
+        return share(flight.result, knownVersion);
+      }
+    } catch (InterruptedException ie) {
+      Log.error("[ReadCoalescer] InterruptedException while waiting for a shared read.");
+    }
+    BlobReadResult timedOut = new BlobReadResult();
+    timedOut.response = new Response();
+    timedOut.response.acknowledgement = Acknowledgement.TIMEOUT;
+    timedOut.response.message = "Timed out waiting for a shared read of " + filename + ".";
+    timedOut.version = -1;
+    return timedOut;
+  }
+
+  private BlobReadResult readAndHandOff(String filename, int knownVersion, Deadline deadline, Flight flight) {
+    BlobReadResult result = null;
+    try {
+      result = reader.read(filename, knownVersion, deadline);
+      return result;
+    } finally {
+      if (flight != null) {
+        if (result == null) {
+          result = new BlobReadResult();
+          result.response = new Response();
+          result.response.acknowledgement = Acknowledgement.FAILURE;
+          result.response.message = "Shared read of " + filename + " failed.";
+          result.version = -1;
+        }
+        flight.result = result;
+        flight.done.countDown();
+      }
+      handOff(filename);
+    }
+  }
+
+  // Lets the next flight read (or marks the file idle)
+  private void handOff(String filename) {
+    Flight next;
+    synchronized (this) {
+      FileState state = files.get(filename);
+      next = state.pending;
+      state.pending = null;
+      if (next == null) {
+        files.remove(filename);
+      }
+    }
+    if (next != null) {
+      next.started.countDown();
+    }
+  }
+
+  /************************************************************************************************
+   share(): one reader's copy of a flight's result (the blob itself is shared, callers only
+   replace it), NOT_MODIFIED if it is no newer than what that reader already has
+   ************************************************************************************************/
+  private static BlobReadResult share(BlobReadResult result, int knownVersion) {
+    BlobReadResult copy = new BlobReadResult();
+    copy.response = new Response();
+    copy.response.acknowledgement = result.response.acknowledgement;
+    copy.response.message = result.response.message;
+    copy.response.retryAfterMillis = result.response.retryAfterMillis;
+    copy.version = result.version;
+    boolean found = (result.response.acknowledgement == Acknowledgement.SUCCESS ||
+                     result.response.acknowledgement == Acknowledgement.NOT_MODIFIED);
+    if (found && knownVersion >= 0 && result.version <= knownVersion) {
+      copy.response.acknowledgement = Acknowledgement.NOT_MODIFIED;
+    } else {
+      copy.blob = result.blob;
+    }
+    return copy;
+  }
+
+}
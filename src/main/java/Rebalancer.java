@@ -0,0 +1,192 @@
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Rebalancer runs on the COORDINATOR and copies the newest version of every
+ * file onto nodes that joined an already running DFS, one node at a time and
+ * under a bandwidth limit. Once a node has every file it is promoted into the
+ * quorums (see DFSCoordinator.promoteNode()).
+ *
+ * The bulk of the data is copied first as one stream from a live peer (see
+ * SnapshotTransfer); only files the node still lacks (or has an older version
+ * of) afterwards are copied one by one.
+ *
+ * Writes that happen while a node is joining reach it through background
+ * replication, and performWrite() rejects anything older, so the copy does not
+ * need to hold any file locks.
+ */
+class Rebalancer {
+
+  // bootstrapFrom() returns when the whole snapshot is in, the node times out a stalled stream itself
+  private static final int BOOTSTRAP_TIMEOUT_MILLIS = 60 * 60 * 1000;
+
+  private DFSCoordinator coordinator;
+  private long bytesPerSecond;
+  private RateLimiter rateLimiter;
+  private BlockingQueue<NodeInfo> joiningNodes = new LinkedBlockingQueue<NodeInfo>();
+  private Thread worker;
+
+  public Rebalancer(DFSCoordinator coordinator, long bytesPerSecond) {
+    this.coordinator = coordinator;
+    this.bytesPerSecond = bytesPerSecond;
+    this.rateLimiter = new RateLimiter(bytesPerSecond);
+
+    worker = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        processJoins();
+      }
+    }, "rebalancer");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  // A rebalance in progress stops at its next blocking call
+  public void shutdown() {
+    worker.interrupt();
+  }
+
+  public void addJoiningNode(NodeInfo node) {
+    joiningNodes.add(node);
+  }
+
+  private void processJoins() {
+    while (true) {
+      NodeInfo node;
+      try {
+        node = joiningNodes.take();
+      } catch (InterruptedException ie) {
+        return;
+      }
+      if (rebalance(node)) {
+        coordinator.promoteNode(node);
+      } else {
+        coordinator.abandonJoin(node);
+      }
+    }
+  }
+
+  /************************************************************************************************
+   rebalance(): copy every file in the coordinator's catalog onto 'node'
+   ************************************************************************************************/
+  private boolean rebalance(NodeInfo node) {
+    List<FileInfo> files = coordinator.getCatalog().getAll();
+    if (!files.isEmpty()) {
+      bootstrap(node);
+    }
+    Map<String, Integer> versionsOnNode = versionsOn(node);
+    Log.info("[Rebalancer] Copying %d files to %s:%d (%d already there)", files.size(), node.ip, node.port, versionsOnNode.size());
+    long bytesCopied = 0;
+
+    for (FileInfo file : files) {
+      Integer versionOnNode = versionsOnNode.get(file.filename);
+      if (versionOnNode != null && versionOnNode >= file.version) {
+        continue;
+      }
+      coordinator.beginOperation();
+      NodeInfo reader = coordinator.getReaderNode(file.filename, Deadline.after(Deadline.DEFAULT_BUDGET_MILLIS));
+      coordinator.endOperation();
+      if (reader == null) {
+        Log.warn("[Rebalancer] Not enough live nodes to read '%s', giving up.", file.filename);
+        return false;
+      }
+      if (reader.port == -1) {
+        continue;
+      }
+
+      BlobReadResult readResult;
+      try {
+        TTransport transport = new TSocket(reader.ip, reader.port, Deadline.DEFAULT_BUDGET_MILLIS);
+        TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+        DFSNode.Client client = new DFSNode.Client(protocol);
+        transport.open();
+        readResult = client.performReadBlob(file.filename, Compression.SUPPORTED);
+        transport.close();
+      } catch (TException e) {
+        Log.warn("[Rebalancer] Failed to read '%s' from %s:%d, skipping.", file.filename, reader.ip, reader.port);
+        continue;
+      }
+      if (readResult.response.acknowledgement != Acknowledgement.SUCCESS) {
+        continue;
+      }
+      if (ErasureCoding.isFragment(readResult.blob)) {
+        // Erasure-coded: the stripe's nodes hold it, a copy of one fragment adds nothing
+        continue;
+      }
+
+      try {
+        long size = readResult.blob.data.remaining(); // compressed: what actually goes over the wire
+        rateLimiter.acquire(size);
+        bytesCopied += size;
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt(); // shutdown(): processJoins() stops at its next take()
+        return false;
+      }
+
+      try {
+        TTransport transport = new TSocket(node.ip, node.port, Deadline.DEFAULT_BUDGET_MILLIS);
+        TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+        DFSNode.Client client = new DFSNode.Client(protocol);
+        transport.open();
+        DFSNodeHandler.pushBlob(client, file.filename, readResult.blob, readResult.version,
+          coordinator.getCoordinatorConfiguration().inlineMaxSize);
+        transport.close();
+      } catch (TException e) {
+        Log.warn("[Rebalancer] Lost connection to joining node %s:%d.", node.ip, node.port);
+        return false;
+      }
+    }
+    Log.info("[Rebalancer] Finished copying to %s:%d (%d bytes)", node.ip, node.port, bytesCopied);
+    return true;
+  }
+
+  /************************************************************************************************
+   bootstrap(): have the node stream a snapshot from a live peer (whatever it gets is kept)
+   ************************************************************************************************/
+  private void bootstrap(NodeInfo node) {
+    ArrayList<NodeInfo> peers = coordinator.buildQuorum(1);
+    if (peers.isEmpty()) {
+      return;
+    }
+    NodeInfo peer = peers.get(0);
+    try {
+      TTransport transport = new TSocket(node.ip, node.port, BOOTSTRAP_TIMEOUT_MILLIS);
+      TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+      DFSNode.Client client = new DFSNode.Client(protocol);
+      transport.open();
+      Response response = client.bootstrapFrom(peer, bytesPerSecond);
+      transport.close();
+      Log.info("[Rebalancer] Snapshot of %s:%d onto %s:%d: %s", peer.ip, peer.port, node.ip, node.port, response.message);
+    } catch (TException e) {
+      Log.warn("[Rebalancer] Snapshot onto %s:%d failed, copying file by file.", node.ip, node.port);
+    }
+  }
+
+  // filename --> version of every file the node has (empty if it can't be asked)
+  private Map<String, Integer> versionsOn(NodeInfo node) {
+    HashMap<String, Integer> versions = new HashMap<String, Integer>();
+    try {
+      TTransport transport = new TSocket(node.ip, node.port, Deadline.DEFAULT_BUDGET_MILLIS);
+      TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+      DFSNode.Client client = new DFSNode.Client(protocol);
+      transport.open();
+      for (FileInfo fileInfo : client.getFiles()) {
+        if (fileInfo.exists) {
+          versions.put(fileInfo.filename, fileInfo.version);
+        }
+      }
+      transport.close();
+    } catch (TException e) {
+      Log.warn("[Rebalancer] Could not list files on %s:%d.", node.ip, node.port);
+    }
+    return versions;
+  }
+
+}
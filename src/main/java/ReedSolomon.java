@@ -0,0 +1,199 @@
+import java.util.Arrays;
+
+/**
+ * ReedSolomon is a systematic (k + m) erasure code over GF(2^8): k data shards
+ * are stored as-is, m parity shards are computed from them, and ANY k of the
+ * k + m shards are enough to get the data back.
+ *
+ * The encoding matrix is a Vandermonde matrix multiplied by the inverse of its
+ * top k x k square, so its top k rows are the identity (data shards unchanged)
+ * and every k x k submatrix is still invertible.
+ */
+class ReedSolomon {
+
+  private static final int FIELD_SIZE = 256;
+  private static final int GENERATOR_POLYNOMIAL = 0x11d; // x^8 + x^4 + x^3 + x^2 + 1
+
+  private static final int[] EXP = new int[FIELD_SIZE * 2];
+  private static final int[] LOG = new int[FIELD_SIZE];
+
+  static {
+    int x = 1;
+    for (int i = 0; i < FIELD_SIZE - 1; i++) {
+      EXP[i] = x;
+      LOG[x] = i;
+      x <<= 1;
+      if (x >= FIELD_SIZE) {
+        x ^= GENERATOR_POLYNOMIAL;
+      }
+    }
+    // Doubled so multiply() never has to reduce LOG[a] + LOG[b]
+    for (int i = FIELD_SIZE - 1; i < EXP.length; i++) {
+      EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+    }
+  }
+
+  private final int dataShards;
+  private final int totalShards;
+  private final int[][] matrix; // totalShards x dataShards
+
+  public ReedSolomon(int dataShards, int parityShards) {
+    if (dataShards <= 0 || parityShards < 0 || dataShards + parityShards > FIELD_SIZE) {
+      throw new IllegalArgumentException("Invalid Reed-Solomon code (" + dataShards + " + " + parityShards + ")");
+    }
+    this.dataShards = dataShards;
+    this.totalShards = dataShards + parityShards;
+
+    int[][] vandermonde = new int[totalShards][dataShards];
+    for (int row = 0; row < totalShards; row++) {
+      for (int column = 0; column < dataShards; column++) {
+        vandermonde[row][column] = power(row, column);
+      }
+    }
+    int[][] top = new int[dataShards][];
+    for (int row = 0; row < dataShards; row++) {
+      top[row] = vandermonde[row].clone();
+    }
+    matrix = multiply(vandermonde, invert(top));
+  }
+
+  /************************************************************************************************
+   encode(): fills shards[k..k+m) from shards[0..k) (all shards the same length)
+   ************************************************************************************************/
+  public void encode(byte[][] shards) {
+    int shardSize = shards[0].length;
+    for (int parity = dataShards; parity < totalShards; parity++) {
+      byte[] output = shards[parity];
+      Arrays.fill(output, (byte) 0);
+      for (int input = 0; input < dataShards; input++) {
+        addMultiple(output, shards[input], matrix[parity][input], shardSize);
+      }
+    }
+  }
+
+  /************************************************************************************************
+   decode(): rebuilds the k data shards from any k shards (missing ones are null)
+   ************************************************************************************************/
+  public byte[][] decode(byte[][] shards) {
+    int[] present = new int[dataShards];
+    int found = 0;
+    int shardSize = -1;
+    for (int i = 0; i < totalShards && found < dataShards; i++) {
+      if (shards[i] != null) {
+        present[found++] = i;
+        shardSize = shards[i].length;
+      }
+    }
+    if (found < dataShards) {
+      throw new IllegalArgumentException("Need " + dataShards + " shards to decode, got " + found);
+    }
+
+    int[][] subMatrix = new int[dataShards][];
+    for (int row = 0; row < dataShards; row++) {
+      subMatrix[row] = matrix[present[row]].clone();
+    }
+    int[][] decodeMatrix = invert(subMatrix);
+
+    byte[][] data = new byte[dataShards][];
+    for (int output = 0; output < dataShards; output++) {
+      if (shards[output] != null) {
+        data[output] = shards[output];
+        continue;
+      }
+      data[output] = new byte[shardSize];
+      for (int input = 0; input < dataShards; input++) {
+        addMultiple(data[output], shards[present[input]], decodeMatrix[output][input], shardSize);
+      }
+    }
+    return data;
+  }
+
+  /************************************************************************************************
+   GF(2^8) ARITHMETIC
+   ************************************************************************************************/
+  private static int multiply(int a, int b) {
+    if (a == 0 || b == 0) {
+      return 0;
+    }
+    return EXP[LOG[a] + LOG[b]];
+  }
+
+  private static int inverse(int a) {
+    return EXP[(FIELD_SIZE - 1) - LOG[a]];
+  }
+
+  private static int power(int a, int n) {
+    if (n == 0) {
+      return 1;
+    }
+    if (a == 0) {
+      return 0;
+    }
+    return EXP[(LOG[a] * n) % (FIELD_SIZE - 1)];
+  }
+
+  // output ^= coefficient * input
+  private static void addMultiple(byte[] output, byte[] input, int coefficient, int length) {
+    if (coefficient == 0) {
+      return;
+    }
+    int logCoefficient = LOG[coefficient];
+    for (int i = 0; i < length; i++) {
+      int value = input[i] & 0xFF;
+      if (value != 0) {
+        output[i] ^= EXP[LOG[value] + logCoefficient];
+      }
+    }
+  }
+
+  private static int[][] multiply(int[][] a, int[][] b) {
+    int[][] result = new int[a.length][b[0].length];
+    for (int row = 0; row < a.length; row++) {
+      for (int column = 0; column < b[0].length; column++) {
+        int value = 0;
+        for (int i = 0; i < b.length; i++) {
+          value ^= multiply(a[row][i], b[i][column]);
+        }
+        result[row][column] = value;
+      }
+    }
+    return result;
+  }
+
+  // Gauss-Jordan elimination (modifies its argument)
+  private static int[][] invert(int[][] square) {
+    int size = square.length;
+    int[][] result = new int[size][size];
+    for (int i = 0; i < size; i++) {
+      result[i][i] = 1;
+    }
+    for (int column = 0; column < size; column++) {
+      int pivot = column;
+      while (pivot < size && square[pivot][column] == 0) {
+        pivot++;
+      }
+      if (pivot == size) {
+        throw new IllegalArgumentException("Matrix is singular");
+      }
+      int[] swap = square[pivot]; square[pivot] = square[column]; square[column] = swap;
+      swap = result[pivot]; result[pivot] = result[column]; result[column] = swap;
+
+      int scale = inverse(square[column][column]);
+      for (int i = 0; i < size; i++) {
+        square[column][i] = multiply(square[column][i], scale);
+        result[column][i] = multiply(result[column][i], scale);
+      }
+      for (int row = 0; row < size; row++) {
+        int factor = square[row][column];
+        if (row != column && factor != 0) {
+          for (int i = 0; i < size; i++) {
+            square[row][i] ^= multiply(factor, square[column][i]);
+            result[row][i] ^= multiply(factor, result[column][i]);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+}
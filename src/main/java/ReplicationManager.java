@@ -0,0 +1,443 @@
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ReplicationManager runs on the COORDINATOR and pushes committed writes to the
+ * replicas that were NOT part of the write quorum, off of the request thread.
+ *
+ * Pushes that cannot be delivered (queue full, node down, retries used up) are
+ * kept as "hints" per node and replayed once that node answers again.
+ */
+class ReplicationManager {
+
+  private static final int NUM_WORKERS = 2;
+  private static final long RETRY_BACKOFF_MILLIS = 200;
+  private static final long HINT_REPLAY_INTERVAL_MILLIS = 2000;
+  private static final int MAX_HINTS_PER_NODE = 1024;
+
+  private DFSCoordinator coordinator;
+  private int maxRetries;
+
+  private BlockingQueue<ReplicationTask> queue;
+  private ScheduledExecutorService scheduler;
+  private List<Thread> workers = new ArrayList<Thread>(NUM_WORKERS);
+
+  // Pushes queued, waiting to retry or on the wire (hints are counted separately). A push moving
+  // between 'pending' and the hints is counted in the one it moves to before leaving the other
+  private AtomicInteger pending = new AtomicInteger(0);
+  // Hinted handoff: node ("ip:port") --> (filename --> newest undelivered task)
+  private Semaphore hintsLock = new Semaphore(1);
+  private HashMap<String, LinkedHashMap<String, ReplicationTask>> hints = new HashMap<String, LinkedHashMap<String, ReplicationTask>>();
+
+  // Pushes given up on (dropped hints, replica failed to store), per node, under hintsLock. Cleared
+  // once the node has that version (or newer), through a later push or its own update() (checked
+  // by recheckLost())
+  private static class LostPushes {
+    final NodeInfo node;
+    final HashMap<String, Integer> versions = new HashMap<String, Integer>(); // filename --> version
+
+    LostPushes(NodeInfo node) {
+      this.node = node;
+    }
+  }
+  private HashMap<String, LostPushes> lost = new HashMap<String, LostPushes>();
+
+  // Nodes that left the DFS, pushes to them are dropped
+  private Set<String> removedNodes = ConcurrentHashMap.newKeySet();
+
+  /**
+   * One pending push of (filename, contents, version) to a single replica
+   * (contents stay compressed, the same blob is shared by all targets)
+   */
+  static class ReplicationTask {
+    final NodeInfo target;
+    final String filename;
+    final Blob blob;
+    final int version;
+    int attempts;
+
+    ReplicationTask(NodeInfo target, String filename, Blob blob, int version) {
+      this.target = target;
+      this.filename = filename;
+      this.blob = blob;
+      this.version = version;
+      this.attempts = 0;
+    }
+  }
+
+  public ReplicationManager(DFSCoordinator coordinator, int queueSize, int retries) {
+    this.coordinator = coordinator;
+    maxRetries = retries;
+    queue = new ArrayBlockingQueue<ReplicationTask>(queueSize);
+    scheduler = Executors.newScheduledThreadPool(1, daemonThreadFactory("replication-scheduler"));
+
+    ThreadFactory workerFactory = daemonThreadFactory("replication-worker");
+    for (int i = 0; i < NUM_WORKERS; i++) {
+      Thread worker = workerFactory.newThread(new Runnable() {
+        @Override
+        public void run() {
+          processQueue();
+        }
+      });
+      workers.add(worker);
+      worker.start();
+    }
+
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        replayHints();
+        recheckLost();
+      }
+    }, HINT_REPLAY_INTERVAL_MILLIS, HINT_REPLAY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /************************************************************************************************
+   shutdown(): stops the workers and the hint replays (queued pushes and hints are dropped)
+   ************************************************************************************************/
+  public void shutdown() {
+    scheduler.shutdownNow();
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+  }
+
+  private static ThreadFactory daemonThreadFactory(final String name) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  private static String nodeKey(NodeInfo n) {
+    return n.ip + ":" + Integer.toString(n.port);
+  }
+
+  /************************************************************************************************
+   replicate(): queue a committed version for every target (never blocks the caller)
+   ************************************************************************************************/
+  public void replicate(List<NodeInfo> targets, String filename, Blob blob, int version) {
+    for (NodeInfo target : targets) {
+      pending.incrementAndGet();
+      enqueue(new ReplicationTask(target, filename, blob, version));
+    }
+  }
+
+  // Queues a task already counted in 'pending'. Queue full --> don't make the caller wait, keep
+  // as hint instead
+  private void enqueue(ReplicationTask task) {
+    if (!queue.offer(task)) {
+      addHint(task);
+      pending.decrementAndGet();
+    }
+  }
+
+  /************************************************************************************************
+   isFullyReplicated(): true if every write queued so far has reached every replica
+   ************************************************************************************************/
+  public boolean isFullyReplicated() {
+    // (under hintsLock: hints being replayed move to 'pending' under it)
+    try {
+      hintsLock.acquire();
+    } catch (InterruptedException ie) {
+      Log.error("[ReplicationManager] InterruptedException while acquiring lock on hints.");
+      return false;
+    }
+    boolean fullyReplicated = (pending.get() == 0);
+    for (LinkedHashMap<String, ReplicationTask> nodeHints : hints.values()) {
+      fullyReplicated = fullyReplicated && nodeHints.isEmpty();
+    }
+    fullyReplicated = fullyReplicated && lost.isEmpty();
+    hintsLock.release();
+    return fullyReplicated;
+  }
+
+  /************************************************************************************************
+   forgetNode() / rememberNode(): called as nodes leave / (re)join the DFS
+   ************************************************************************************************/
+  public void forgetNode(NodeInfo n) {
+    removedNodes.add(nodeKey(n));
+    try {
+      hintsLock.acquire();
+      hints.remove(nodeKey(n));
+      lost.remove(nodeKey(n));
+      hintsLock.release();
+    } catch (InterruptedException ie) {
+      Log.error("[ReplicationManager] InterruptedException while acquiring lock on hints.");
+    }
+  }
+
+  public void rememberNode(NodeInfo n) {
+    removedNodes.remove(nodeKey(n));
+  }
+
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  public int getHintCount() {
+    int count = 0;
+    try {
+      hintsLock.acquire();
+      for (LinkedHashMap<String, ReplicationTask> nodeHints : hints.values()) {
+        count += nodeHints.size();
+      }
+      hintsLock.release();
+    } catch (InterruptedException ie) {
+      Log.error("[ReplicationManager] InterruptedException while acquiring lock on hints.");
+    }
+    return count;
+  }
+
+  /************************************************************************************************
+   processQueue(): worker loop
+   ************************************************************************************************/
+  private void processQueue() {
+    while (true) {
+      ReplicationTask task;
+      try {
+        task = queue.take();
+      } catch (InterruptedException ie) {
+        return;
+      }
+      push(task);
+    }
+  }
+
+  private void push(final ReplicationTask task) {
+    if (removedNodes.contains(nodeKey(task.target))) {
+      pending.decrementAndGet();
+      return;
+    }
+    if (!coordinator.isAvailable(task.target)) {
+      // Node is suspected down / breaker open, don't burn retries on it
+      addHint(task);
+      pending.decrementAndGet();
+      return;
+    }
+    task.attempts++;
+    long start = System.nanoTime();
+    try {
+      TTransport transport = new TSocket(task.target.ip, task.target.port, Deadline.DEFAULT_BUDGET_MILLIS);
+      TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+      DFSNode.Client client = new DFSNode.Client(protocol);
+      transport.open();
+      WriteResult result = DFSNodeHandler.pushBlob(client, task.filename, task.blob, task.version,
+        coordinator.getCoordinatorConfiguration().inlineMaxSize);
+      coordinator.getMetrics().record(Metrics.REPLICATION_PUSH, start);
+      coordinator.recordSuccess(task.target);
+      if (result.response.acknowledgement == Acknowledgement.SUCCESS) {
+        caughtUp(task.target, task.filename, task.version);
+      } else if (result.response.acknowledgement == Acknowledgement.SUPERSEDED) {
+        // Replica already holds a newer version, nothing left to deliver
+        Log.debug("[ReplicationManager] '%s' (VERSION %d) superseded on %s.", task.filename, task.version, nodeKey(task.target));
+        caughtUp(task.target, task.filename, task.version);
+      } else {
+        // Fine if the replica already holds a newer version, otherwise this push is lost
+        FileInfo replicaInfo = client.getFileInfo(task.filename);
+        if (!replicaInfo.exists || replicaInfo.version < task.version) {
+          Log.warn("[ReplicationManager] '%s' (VERSION %d) not applied on %s: %s",
+            task.filename, task.version, nodeKey(task.target), result.response.message);
+          addLost(task);
+        }
+      }
+      transport.close();
+      pending.decrementAndGet();
+    } catch (TException e) {
+      coordinator.recordFailure(task.target);
+      if (task.attempts <= maxRetries) {
+        scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            enqueue(task);
+          }
+        }, RETRY_BACKOFF_MILLIS * task.attempts, TimeUnit.MILLISECONDS);
+      } else {
+        Log.warn("[ReplicationManager] Giving up on pushing '%s' (VERSION %d) to %s, keeping hint.",
+          task.filename, task.version, nodeKey(task.target));
+        addHint(task);
+        pending.decrementAndGet();
+      }
+    }
+  }
+
+  /************************************************************************************************
+   HINTED HANDOFF
+   ************************************************************************************************/
+  private void addHint(ReplicationTask task) {
+    if (removedNodes.contains(nodeKey(task.target))) {
+      return;
+    }
+    try {
+      hintsLock.acquire();
+      String key = nodeKey(task.target);
+      if (!hints.containsKey(key)) {
+        hints.put(key, new LinkedHashMap<String, ReplicationTask>());
+      }
+      LinkedHashMap<String, ReplicationTask> nodeHints = hints.get(key);
+      ReplicationTask existing = nodeHints.get(task.filename);
+      if (existing == null || existing.version < task.version) {
+        nodeHints.remove(task.filename); // re-insert so newest hints are last
+        nodeHints.put(task.filename, task);
+      }
+      if (nodeHints.size() > MAX_HINTS_PER_NODE) {
+        // Drop oldest, the node's own update() will catch up on files it holds
+        Iterator<ReplicationTask> oldest = nodeHints.values().iterator();
+        ReplicationTask dropped = oldest.next();
+        oldest.remove();
+        addLostLocked(dropped);
+      }
+      hintsLock.release();
+    } catch (InterruptedException ie) {
+      Log.error("[ReplicationManager] InterruptedException while acquiring lock on hints.");
+    }
+  }
+
+  /************************************************************************************************
+   LOST PUSHES
+   ************************************************************************************************/
+  private void addLost(ReplicationTask task) {
+    if (removedNodes.contains(nodeKey(task.target))) {
+      return;
+    }
+    hintsLock.acquireUninterruptibly();
+    addLostLocked(task);
+    hintsLock.release();
+  }
+
+  // Caller holds hintsLock
+  private void addLostLocked(ReplicationTask task) {
+    String key = nodeKey(task.target);
+    if (!lost.containsKey(key)) {
+      lost.put(key, new LostPushes(task.target));
+    }
+    HashMap<String, Integer> nodeLost = lost.get(key).versions;
+    Integer version = nodeLost.get(task.filename);
+    if (version == null || version < task.version) {
+      nodeLost.put(task.filename, task.version);
+    }
+  }
+
+  // The node has filename at version (or newer)
+  private void caughtUp(NodeInfo n, String filename, int version) {
+    hintsLock.acquireUninterruptibly();
+    LostPushes lostPushes = lost.get(nodeKey(n));
+    if (lostPushes != null) {
+      HashMap<String, Integer> nodeLost = lostPushes.versions;
+      Integer lostVersion = nodeLost.get(filename);
+      if (lostVersion != null && lostVersion <= version) {
+        nodeLost.remove(filename);
+      }
+      if (nodeLost.isEmpty()) {
+        lost.remove(nodeKey(n));
+      }
+    }
+    hintsLock.release();
+  }
+
+  /************************************************************************************************
+   recheckLost(): asks the nodes with lost pushes which of those files they have caught up on
+   since (a node's periodic update() pulls newer versions of the files it holds)
+   ************************************************************************************************/
+  private void recheckLost() {
+    HashMap<NodeInfo, ArrayList<String>> filesByNode = new HashMap<NodeInfo, ArrayList<String>>();
+    hintsLock.acquireUninterruptibly();
+    for (LostPushes lostPushes : lost.values()) {
+      filesByNode.put(lostPushes.node, new ArrayList<String>(lostPushes.versions.keySet()));
+    }
+    hintsLock.release();
+
+    for (Map.Entry<NodeInfo, ArrayList<String>> entry : filesByNode.entrySet()) {
+      NodeInfo n = entry.getKey();
+      if (!coordinator.isAvailable(n)) {
+        continue;
+      }
+      try {
+        TTransport transport = new TSocket(n.ip, n.port, Deadline.DEFAULT_BUDGET_MILLIS);
+        TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+        DFSNode.Client client = new DFSNode.Client(protocol);
+        transport.open();
+        List<FileInfo> fileInfos = client.getFileInfos(entry.getValue());
+        transport.close();
+        for (FileInfo fileInfo : fileInfos) {
+          if (fileInfo.exists) {
+            caughtUp(n, fileInfo.filename, fileInfo.version);
+          }
+        }
+      } catch (TException e) {
+        Log.debug("[ReplicationManager] Unable to recheck lost pushes on %s.", nodeKey(n));
+      }
+    }
+  }
+
+  private boolean isReachable(NodeInfo n) {
+    TTransport transport = new TSocket(n.ip, n.port, Deadline.DEFAULT_BUDGET_MILLIS);
+    try {
+      transport.open();
+      transport.close();
+      return true;
+    } catch (TException e) {
+      return false;
+    }
+  }
+
+  private void replayHints() {
+    ArrayList<LinkedHashMap<String, ReplicationTask>> nodesHints = new ArrayList<LinkedHashMap<String, ReplicationTask>>();
+    try {
+      hintsLock.acquire();
+      nodesHints.addAll(hints.values());
+      hintsLock.release();
+    } catch (InterruptedException ie) {
+      return;
+    }
+
+    for (LinkedHashMap<String, ReplicationTask> nodeHints : nodesHints) {
+      ArrayList<ReplicationTask> toReplay = new ArrayList<ReplicationTask>();
+      try {
+        hintsLock.acquire();
+        if (!nodeHints.isEmpty()) {
+          toReplay.addAll(nodeHints.values());
+        }
+        hintsLock.release();
+      } catch (InterruptedException ie) {
+        return;
+      }
+      if (toReplay.isEmpty() || !coordinator.isAvailable(toReplay.get(0).target) || !isReachable(toReplay.get(0).target)) {
+        continue;
+      }
+
+      Log.info("[ReplicationManager] Replaying %d hint(s) to %s", toReplay.size(), nodeKey(toReplay.get(0).target));
+      ArrayList<ReplicationTask> replayed = new ArrayList<ReplicationTask>(toReplay.size());
+      try {
+        hintsLock.acquire();
+        for (ReplicationTask task : toReplay) {
+          if (nodeHints.get(task.filename) == task) {
+            pending.incrementAndGet();
+            nodeHints.remove(task.filename);
+            replayed.add(task);
+          }
+        }
+        hintsLock.release();
+      } catch (InterruptedException ie) {
+        return;
+      }
+      for (ReplicationTask task : replayed) {
+        task.attempts = 0;
+        enqueue(task);
+      }
+    }
+  }
+
+}
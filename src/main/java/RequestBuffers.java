@@ -0,0 +1,52 @@
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.server.ServerContext;
+import org.apache.thrift.server.TServerEventHandler;
+import org.apache.thrift.transport.TTransport;
+
+/**
+ * RequestBuffers is a node's server event handler: it tells BufferPool when a
+ * request's response has been written, so the pooled buffers handed out with
+ * BufferPool.forRequest() can be reused. Every event is passed on to the
+ * wrapped handler (the node's LoadTracker) as well.
+ *
+ *   server.setServerEventHandler(new RequestBuffers(metrics.getLoadTracker()));
+ */
+class RequestBuffers implements TServerEventHandler {
+
+  private final TServerEventHandler next;
+
+  public RequestBuffers(TServerEventHandler next) {
+    this.next = next;
+  }
+
+  /************************************************************************************************
+   TServerEventHandler: one context per connection, all calls on the thread serving it
+   ************************************************************************************************/
+  @Override
+  public void preServe() {
+    next.preServe();
+  }
+
+  @Override
+  public ServerContext createContext(TProtocol input, TProtocol output) {
+    BufferPool.beginConnection();
+    return next.createContext(input, output);
+  }
+
+  @Override
+  public void deleteContext(ServerContext serverContext, TProtocol input, TProtocol output) {
+    try {
+      next.deleteContext(serverContext, input, output);
+    } finally {
+      BufferPool.endConnection();
+    }
+  }
+
+  @Override
+  public void processContext(ServerContext serverContext, TTransport inputTransport, TTransport outputTransport) {
+    // (called before each request: the previous one's response is out)
+    BufferPool.endRequest();
+    next.processContext(serverContext, inputTransport, outputTransport);
+  }
+
+}
@@ -0,0 +1,273 @@
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocol;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * SnapshotTransfer fills a new (or wiped) node with a copy of a peer's data in
+ * one sequential stream, instead of one read + one write RPC per file.
+ *
+ *    1. the new node calls openSnapshot() on the peer: the peer lists every
+ *       file's version and contents hash (its manifest), pins the objects they
+ *       point at and opens a one-shot stream port
+ *    2. the new node connects to that port and sends the snapshot's id; the
+ *       peer sends every object file back to back (sizes are in the manifest)
+ *       with FileChannel.transferTo(), under a bandwidth limit
+ *    3. the new node stores each object, then points its files at them
+ *       (a file it already has at a newer version is left alone)
+ *
+ * Objects are immutable and pinned until streamed, so the snapshot stays
+ * consistent while the peer keeps taking writes; newer versions reach the new
+ * node through replication (or the Rebalancer's per-file pass).
+ */
+class SnapshotTransfer {
+
+  private static final int CHUNK_SIZE = 1024 * 1024; // bytes sent per rate limiter acquire()
+  private static final int RECEIVE_BUFFER_SIZE = 256 * 1024;
+  private static final int CONNECT_TIMEOUT_MILLIS = 30000; // also how long an open snapshot waits
+  private static final int STREAM_TIMEOUT_MILLIS = 30000; // longest silence on the stream
+
+  private NodeInfo nodeInfo;
+  private FileManager fileManager;
+  private Random random = new Random();
+
+  public SnapshotTransfer(NodeInfo nodeInfo, FileManager fileManager) {
+    this.nodeInfo = nodeInfo;
+    this.fileManager = fileManager;
+  }
+
+  /************************************************************************************************
+   open(): (PEER) manifest of this node's files, streamed to whoever connects to its streamPort
+   and sends its snapshotId (within CONNECT_TIMEOUT_MILLIS)
+   ************************************************************************************************/
+  public SnapshotManifest open(long bytesPerSecond) {
+    final SnapshotManifest manifest = fileManager.snapshotManifest();
+    manifest.response = new Response();
+    manifest.snapshotId = random.nextLong();
+
+    final ServerSocketChannel server;
+    try {
+      server = ServerSocketChannel.open();
+      server.socket().bind(new InetSocketAddress(0));
+    } catch (IOException e) {
+      Log.error("[SnapshotTransfer] On '%s:%d' unable to open a stream port: %s", nodeInfo.ip, nodeInfo.port, e);
+      unpinAll(manifest);
+      manifest.response.acknowledgement = Acknowledgement.FAILURE;
+      manifest.response.message = "Could not open a stream port for the snapshot.";
+      return manifest;
+    }
+    manifest.streamPort = server.socket().getLocalPort();
+    manifest.response.acknowledgement = Acknowledgement.SUCCESS;
+    manifest.response.message = "";
+
+    final RateLimiter rateLimiter = new RateLimiter(bytesPerSecond);
+    Thread sender = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        send(server, manifest, rateLimiter);
+      }
+    }, "snapshot-sender");
+    sender.setDaemon(true);
+    sender.start();
+
+    Log.info("[SnapshotTransfer] On '%s:%d' opened snapshot of %d files (%d objects, %d bytes) on port %d.",
+      nodeInfo.ip, nodeInfo.port, manifest.entries.size(), manifest.objects.size(), manifest.totalBytes, manifest.streamPort);
+    return manifest;
+  }
+
+  private void send(ServerSocketChannel server, SnapshotManifest manifest, RateLimiter rateLimiter) {
+    long start = System.currentTimeMillis();
+    long sent = 0;
+    try {
+      SocketChannel socket = accept(server, manifest.snapshotId);
+      if (socket == null) {
+        Log.warn("[SnapshotTransfer] On '%s:%d' nobody came for snapshot %d, dropping it.", nodeInfo.ip, nodeInfo.port, manifest.snapshotId);
+        return;
+      }
+      try {
+        for (SnapshotObject snapshotObject : manifest.objects) {
+          try (FileChannel file = FileChannel.open(fileManager.objectFile(snapshotObject), StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < snapshotObject.size) {
+              long end = Math.min(snapshotObject.size, position + CHUNK_SIZE);
+              rateLimiter.acquire(end - position);
+              while (position < end) {
+                // Zero-copy: file --> socket without passing through this JVM's heap
+                long transferred = file.transferTo(position, end - position, socket);
+                if (transferred <= 0) {
+                  throw new IOException("Object " + snapshotObject.hash + " shorter than listed.");
+                }
+                position += transferred;
+                sent += transferred;
+              }
+            }
+          }
+        }
+      } finally {
+        socket.close();
+      }
+      Log.info("[SnapshotTransfer] On '%s:%d' sent snapshot %d (%d bytes) in %d ms.",
+        nodeInfo.ip, nodeInfo.port, manifest.snapshotId, sent, System.currentTimeMillis() - start);
+    } catch (IOException e) {
+      Log.warn("[SnapshotTransfer] On '%s:%d' snapshot %d failed after %d bytes: %s", nodeInfo.ip, nodeInfo.port, manifest.snapshotId, sent, e);
+    } catch (InterruptedException ie) {
+      Log.error("[SnapshotTransfer] InterruptedException while sending snapshot %d.", manifest.snapshotId);
+    } finally {
+      try {
+        server.close();
+      } catch (IOException e) {
+        Log.warn("[SnapshotTransfer] Unable to close stream port %d.", manifest.streamPort);
+      }
+      unpinAll(manifest);
+    }
+  }
+
+  // The connection that sends this snapshot's id (null if none did in time)
+  private SocketChannel accept(ServerSocketChannel server, long snapshotId) throws IOException {
+    long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+    while (System.currentTimeMillis() < deadline) {
+      server.socket().setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+      Socket socket;
+      try {
+        socket = server.socket().accept();
+      } catch (SocketTimeoutException e) {
+        return null;
+      }
+      socket.setSoTimeout(STREAM_TIMEOUT_MILLIS);
+      try {
+        if (new DataInputStream(socket.getInputStream()).readLong() == snapshotId) {
+          return socket.getChannel();
+        }
+      } catch (IOException e) {
+        // (not our receiver)
+      }
+      socket.close();
+    }
+    return null;
+  }
+
+  private void unpinAll(SnapshotManifest manifest) {
+    for (SnapshotObject snapshotObject : manifest.objects) {
+      fileManager.unpin(snapshotObject);
+    }
+  }
+
+  /************************************************************************************************
+   bootstrapFrom(): (NEW NODE) copy a snapshot of peer's files onto this node
+   ************************************************************************************************/
+  public Response bootstrapFrom(NodeInfo peer, long bytesPerSecond) {
+    Response response = new Response();
+    long start = System.currentTimeMillis();
+
+    SnapshotManifest manifest;
+    try {
+      TTransport transport = new TSocket(peer.ip, peer.port, CONNECT_TIMEOUT_MILLIS);
+      TProtocol protocol = new TBinaryProtocol(new TFramedTransport(transport));
+      DFSNode.Client client = new DFSNode.Client(protocol);
+      transport.open();
+      manifest = client.openSnapshot(bytesPerSecond);
+      transport.close();
+    } catch (TException e) {
+      Log.warn("[SnapshotTransfer] On '%s:%d' unable to open a snapshot on %s:%d.", nodeInfo.ip, nodeInfo.port, peer.ip, peer.port);
+      response.acknowledgement = Acknowledgement.FAILURE;
+      response.message = "Could not open a snapshot on " + peer.ip + ":" + Integer.toString(peer.port) + ".";
+      return response;
+    }
+    if (manifest.response.acknowledgement != Acknowledgement.SUCCESS) {
+      return manifest.response;
+    }
+    return receive(peer, manifest, start);
+  }
+
+  // Streams the manifest's objects from peer and installs them (objects first, each pinned once
+  // installed, then the files pointing at them)
+  Response receive(NodeInfo peer, SnapshotManifest manifest, long start) {
+    Response response = new Response();
+    ArrayList<SnapshotObject> installed = new ArrayList<SnapshotObject>(manifest.objects.size());
+    long received = 0;
+    String error = null;
+    BufferPool.PooledBuffer pooledBuffer = BufferPool.acquire(RECEIVE_BUFFER_SIZE);
+    try (Socket socket = new Socket()) {
+      socket.connect(new InetSocketAddress(peer.ip, manifest.streamPort), CONNECT_TIMEOUT_MILLIS);
+      socket.setSoTimeout(STREAM_TIMEOUT_MILLIS);
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeLong(manifest.snapshotId);
+      out.flush();
+      InputStream in = socket.getInputStream();
+      ByteBuffer buffer = pooledBuffer.buffer();
+
+      for (SnapshotObject snapshotObject : manifest.objects) {
+        Path file = fileManager.createReceiveFile(snapshotObject);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+          long remaining = snapshotObject.size;
+          while (remaining > 0) {
+            int read = in.read(buffer.array(), buffer.arrayOffset(), (int) Math.min(buffer.capacity(), remaining));
+            if (read < 0) {
+              throw new EOFException("Snapshot stream ended early.");
+            }
+            buffer.clear();
+            buffer.limit(read);
+            while (buffer.hasRemaining()) {
+              channel.write(buffer);
+            }
+            remaining -= read;
+            received += read;
+          }
+        } catch (IOException e) {
+          Files.deleteIfExists(file);
+          throw e;
+        }
+        if (fileManager.installObject(snapshotObject, file)) {
+          installed.add(snapshotObject);
+        }
+      }
+    } catch (IOException e) {
+      // Keep what did arrive
+      error = e.toString();
+      Log.warn("[SnapshotTransfer] On '%s:%d' snapshot from %s:%d cut short after %d bytes: %s", nodeInfo.ip, nodeInfo.port, peer.ip, peer.port, received, e);
+    } finally {
+      pooledBuffer.release();
+    }
+
+    HashSet<String> installedHashes = new HashSet<String>();
+    for (SnapshotObject snapshotObject : installed) {
+      installedHashes.add(snapshotObject.hash);
+    }
+    int filesInstalled = 0;
+    for (SnapshotEntry entry : manifest.entries) {
+      if (installedHashes.contains(entry.hash)) {
+        Acknowledgement acknowledgement = fileManager.installEntry(entry).response.acknowledgement;
+        if (acknowledgement == Acknowledgement.SUCCESS || acknowledgement == Acknowledgement.SUPERSEDED) {
+          filesInstalled++;
+        }
+      }
+    }
+    for (SnapshotObject snapshotObject : installed) {
+      fileManager.unpin(snapshotObject);
+    }
+
+    Log.info("[SnapshotTransfer] On '%s:%d' installed %d of %d files (%d bytes) from %s:%d in %d ms.", nodeInfo.ip, nodeInfo.port,
+      filesInstalled, manifest.entries.size(), received, peer.ip, peer.port, System.currentTimeMillis() - start);
+    boolean complete = (error == null && filesInstalled == manifest.entries.size());
+    response.acknowledgement = complete ? Acknowledgement.SUCCESS : Acknowledgement.FAILURE;
+    response.message = "Installed " + filesInstalled + " of " + manifest.entries.size() + " files (" + received + " bytes)" +
+      ((error == null) ? "." : ", stream failed: " + error);
+    return response;
+  }
+
+}
@@ -0,0 +1,148 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * WriteCoalescer runs on the COORDINATOR (write_coalescing=true) and combines
+ * writes that queue up behind each other on the same file into one write.
+ *
+ * While a write to a file is in progress, later writes to it join a single
+ * pending batch, each replacing the batch's contents with its own. When the
+ * write in progress finishes, the first writer of the batch writes the latest
+ * contents once, and every writer of the batch gets that write's result (and
+ * version). As if the batch's writes happened one right after another, with
+ * only the last one visible. A hot file costs one write per write in progress
+ * instead of one per request.
+ */
+class WriteCoalescer {
+
+  // Does the actual (quorum) write
+  interface Writer {
+    WriteResult write(String filename, String contents, Deadline deadline);
+  }
+
+  private static class Batch {
+    String contents;
+    Deadline deadline; // the latest of its writers' deadlines
+    int writers = 0;
+    WriteResult result;
+    CountDownLatch started = new CountDownLatch(1); // batch's turn to write
+    CountDownLatch done = new CountDownLatch(1);
+  }
+
+  private static class FileState {
+    boolean writing = false;
+    Batch pending = null;
+  }
+
+  private final Writer writer;
+  private HashMap<String, FileState> files = new HashMap<String, FileState>();
+
+  public WriteCoalescer(Writer writer) {
+    this.writer = writer;
+  }
+
+  /************************************************************************************************
+   write(): writes contents to filename, possibly combined with other writes to the same file
+   ************************************************************************************************/
+  public WriteResult write(String filename, String contents, Deadline deadline) {
+    Batch batch;
+    boolean leader;
+    synchronized (this) {
+      FileState state = files.get(filename);
+      if (state == null) {
+        state = new FileState();
+        files.put(filename, state);
+      }
+      if (!state.writing) {
+        state.writing = true;
+        batch = null;
+        leader = true;
+      } else {
+        if (state.pending == null) {
+          state.pending = new Batch();
+        }
+        batch = state.pending;
+        leader = (batch.writers == 0);
+        batch.writers++;
+        batch.contents = contents;
+        if (batch.deadline == null || deadline.remainingMillis() > batch.deadline.remainingMillis()) {
+          batch.deadline = deadline;
+        }
+      }
+    }
+
+    if (batch == null) {
+      return writeAndHandOff(filename, contents, deadline, null);
+    }
+
+    if (leader) {
+      // (not bounded by our deadline: the write in progress is, and then the batch must be written)
+      try {
+        batch.started.await();
+      } catch (InterruptedException ie) {
+        Log.error("[WriteCoalescer] InterruptedException while waiting for the write in progress.");
+      }
+      String latestContents;
+      Deadline batchDeadline;
+      int writers;
+      synchronized (this) {
+        latestContents = batch.contents;
+        batchDeadline = batch.deadline;
+        writers = batch.writers;
+      }
+      Log.debug("[WriteCoalescer] Writing %d coalesced write(s) to %s.", writers, filename);
+      return writeAndHandOff(filename, latestContents, batchDeadline, batch);
+    }
+
+    try {
+      if (batch.done.await(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS)) {
+        return batch.result;
+      }
+    } catch (InterruptedException ie) {
+      Log.error("[WriteCoalescer] InterruptedException while waiting for a coalesced write.");
+    }
+    // (the batch will still be written, like a write that times out after reaching the nodes)
+    WriteResult timedOut = new WriteResult();
+    timedOut.response = new Response();
+    timedOut.response.acknowledgement = Acknowledgement.TIMEOUT;
+    timedOut.response.message = "Timed out waiting for a coalesced write to " + filename + ".";
+    return timedOut;
+  }
+
+  private WriteResult writeAndHandOff(String filename, String contents, Deadline deadline, Batch batch) {
+    WriteResult result = null;
+    try {
+      result = writer.write(filename, contents, deadline);
+      return result;
+    } finally {
+      if (batch != null) {
+        if (result == null) {
+          result = new WriteResult();
+          result.response = new Response();
+          result.response.acknowledgement = Acknowledgement.FAILURE;
+          result.response.message = "Coalesced write to " + filename + " failed.";
+        }
+        batch.result = result;
+        batch.done.countDown();
+      }
+      handOff(filename);
+    }
+  }
+
+  // Lets the next batch write (or marks the file idle)
+  private void handOff(String filename) {
+    Batch next;
+    synchronized (this) {
+      FileState state = files.get(filename);
+      next = state.pending;
+      state.pending = null;
+      if (next == null) {
+        files.remove(filename);
+      }
+    }
+    if (next != null) {
+      next.started.countDown();
+    }
+  }
+
+}
@@ -0,0 +1,51 @@
+import java.util.Random;
+
+/**
+ * ZipfianGenerator picks item ranks in [0, items) where rank 0 is the most
+ * popular, with P(rank i) proportional to 1 / (i + 1)^theta.
+ *
+ * Uses the constant-time method from Gray et al., "Quickly Generating
+ * Billion-Record Synthetic Databases" (also what YCSB uses). theta == 0 is
+ * uniform, theta close to 1 is very skewed (theta must not be exactly 1).
+ */
+class ZipfianGenerator {
+
+  private final int items;
+  private final double theta;
+  private final double zetaN;
+  private final double alpha;
+  private final double eta;
+
+  public ZipfianGenerator(int items, double theta) {
+    this.items = items;
+    this.theta = theta;
+    this.zetaN = zeta(items, theta);
+    double zeta2 = zeta(2, theta);
+    this.alpha = 1.0 / (1.0 - theta);
+    this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetaN);
+  }
+
+  private static double zeta(int n, double theta) {
+    double sum = 0;
+    for (int i = 1; i <= n; i++) {
+      sum += 1.0 / Math.pow(i, theta);
+    }
+    return sum;
+  }
+
+  public int next(Random random) {
+    if (theta <= 0 || items < 2) {
+      return random.nextInt(items);
+    }
+    double u = random.nextDouble();
+    double uz = u * zetaN;
+    if (uz < 1.0) {
+      return 0;
+    }
+    if (uz < 1.0 + Math.pow(0.5, theta)) {
+      return 1;
+    }
+    return Math.min(items - 1, (int) (items * Math.pow(eta * u - eta + 1, alpha)));
+  }
+
+}
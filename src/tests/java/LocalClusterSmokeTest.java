@@ -0,0 +1,103 @@
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+import javax.management.ObjectName;
+
+/**
+ * Smoke test for LocalCluster: start, write, read, stop. Afterwards no
+ * coordinator thread and no JMX bean of the cluster may be left behind.
+ *
+ * Exits with 1 (after printing every failed check) if anything is wrong.
+ */
+public class LocalClusterSmokeTest {
+
+  private static final int N = 5;
+  private static final long THREAD_EXIT_MILLIS = 5000;
+
+  // Background threads DFSCoordinator and its helpers start
+  private static final Set<String> COORDINATOR_THREADS = new HashSet<String>(Arrays.asList(
+    "replication-scheduler", "replication-worker", "rebalancer", "quorum-tuner", "probe-sender",
+    "membership-retry", "fragment-reader", "stripe-committer"));
+
+  private static final List<String> failures = new ArrayList<String>();
+
+  public static void main(String[] args) throws Exception {
+    Log.setLevel(Log.Level.WARN);
+
+    CoordinatorConfiguration config = LocalCluster.defaultConfiguration(N);
+    config.quorumSelection = QuorumSelection.ADAPTIVE; // starts the QuorumTuner too
+    LocalCluster cluster = new LocalCluster(config);
+    cluster.start();
+    try {
+      writeAndRead(cluster.getCoordinatorInfo());
+    } finally {
+      cluster.stop();
+    }
+
+    checkThreadsStopped();
+    checkBeansUnregistered();
+
+    if (!failures.isEmpty()) {
+      for (String failure : failures) {
+        System.out.println("FAILED: " + failure);
+      }
+      System.exit(1);
+    }
+    System.out.println("OK");
+  }
+
+  private static void writeAndRead(NodeInfo coordinator) throws TException {
+    TTransport transport = new TSocket(coordinator.ip, coordinator.port, Deadline.DEFAULT_BUDGET_MILLIS);
+    DFSNode.Client client = new DFSNode.Client(new TBinaryProtocol(new TFramedTransport(transport)));
+    transport.open();
+    try {
+      WriteResult writeResult = client.write("smoke.txt", "hello", Deadline.DEFAULT_BUDGET_MILLIS);
+      check(writeResult.response.acknowledgement == Acknowledgement.SUCCESS, "write: " + writeResult.response.message);
+
+      ReadResult readResult = client.read("smoke.txt", Deadline.DEFAULT_BUDGET_MILLIS);
+      check(readResult.response.acknowledgement == Acknowledgement.SUCCESS, "read: " + readResult.response.message);
+      check("hello".equals(readResult.contents), "read returned '" + readResult.contents + "'");
+      check(readResult.version == writeResult.version, "read VERSION " + readResult.version + ", wrote " + writeResult.version);
+    } finally {
+      transport.close();
+    }
+  }
+
+  private static void checkThreadsStopped() throws InterruptedException {
+    long giveUpAt = System.currentTimeMillis() + THREAD_EXIT_MILLIS;
+    List<String> running = runningCoordinatorThreads();
+    while (!running.isEmpty() && System.currentTimeMillis() < giveUpAt) {
+      Thread.sleep(50);
+      running = runningCoordinatorThreads();
+    }
+    check(running.isEmpty(), "threads still running after stop(): " + running);
+  }
+
+  private static List<String> runningCoordinatorThreads() {
+    List<String> running = new ArrayList<String>();
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      if (t.isAlive() && COORDINATOR_THREADS.contains(t.getName())) {
+        running.add(t.getName());
+      }
+    }
+    return running;
+  }
+
+  private static void checkBeansUnregistered() throws Exception {
+    Set<ObjectName> beans = ManagementFactory.getPlatformMBeanServer().queryNames(new ObjectName("simpledfs:*"), null);
+    check(beans.isEmpty(), "JMX beans still registered after stop(): " + beans);
+  }
+
+  private static void check(boolean ok, String failure) {
+    if (!ok) {
+      failures.add(failure);
+    }
+  }
+
+}